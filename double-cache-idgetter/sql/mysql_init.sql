@@ -15,4 +15,14 @@ COMMENT='configure table, storage next buffer start value'
 COLLATE='utf8mb4_0900_as_cs'
 ENGINE=InnoDB
 AUTO_INCREMENT=1
-;
\ No newline at end of file
+;
+-- worker ID leases of the snowflake strategy, one row per worker ID, current_value is the lease expiry in millis
+-- rows snowflake_worker_0 .. snowflake_worker_1023 for the default snowflakeWorkerTag and snowflakeWorkerIdBits=10
+INSERT INTO `t_seq_conf` (`name`, `current_value`)
+WITH RECURSIVE `worker_ids` (`n`) AS (
+    SELECT 0
+    UNION ALL
+    SELECT `n` + 1 FROM `worker_ids` WHERE `n` < 1023
+)
+SELECT CONCAT('snowflake_worker_', `n`), 0 FROM `worker_ids`
+;
@@ -0,0 +1,4 @@
+-- SequenceRepositoryImplBySequence使用的sequence，每个bizTag一个，INCREMENT BY和IdGetter的incrSize一致
+-- 一次nextval预留一段，不需要t_seq_conf
+-- PostgreSQL / Oracle / MariaDB 10.3+ / H2 / HSQLDB 写法相同
+CREATE SEQUENCE seq_order START WITH 1 INCREMENT BY 5000;
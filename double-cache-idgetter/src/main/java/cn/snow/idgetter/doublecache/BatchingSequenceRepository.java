@@ -0,0 +1,288 @@
+package cn.snow.idgetter.doublecache;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 合并多个IdGetter的加载请求
+ * 在一个很短的时间窗口内收集到的reserveSegment和reserveSequence请求，用一次reserveSegments批量预留，
+ * 几百个bizTag同时启动或者同时到达加载位置时，数据库的往返次数和配置表上的锁时间都会大大减少。
+ * 以装饰器的方式包住真正的仓库，IdGetter不需要任何改动。
+ * 同一个bizTag在窗口内的多个请求合并成一次预留，仓库不支持合并时（canMergeReservations返回false）分成几次预留
+ * <p>
+ * IdGetter装填空槽位时用reserveSegmentAsync，请求排进队列就返回，不会每个bizTag占住一个加载线程等窗口结束，
+ * 所以一批能合并多少个bizTag不受加载线程数的限制
+ *
+ * @author dev
+ */
+@Slf4j
+public class BatchingSequenceRepository implements ISequenceRepository, AutoCloseable {
+
+    private final ISequenceRepository delegate;
+    /**
+     * 收集请求的时间窗口
+     */
+    private final long windowMillis;
+    /**
+     * 一次批量预留最多合并多少个请求
+     */
+    private final int maxBatchSize;
+    /**
+     * 调用方最多等多久
+     */
+    private final long timeoutMillis;
+
+    private final ConcurrentLinkedQueue<PendingReservation> pending = new ConcurrentLinkedQueue<>();
+
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+
+    /**
+     * 两个线程，一批预留卡在数据库上时，下一个窗口和等待超时还能照常处理
+     */
+    private final ScheduledThreadPoolExecutor flusher;
+
+    public BatchingSequenceRepository(ISequenceRepository delegate, long windowMillis) {
+        this(delegate, windowMillis, 500, 5000L);
+    }
+
+    public BatchingSequenceRepository(ISequenceRepository delegate, long windowMillis, int maxBatchSize, long timeoutMillis) {
+        this.delegate = delegate;
+        this.windowMillis = windowMillis;
+        this.maxBatchSize = maxBatchSize;
+        this.timeoutMillis = timeoutMillis;
+        this.flusher = new ScheduledThreadPoolExecutor(2, new IdGetterFactory.SnowIdGetterThreadFactory("snow-id-getter-batch", true));
+        this.flusher.setRemoveOnCancelPolicy(true);
+    }
+
+    @Override
+    public Long getCurrentSequence(String bizTag) {
+        return delegate.getCurrentSequence(bizTag);
+    }
+
+    @Override
+    public boolean increaseSequence(String bizTag, long incrSize, Long currentSequence) {
+        return delegate.increaseSequence(bizTag, incrSize, currentSequence);
+    }
+
+    @Override
+    public Map<String, Long> reserveSequences(Map<String, Long> incrSizeByBizTag) {
+        return delegate.reserveSequences(incrSizeByBizTag);
+    }
+
+    @Override
+    public Map<String, IdSegment> reserveSegments(Map<String, Long> incrSizeByBizTag) {
+        return delegate.reserveSegments(incrSizeByBizTag);
+    }
+
+    @Override
+    public boolean canMergeReservations() {
+        return delegate.canMergeReservations();
+    }
+
+    @Override
+    public Long getIncrementSize(String bizTag) {
+        return delegate.getIncrementSize(bizTag);
+    }
+
+    @Override
+    public Long leaseWorkerId(String workerTag, int workerId, Long token, long leaseMillis) {
+        return delegate.leaseWorkerId(workerTag, workerId, token, leaseMillis);
+    }
+
+    @Override
+    public List<String> listActiveBizTags() {
+        return delegate.listActiveBizTags();
+    }
+
+    @Override
+    public boolean isAvailable() {
+        return delegate.isAvailable();
+    }
+
+    /**
+     * 请求先排队，等时间窗口到了和其他bizTag的请求一起预留
+     * 合并预留到的段比请求的个数短时抛IdGetFailException，只有覆盖了reserveSegments的仓库会这样
+     *
+     * @param bizTag
+     * @param incrSize
+     * @return
+     */
+    @Override
+    public Long reserveSequence(String bizTag, long incrSize) {
+        IdSegment segment = await(enqueue(bizTag, incrSize), bizTag);
+        if (segment == null) {
+            return null;
+        }
+        if (segment.getStep() != incrSize) {
+            throw new IdGetFailException("batched reservation got " + segment.getStep() + " of " + incrSize + " ids. bizTag=" + bizTag);
+        }
+        return segment.getMaxId();
+    }
+
+    @Override
+    public IdSegment reserveSegment(String bizTag, long incrSize) {
+        return await(enqueue(bizTag, incrSize), bizTag);
+    }
+
+    /**
+     * 排进队列就返回，超过timeoutMillis还没有预留到时以IdGetFailException结束
+     *
+     * @param bizTag
+     * @param incrSize
+     * @return
+     */
+    @Override
+    public CompletableFuture<IdSegment> reserveSegmentAsync(String bizTag, long incrSize) {
+        return enqueue(bizTag, incrSize);
+    }
+
+    private IdSegment await(CompletableFuture<IdSegment> result, String bizTag) {
+        try {
+            return result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IdGetFailException("wait batched reservation interrupted. bizTag=" + bizTag, e);
+        } catch (ExecutionException e) {
+            throw new IdGetFailException("batched reservation fail. bizTag=" + bizTag, e.getCause());
+        }
+    }
+
+    private CompletableFuture<IdSegment> enqueue(String bizTag, long incrSize) {
+        PendingReservation reservation = new PendingReservation(bizTag, incrSize);
+        try {
+            ScheduledFuture<?> timeout = flusher.schedule(() -> reservation.result.completeExceptionally(
+                    new IdGetFailException("batched reservation timeout after " + timeoutMillis + "ms. bizTag=" + bizTag)),
+                    timeoutMillis, TimeUnit.MILLISECONDS);
+            reservation.result.whenComplete((segment, error) -> timeout.cancel(false));
+        } catch (RejectedExecutionException e) {
+            reservation.result.completeExceptionally(new IdGetFailException("batching sequence repository closed. bizTag=" + bizTag, e));
+            return reservation.result;
+        }
+        enqueue(reservation);
+        return reservation.result;
+    }
+
+    private void enqueue(PendingReservation reservation) {
+        pending.add(reservation);
+        if (flushScheduled.compareAndSet(false, true)) {
+            try {
+                flusher.schedule(this::flush, windowMillis, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // 已经关闭，排着的请求都不会再处理了
+                PendingReservation rejected;
+                while ((rejected = pending.poll()) != null) {
+                    rejected.result.completeExceptionally(new IdGetFailException("batching sequence repository closed. bizTag=" + rejected.bizTag, e));
+                }
+            }
+        }
+    }
+
+    /**
+     * 先清掉标记再取队列，清标记之后进来的请求会安排新的一轮，不会漏
+     */
+    private void flush() {
+        flushScheduled.set(false);
+        List<PendingReservation> batch = new ArrayList<>();
+        PendingReservation reservation;
+        while ((reservation = pending.poll()) != null) {
+            batch.add(reservation);
+            if (batch.size() >= maxBatchSize) {
+                reserveBatch(batch);
+                batch = new ArrayList<>();
+            }
+        }
+        if (!batch.isEmpty()) {
+            reserveBatch(batch);
+        }
+    }
+
+    private void reserveBatch(List<PendingReservation> batch) {
+        if (delegate.canMergeReservations()) {
+            reserveMerged(batch);
+            return;
+        }
+        // 每一轮每个bizTag只取一个请求，剩下的留给下一轮
+        List<PendingReservation> remaining = batch;
+        while (!remaining.isEmpty()) {
+            Set<String> bizTags = new HashSet<>(remaining.size() * 2);
+            List<PendingReservation> distinct = new ArrayList<>();
+            List<PendingReservation> rest = new ArrayList<>();
+            for (PendingReservation reservation : remaining) {
+                (bizTags.add(reservation.bizTag) ? distinct : rest).add(reservation);
+            }
+            reserveMerged(distinct);
+            remaining = rest;
+        }
+    }
+
+    private void reserveMerged(List<PendingReservation> batch) {
+        Map<String, Long> incrSizeByBizTag = new HashMap<>(batch.size() * 2);
+        for (PendingReservation reservation : batch) {
+            incrSizeByBizTag.merge(reservation.bizTag, reservation.incrSize, Long::sum);
+        }
+        Map<String, IdSegment> segments;
+        try {
+            segments = delegate.reserveSegments(incrSizeByBizTag);
+            log.debug("batched reservation of {} requests for {} bizTags", batch.size(), incrSizeByBizTag.size());
+        } catch (Exception e) {
+            log.warn("batched reservation fail, size={}", batch.size(), e);
+            for (PendingReservation reservation : batch) {
+                reservation.result.completeExceptionally(e);
+            }
+            return;
+        }
+        // 同一个bizTag在窗口内有多个请求时，合并预留的段按请求顺序切开；
+        // 段比请求的总数短时（比如远程的ID服务只给了一部分），没有分到的请求排到下一个窗口
+        Map<String, Long> nextStart = new HashMap<>(incrSizeByBizTag.size() * 2);
+        for (PendingReservation reservation : batch) {
+            IdSegment segment = segments.get(reservation.bizTag);
+            if (segment == null) {
+                reservation.result.complete(null);
+                continue;
+            }
+            long start = nextStart.getOrDefault(reservation.bizTag, segment.getMinId());
+            long end = Math.min(segment.getMaxId(), start + reservation.incrSize);
+            if (end <= start) {
+                if (!reservation.result.isDone()) {
+                    enqueue(reservation);
+                }
+                continue;
+            }
+            nextStart.put(reservation.bizTag, end);
+            reservation.result.complete(new IdSegment(end, end - start));
+        }
+    }
+
+    /**
+     * 已经排队的请求会在关闭前处理完
+     */
+    @Override
+    public void close() {
+        flusher.shutdown();
+    }
+
+    private static class PendingReservation {
+        private final String bizTag;
+        private final long incrSize;
+        private final CompletableFuture<IdSegment> result = new CompletableFuture<>();
+
+        private PendingReservation(String bizTag, long incrSize) {
+            this.bizTag = bizTag;
+            this.incrSize = incrSize;
+        }
+    }
+}
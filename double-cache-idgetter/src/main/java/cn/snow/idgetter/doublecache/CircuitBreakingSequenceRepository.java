@@ -0,0 +1,209 @@
+package cn.snow.idgetter.doublecache;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 仓库的熔断器
+ * 连续失败或者连续超时（超过slowCallMillis的调用也算失败）达到failureThreshold次后断开，
+ * 断开期间所有调用直接抛IdGetFailException，不再等数据库；
+ * 过了openMillis放一个调用过去试探，成功就恢复，失败继续断开
+ * isAvailable()在断开和试探期间返回false，IdGetter据此决定是等待还是改用时间型的备用生成器
+ *
+ * @author dev
+ */
+@Slf4j
+public class CircuitBreakingSequenceRepository implements ISequenceRepository {
+
+    enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final ISequenceRepository delegate;
+    private final int failureThreshold;
+    private final long slowCallNanos;
+    private final long openNanos;
+
+    private final AtomicReference<State> state = new AtomicReference<>(State.CLOSED);
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private volatile long openUntilNanos;
+
+    public CircuitBreakingSequenceRepository(ISequenceRepository delegate) {
+        this(delegate, 5, 1000L, 5000L);
+    }
+
+    /**
+     * @param delegate
+     * @param failureThreshold 连续失败多少次后断开
+     * @param slowCallMillis   超过这个时间的调用算作失败
+     * @param openMillis       断开多久之后试探
+     */
+    public CircuitBreakingSequenceRepository(ISequenceRepository delegate, int failureThreshold, long slowCallMillis, long openMillis) {
+        this.delegate = delegate;
+        this.failureThreshold = failureThreshold;
+        this.slowCallNanos = slowCallMillis * 1_000_000L;
+        this.openNanos = openMillis * 1_000_000L;
+    }
+
+    @Override
+    public Long getCurrentSequence(String bizTag) {
+        return call(() -> delegate.getCurrentSequence(bizTag));
+    }
+
+    @Override
+    public boolean increaseSequence(String bizTag, long incrSize, Long currentSequence) {
+        return call(() -> delegate.increaseSequence(bizTag, incrSize, currentSequence));
+    }
+
+    @Override
+    public Long reserveSequence(String bizTag, long incrSize) {
+        return call(() -> delegate.reserveSequence(bizTag, incrSize));
+    }
+
+    @Override
+    public Map<String, Long> reserveSequences(Map<String, Long> incrSizeByBizTag) {
+        return call(() -> delegate.reserveSequences(incrSizeByBizTag));
+    }
+
+    @Override
+    public boolean canMergeReservations() {
+        return delegate.canMergeReservations();
+    }
+
+    @Override
+    public IdSegment reserveSegment(String bizTag, long incrSize) {
+        return call(() -> delegate.reserveSegment(bizTag, incrSize));
+    }
+
+    @Override
+    public Map<String, IdSegment> reserveSegments(Map<String, Long> incrSizeByBizTag) {
+        return call(() -> delegate.reserveSegments(incrSizeByBizTag));
+    }
+
+    /**
+     * 和同步调用一样计入失败和慢调用，结束时才算，不在调用方线程里等
+     *
+     * @param bizTag
+     * @param incrSize
+     * @return
+     */
+    @Override
+    public CompletableFuture<IdSegment> reserveSegmentAsync(String bizTag, long incrSize) {
+        CompletableFuture<IdSegment> reserved;
+        long start;
+        try {
+            start = permit();
+        } catch (IdGetFailException e) {
+            reserved = new CompletableFuture<>();
+            reserved.completeExceptionally(e);
+            return reserved;
+        }
+        try {
+            reserved = delegate.reserveSegmentAsync(bizTag, incrSize);
+        } catch (RuntimeException e) {
+            onFailure();
+            reserved = new CompletableFuture<>();
+            reserved.completeExceptionally(e);
+            return reserved;
+        }
+        return reserved.whenComplete((segment, error) -> {
+            if (error != null) {
+                onFailure();
+            } else {
+                onCompleted(start);
+            }
+        });
+    }
+
+    @Override
+    public Long getIncrementSize(String bizTag) {
+        return call(() -> delegate.getIncrementSize(bizTag));
+    }
+
+    @Override
+    public List<String> listActiveBizTags() {
+        return call(delegate::listActiveBizTags);
+    }
+
+    @Override
+    public Long leaseWorkerId(String workerTag, int workerId, Long token, long leaseMillis) {
+        return call(() -> delegate.leaseWorkerId(workerTag, workerId, token, leaseMillis));
+    }
+
+    /**
+     * 断开或者正在试探时返回false，断开时间已经过了、可以试探时返回true
+     *
+     * @return
+     */
+    @Override
+    public boolean isAvailable() {
+        State current = state.get();
+        if (current == State.CLOSED) {
+            return delegate.isAvailable();
+        }
+        return current == State.OPEN && System.nanoTime() - openUntilNanos >= 0;
+    }
+
+    private <T> T call(Supplier<T> supplier) {
+        long start = permit();
+        T result;
+        try {
+            result = supplier.get();
+        } catch (RuntimeException e) {
+            onFailure();
+            throw e;
+        }
+        onCompleted(start);
+        return result;
+    }
+
+    /**
+     * 断开期间或者已经有一个试探的调用时抛IdGetFailException，否则放行
+     *
+     * @return 调用开始的时间
+     */
+    private long permit() {
+        State current = state.get();
+        if (current == State.HALF_OPEN
+                || current == State.OPEN && (System.nanoTime() - openUntilNanos < 0 || !state.compareAndSet(State.OPEN, State.HALF_OPEN))) {
+            throw new IdGetFailException("sequence repository circuit is open");
+        }
+        return System.nanoTime();
+    }
+
+    private void onCompleted(long start) {
+        if (System.nanoTime() - start > slowCallNanos) {
+            onFailure();
+        } else {
+            onSuccess();
+        }
+    }
+
+    private void onSuccess() {
+        consecutiveFailures.set(0);
+        if (state.getAndSet(State.CLOSED) != State.CLOSED) {
+            log.info("sequence repository recovered, circuit closed");
+        }
+    }
+
+    private void onFailure() {
+        int failures = consecutiveFailures.incrementAndGet();
+        State current = state.get();
+        if (current == State.HALF_OPEN || current == State.CLOSED && failures >= failureThreshold) {
+            openUntilNanos = System.nanoTime() + openNanos;
+            if (state.compareAndSet(current, State.OPEN)) {
+                log.warn("sequence repository failed {} times in a row, circuit open for {}ms", failures, openNanos / 1_000_000L);
+            }
+        }
+    }
+
+    State getState() {
+        return state.get();
+    }
+}
@@ -1,12 +1,26 @@
 package cn.snow.idgetter.doublecache;
 
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * ID仓库，两种实现方式选一种：
+ * 1. 实现getCurrentSequence和increaseSequence，预留和租用worker ID用默认实现的读一次再CAS
+ * 2. 只能原子预留的仓库（比如远程的ID服务）覆盖reserveSequence、reserveSegment、reserveSegments和leaseWorkerId，
+ *    不需要实现getCurrentSequence和increaseSequence，它们默认抛UnsupportedOperationException
+ */
 public interface ISequenceRepository {
     /**
      * 获取当前表的最新当前最大值
      * @param bizTag
      * @return
      */
-    Long getCurrentSequence(String bizTag);
+    default Long getCurrentSequence(String bizTag) {
+        throw new UnsupportedOperationException(getClass().getName() + " only reserves ids atomically, use reserveSequence");
+    }
 
     /**
      * 首先这个方法必须有独立的事务，独立提交，不可以和别的事务共享
@@ -17,5 +31,152 @@ public interface ISequenceRepository {
      * @param currentSequence
      * @return
      */
-    boolean increaseSequence(String bizTag, long incrSize, Long currentSequence);
+    default boolean increaseSequence(String bizTag, long incrSize, Long currentSequence) {
+        throw new UnsupportedOperationException(getClass().getName() + " only reserves ids atomically, use reserveSequence");
+    }
+
+    /**
+     * 一次往返原子地预留incrSize个ID，返回预留之后的当前值，也就是新段的maxId
+     * 预留失败（比如没有这个bizTag）返回null
+     * 默认实现还是getCurrentSequence加increaseSequence两次往返，仓库支持的话应该覆盖成一条语句，
+     * 这样既少一次往返，也没有多个节点并发时的CAS失败重试
+     * 和increaseSequence一样，必须有独立的事务
+     * @param bizTag
+     * @param incrSize
+     * @return
+     */
+    default Long reserveSequence(String bizTag, long incrSize) {
+        Long currentSequence = getCurrentSequence(bizTag);
+        if (currentSequence == null || !increaseSequence(bizTag, incrSize, currentSequence)) {
+            return null;
+        }
+        return currentSequence + incrSize;
+    }
+
+    /**
+     * 在一个事务里给多个bizTag各预留一段ID，返回每个bizTag预留之后的当前值
+     * 某个bizTag预留失败就不放进返回值里
+     * 默认实现是逐个调用reserveSequence，仓库支持的话应该覆盖成批量语句
+     * @param incrSizeByBizTag bizTag -> 预留的个数
+     * @return bizTag -> 预留之后的当前值
+     */
+    default Map<String, Long> reserveSequences(Map<String, Long> incrSizeByBizTag) {
+        Map<String, Long> result = new HashMap<>(incrSizeByBizTag.size() * 2);
+        for (Map.Entry<String, Long> entry : incrSizeByBizTag.entrySet()) {
+            Long maxValue = reserveSequence(entry.getKey(), entry.getValue());
+            if (maxValue != null) {
+                result.put(entry.getKey(), maxValue);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 同一个bizTag的几次预留能否合并成一次预留它们的总和，BatchingSequenceRepository据此决定是否合并
+     * 默认可以；每次只能预留固定个数的仓库（比如按sequence步长预留）返回false，同一个bizTag的请求会分开预留
+     * @return
+     */
+    default boolean canMergeReservations() {
+        return true;
+    }
+
+    /**
+     * 预留一段ID，IdGetter加载缓冲区时调用
+     * 默认实现是reserveSequence，返回的段正好是incrSize个ID；
+     * 预留到的ID不一定连续的仓库（比如从远程的ID服务取）可以覆盖它，返回比incrSize短的段，剩下的留到下次
+     * @param bizTag
+     * @param incrSize
+     * @return 预留失败返回null
+     */
+    default IdSegment reserveSegment(String bizTag, long incrSize) {
+        Long maxId = reserveSequence(bizTag, incrSize);
+        return maxId == null ? null : new IdSegment(maxId, incrSize);
+    }
+
+    /**
+     * 在一次往返里给多个bizTag各预留一段ID，BatchingSequenceRepository合并加载请求时调用
+     * 默认实现是reserveSequences，每段正好是请求的个数；覆盖了reserveSegment的仓库也要覆盖它
+     * @param incrSizeByBizTag bizTag -> 预留的个数
+     * @return bizTag -> 预留到的段，预留失败的bizTag不放进返回值里
+     */
+    default Map<String, IdSegment> reserveSegments(Map<String, Long> incrSizeByBizTag) {
+        Map<String, Long> maxValues = reserveSequences(incrSizeByBizTag);
+        Map<String, IdSegment> result = new HashMap<>(maxValues.size() * 2);
+        for (Map.Entry<String, Long> entry : maxValues.entrySet()) {
+            result.put(entry.getKey(), new IdSegment(entry.getValue(), incrSizeByBizTag.get(entry.getKey())));
+        }
+        return result;
+    }
+
+    /**
+     * 异步预留一段ID，IdGetter在调度器的线程里装填空槽位时调用
+     * 默认在调用方线程里执行reserveSegment，返回已经完成的future；
+     * 合并请求的仓库覆盖它，请求排进队列就返回，等待合并期间不占用加载线程
+     * @param bizTag
+     * @param incrSize
+     * @return 预留失败时完成为null
+     */
+    default CompletableFuture<IdSegment> reserveSegmentAsync(String bizTag, long incrSize) {
+        CompletableFuture<IdSegment> result = new CompletableFuture<>();
+        try {
+            result.complete(reserveSegment(bizTag, incrSize));
+        } catch (RuntimeException e) {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    /**
+     * 获取这个表配置的步长，开启自适应步长时作为初始步长
+     * 没有配置就返回null，使用IdGetterConfig里的incrSize
+     * @param bizTag
+     * @return
+     */
+    default Long getIncrementSize(String bizTag) {
+        return null;
+    }
+
+    /**
+     * 租用或者续租一个worker ID，见WorkerIdLease
+     * 每个worker ID是一行，bizTag为workerTag + "_" + workerId，CURRENT_VALUE是租约的过期时间（毫秒）
+     * 过期时间只增不减，最后写入它的节点就是持有者，写入的值就是持有者的凭证：
+     * 续租时拿上一次写入的值做CAS，租约过期后被别的节点接手，续租的CAS就会失败
+     * 默认实现基于getCurrentSequence和increaseSequence，这些行需要事先建好，见sql/mysql_init.sql
+     * @param workerTag
+     * @param workerId
+     * @param token 续租时传上一次返回的凭证，第一次租用传null
+     * @param leaseMillis 租约时长
+     * @return 新的凭证；被别的节点占着没有过期，或者续租时已经被别的节点接手，返回null
+     */
+    default Long leaseWorkerId(String workerTag, int workerId, Long token, long leaseMillis) {
+        String bizTag = workerTag + "_" + workerId;
+        Long expireAt = getCurrentSequence(bizTag);
+        if (expireAt == null) {
+            throw new IdGetFatalException("worker id row not found, bizTag=" + bizTag);
+        }
+        long now = System.currentTimeMillis();
+        if (token == null ? expireAt > now : expireAt.longValue() != token) {
+            return null;
+        }
+        long next = Math.max(now + leaseMillis, expireAt + 1);
+        return increaseSequence(bizTag, next - expireAt, expireAt) ? next : null;
+    }
+
+    /**
+     * 仓库里所有有效的bizTag，IdGetterFactory.warmUp(int)启动时用来预热
+     * 默认返回空，表示仓库不支持列出bizTag，只能预热指定的bizTag
+     * @return
+     */
+    default List<String> listActiveBizTags() {
+        return Collections.emptyList();
+    }
+
+    /**
+     * 仓库现在是否可用，不可用时IdGetter不再等待加载，有备用生成器的bizTag直接改用备用生成器
+     * 默认总是可用，CircuitBreakingSequenceRepository在熔断期间返回false
+     * @return
+     */
+    default boolean isAvailable() {
+        return true;
+    }
 }
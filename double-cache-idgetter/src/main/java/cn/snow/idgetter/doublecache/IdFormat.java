@@ -0,0 +1,184 @@
+package cn.snow.idgetter.doublecache;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * 业务编号的格式，比如ORD20261017000012345：前缀 + 日期 + 补零到固定位数的ID + 可选的校验位
+ * <p>
+ * 1. 前缀和日期拼好的字符放在缓存里，一天只重新生成一次
+ * 2. ID按位除10写进调用方给的char[]，不经过Long、String.format和StringBuilder
+ * 3. 每个编号都是固定的getLength()个字符，ID超过位数时抛IdGetFatalException，不会悄悄变长
+ * 4. 校验位是Luhn算法，对编号里所有的数字计算，前缀里的字母不参与
+ *
+ * @author dev
+ */
+public final class IdFormat {
+
+    private static final int MAX_WIDTH = 19;
+
+    private final String prefix;
+    private final DateTimeFormatter dateFormatter;
+    private final ZoneId zone;
+    private final int width;
+    private final boolean checkDigit;
+    private final int headLength;
+    private final int length;
+    private final ThreadLocal<char[]> scratch;
+    private volatile Head head;
+
+    /**
+     * 按系统时区取日期
+     *
+     * @param prefix      固定的前缀，可以为空字符串
+     * @param datePattern 比如yyyyMMdd，只支持到天，为null时没有日期部分
+     * @param width       ID补零后的位数
+     * @param checkDigit  是否在最后加一位校验位
+     */
+    public IdFormat(String prefix, String datePattern, int width, boolean checkDigit) {
+        this(prefix, datePattern, width, checkDigit, ZoneId.systemDefault());
+    }
+
+    public IdFormat(String prefix, String datePattern, int width, boolean checkDigit, ZoneId zone) {
+        if (width <= 0 || width > MAX_WIDTH) {
+            throw new IllegalArgumentException("width must be in [1, " + MAX_WIDTH + "], width=" + width);
+        }
+        if (datePattern != null) {
+            for (int i = 0; i < datePattern.length(); i++) {
+                char c = datePattern.charAt(i);
+                if (Character.isLetter(c) && "yuMd".indexOf(c) < 0) {
+                    throw new IllegalArgumentException("datePattern only supports y, M and d, datePattern=" + datePattern);
+                }
+            }
+        }
+        this.prefix = prefix;
+        this.dateFormatter = datePattern == null ? null : DateTimeFormatter.ofPattern(datePattern);
+        this.zone = zone;
+        this.width = width;
+        this.checkDigit = checkDigit;
+        Head today = newHead(System.currentTimeMillis());
+        this.headLength = today.chars.length;
+        this.length = headLength + width + (checkDigit ? 1 : 0);
+        this.head = today;
+        this.scratch = ThreadLocal.withInitial(() -> new char[length]);
+    }
+
+    /**
+     * 每个编号的字符数
+     *
+     * @return
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * 把id格式化成编号写进buffer
+     *
+     * @param id
+     * @param buffer
+     * @param offset 从buffer的哪个位置开始写
+     * @return 写完之后的位置，也就是offset + getLength()
+     */
+    public int format(long id, char[] buffer, int offset) {
+        if (id < 0) {
+            throw new IllegalArgumentException("id must not be negative, id=" + id);
+        }
+        char[] chars = head(System.currentTimeMillis()).chars;
+        System.arraycopy(chars, 0, buffer, offset, headLength);
+        int digitsEnd = offset + headLength + width;
+        long value = id;
+        for (int i = digitsEnd - 1; i >= offset + headLength; i--) {
+            buffer[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+        if (value != 0) {
+            throw new IdGetFatalException("id " + id + " exceeds " + width + " digits of the id format");
+        }
+        if (checkDigit) {
+            buffer[digitsEnd] = luhn(buffer, offset, digitsEnd);
+        }
+        return offset + length;
+    }
+
+    /**
+     * 格式化成字符串，除了返回的String不再分配别的对象
+     *
+     * @param id
+     * @return
+     */
+    public String format(long id) {
+        char[] chars = scratch.get();
+        format(id, chars, 0);
+        return new String(chars, 0, length);
+    }
+
+    /**
+     * Luhn校验位，从右往左数，紧挨着校验位的那个数字乘2
+     *
+     * @param buffer
+     * @param from
+     * @param to
+     * @return
+     */
+    private static char luhn(char[] buffer, int from, int to) {
+        int sum = 0;
+        boolean doubled = true;
+        for (int i = to - 1; i >= from; i--) {
+            char c = buffer[i];
+            if (c < '0' || c > '9') {
+                continue;
+            }
+            int digit = c - '0';
+            if (doubled) {
+                digit *= 2;
+                if (digit > 9) {
+                    digit -= 9;
+                }
+            }
+            sum += digit;
+            doubled = !doubled;
+        }
+        return (char) ('0' + (10 - sum % 10) % 10);
+    }
+
+    private Head head(long now) {
+        Head current = head;
+        if (now >= current.fromMillis && now < current.untilMillis) {
+            return current;
+        }
+        Head next = newHead(now);
+        if (next.chars.length != headLength) {
+            throw new IdGetFatalException("length of the formatted date changed, prefix=" + prefix + ", head=" + new String(next.chars));
+        }
+        head = next;
+        return next;
+    }
+
+    private Head newHead(long now) {
+        if (dateFormatter == null) {
+            return new Head(Long.MIN_VALUE, Long.MAX_VALUE, prefix.toCharArray());
+        }
+        LocalDate day = Instant.ofEpochMilli(now).atZone(zone).toLocalDate();
+        return new Head(day.atStartOfDay(zone).toInstant().toEpochMilli(),
+                day.plusDays(1).atStartOfDay(zone).toInstant().toEpochMilli(),
+                (prefix + dateFormatter.format(day)).toCharArray());
+    }
+
+    /**
+     * 某一天的前缀加日期
+     */
+    private static final class Head {
+        private final long fromMillis;
+        private final long untilMillis;
+        private final char[] chars;
+
+        Head(long fromMillis, long untilMillis, char[] chars) {
+            this.fromMillis = fromMillis;
+            this.untilMillis = untilMillis;
+            this.chars = chars;
+        }
+    }
+}
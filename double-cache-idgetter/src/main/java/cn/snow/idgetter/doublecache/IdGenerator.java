@@ -0,0 +1,56 @@
+package cn.snow.idgetter.doublecache;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * 某个bizTag的ID生成器，IdGetterFactory按bizTag的配置创建号段模式的IdGetter或者时间型的SnowflakeIdGetter
+ *
+ * @author dev
+ */
+public interface IdGenerator {
+
+    String getBizTag();
+
+    /**
+     * 获取下一个ID，返回基本类型
+     *
+     * @return
+     */
+    long nextId();
+
+    /**
+     * 获取下一个ID
+     *
+     * @return
+     */
+    default Long getId() {
+        return nextId();
+    }
+
+    /**
+     * 一次获取size个ID
+     *
+     * @param size
+     * @return
+     */
+    long[] getIds(int size);
+
+    /**
+     * 异步获取下一个ID，默认直接在调用线程里取号
+     *
+     * @return
+     */
+    default CompletableFuture<Long> getIdAsync() {
+        return CompletableFuture.completedFuture(nextId());
+    }
+
+    /**
+     * 异步获取size个ID，默认直接在调用线程里取号
+     *
+     * @param size
+     * @return
+     */
+    default CompletableFuture<long[]> getIdsAsync(int size) {
+        return CompletableFuture.completedFuture(getIds(size));
+    }
+}
@@ -0,0 +1,204 @@
+package cn.snow.idgetter.doublecache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * 有上限、会淘汰空闲项的IdGenerator缓存
+ * <p>
+ * 1. 每个key一个Entry，Entry各自加锁创建IdGenerator，一个key创建得慢不会挡住别的key
+ * 2. 创建失败时把Entry删掉，下次再调用时重新创建
+ * 3. 只在放入新key的时候顺便清理：超过上限，或者距离上次清理已经过了一个空闲时间，
+ *    先删掉空闲超过idleMillis的，还超过上限就按最后访问时间从旧到新删到上限的90%
+ * 4. 被淘汰的IdGenerator交给onEvict，缓冲区里没用完的ID就丢掉了
+ * 5. pin过的key不会被淘汰，给拿着IdGetterHandle的调用方用
+ *
+ * @author dev
+ */
+final class IdGeneratorCache {
+
+    /**
+     * 最后访问时间最多每毫秒写一次，热点key上不会每次取号都写共享变量
+     */
+    private static final long TOUCH_INTERVAL_NANOS = 1_000_000L;
+
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final Function<String, IdGenerator> creator;
+    private final Consumer<IdGenerator> onEvict;
+    private final int maxSize;
+    private final long idleNanos;
+    private volatile long lastSweepNanos = System.nanoTime();
+
+    /**
+     * @param creator   创建key对应的IdGenerator
+     * @param onEvict   IdGenerator被淘汰之后调用
+     * @param maxSize   最多缓存多少个
+     * @param idleMillis 多久没有访问就淘汰，小于等于0表示不按空闲时间淘汰
+     */
+    IdGeneratorCache(Function<String, IdGenerator> creator, Consumer<IdGenerator> onEvict, int maxSize, long idleMillis) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize must be positive, maxSize=" + maxSize);
+        }
+        this.creator = creator;
+        this.onEvict = onEvict;
+        this.maxSize = maxSize;
+        this.idleNanos = idleMillis <= 0 ? Long.MAX_VALUE : idleMillis * 1_000_000L;
+    }
+
+    IdGenerator get(String key) {
+        return entry(key).get();
+    }
+
+    /**
+     * 和get一样，之后这个key不会再被淘汰
+     *
+     * @param key
+     * @return
+     */
+    IdGenerator pin(String key) {
+        Entry entry = entry(key);
+        IdGenerator generator = entry.get();
+        boolean present;
+        // 淘汰也在这把锁里，pin和淘汰不会交错
+        synchronized (this) {
+            entry.pinned = true;
+            present = entries.get(key) == entry;
+        }
+        // pin之前刚好被淘汰了，重新放进去
+        return present ? generator : pin(key);
+    }
+
+    private Entry entry(String key) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            Entry created = new Entry(key);
+            entry = entries.putIfAbsent(key, created);
+            if (entry == null) {
+                entry = created;
+                evictIfNeeded();
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * 已经创建好的IdGenerator，不会触发创建
+     *
+     * @param key
+     * @return
+     */
+    IdGenerator getIfPresent(String key) {
+        Entry entry = entries.get(key);
+        return entry == null ? null : entry.generator;
+    }
+
+    /**
+     * 所有已经创建好的IdGenerator
+     *
+     * @return
+     */
+    List<IdGenerator> values() {
+        List<IdGenerator> generators = new ArrayList<>(entries.size());
+        for (Entry entry : entries.values()) {
+            IdGenerator generator = entry.generator;
+            if (generator != null) {
+                generators.add(generator);
+            }
+        }
+        return generators;
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    /**
+     * 删掉所有的key，包括pin过的，返回已经创建好的IdGenerator，不调用onEvict
+     *
+     * @return
+     */
+    synchronized List<IdGenerator> clear() {
+        List<IdGenerator> generators = new ArrayList<>(entries.size());
+        for (Entry entry : entries.values()) {
+            IdGenerator generator = entry.generator;
+            if (entries.remove(entry.key, entry) && generator != null) {
+                generators.add(generator);
+            }
+        }
+        return generators;
+    }
+
+    private void evictIfNeeded() {
+        long now = System.nanoTime();
+        if (entries.size() <= maxSize && (idleNanos == Long.MAX_VALUE || now - lastSweepNanos < idleNanos)) {
+            return;
+        }
+        synchronized (this) {
+            lastSweepNanos = now;
+            if (idleNanos != Long.MAX_VALUE) {
+                for (Entry entry : entries.values()) {
+                    if (now - entry.lastAccessNanos > idleNanos) {
+                        evict(entry);
+                    }
+                }
+            }
+            if (entries.size() <= maxSize) {
+                return;
+            }
+            List<Entry> byAccess = new ArrayList<>(entries.values());
+            byAccess.sort((a, b) -> Long.compare(a.lastAccessNanos - now, b.lastAccessNanos - now));
+            int target = Math.max(1, maxSize - maxSize / 10);
+            for (int i = 0; i < byAccess.size() && entries.size() > target; i++) {
+                evict(byAccess.get(i));
+            }
+        }
+    }
+
+    /**
+     * 还在创建中的和pin过的不淘汰
+     *
+     * @param entry
+     */
+    private void evict(Entry entry) {
+        IdGenerator generator = entry.generator;
+        if (generator != null && !entry.pinned && entries.remove(entry.key, entry)) {
+            onEvict.accept(generator);
+        }
+    }
+
+    private final class Entry {
+        private final String key;
+        private volatile IdGenerator generator;
+        private volatile long lastAccessNanos = System.nanoTime();
+        private volatile boolean pinned;
+
+        Entry(String key) {
+            this.key = key;
+        }
+
+        IdGenerator get() {
+            long now = System.nanoTime();
+            if (now - lastAccessNanos > TOUCH_INTERVAL_NANOS) {
+                lastAccessNanos = now;
+            }
+            IdGenerator existing = generator;
+            if (existing != null) {
+                return existing;
+            }
+            synchronized (this) {
+                if (generator == null) {
+                    try {
+                        generator = creator.apply(key);
+                    } catch (RuntimeException e) {
+                        entries.remove(key, this);
+                        throw e;
+                    }
+                }
+                return generator;
+            }
+        }
+    }
+}
@@ -1,13 +1,16 @@
 package cn.snow.idgetter.doublecache;
 
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.FutureTask;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
-import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.concurrent.locks.ReentrantLock;
 
 import lombok.Getter;
@@ -20,24 +23,38 @@ import lombok.extern.slf4j.Slf4j;
  * @author dev
  */
 @Slf4j
-public class IdGetter {
+public class IdGetter implements IdGenerator, AutoCloseable {
     /**
-     * 为这个表的ID准备两个ID备用池，互为主备。
+     * 计算每秒发出的ID个数时保留最近几次切换段的采样
+     */
+    private static final int RATE_SAMPLES = 8;
+    /**
+     * 每秒发出的ID个数按最近多久的采样计算
+     */
+    private static final long RATE_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(60);
+    /**
+     * 为这个表的ID准备的环形缓冲区，默认两个槽位，也就是互为主备的双缓存。
      * 这个对象也是IdGetter这个类的最重要的操作对象
-     * 双缓存
      */
     private final AtomicReferenceArray<IdSegment> segment;
     /**
-     * 锁，为了保证一个实例一把锁
+     * 当前正在使用的段的序号，只增不减，槽位是序号对环的大小取模
+     * 切换缓冲区就是对它做一次CAS加一
      */
-    private final ReentrantLock lock;
+    private final AtomicLong segmentIndex = new AtomicLong();
+    /**
+     * 已经装填好的最后一个段的序号，大于segmentIndex的部分就是已经准备好的备用缓冲区
+     */
+    private volatile long filledIndex;
     /**
-     * 异步加载第二个缓存的异步任务
+     * 锁，为了保证一个实例一把锁
+     * 取号和切换的快速路径不拿这把锁，只有加载缓冲区和备用缓冲区没准备好时才用
      */
-    private AtomicReference<FutureTask<Boolean>> asyncLoadSegmentTask;
+    private final ReentrantLock lock;
     /**
      * 表名
      */
+    @Getter
     private final String bizTag;
     /**
      * 每次拿取的id的数量
@@ -47,24 +64,118 @@ public class IdGetter {
     /**
      * 是异步加载第二个缓存吗？ true=异步 false=同步
      */
-    private boolean asyncLoadingSegment;
+    private final boolean asyncLoadingSegment;
     /**
      * id仓库
      */
     @Getter
     private final ISequenceRepository sequenceRepository;
     /**
-     * 如果asyncLoadingSegment=true，则需要设置这一项
+     * 如果asyncLoadingSegment=true，则需要设置这一项，同一个IdGetter同时只会有一个加载任务
+     */
+    private final RefillScheduler refillScheduler;
+    /**
+     * 自适应步长时的当前步长，0表示还没有确定初始步长
+     */
+    private volatile long currentStep;
+    /**
+     * 最近用完的一个段的步长和从开始使用到用完的耗时，自适应步长按它估算一个段能用多久
+     * 步长为0表示还没有用完过段
+     */
+    private volatile long lastDrainedStep;
+    private volatile long lastDrainNanos;
+    /**
+     * 当前段开始使用的时间
+     */
+    private volatile long currentSegmentSinceNanos;
+    /**
+     * 平滑后的消耗速度，单位是每纳秒的ID个数
+     */
+    private volatile double consumeRatePerNano;
+    /**
+     * 平滑后的加载一个段的耗时，包含重试
+     */
+    private volatile double loadLatencyNanos;
+    /**
+     * 切换缓冲区的次数
+     */
+    private final LongAdder switchCount = new LongAdder();
+    /**
+     * 切换时备用缓冲区还没准备好、调用方不得不等待的次数
+     */
+    private final LongAdder switchWaitCount = new LongAdder();
+    /**
+     * 已经用完的段的ID总数，加上当前段已经发出的就是发出去的ID总数，取号路径上不用额外计数
+     */
+    private final LongAdder servedInPastSegments = new LongAdder();
+    /**
+     * 调用线程阻塞等待备用缓冲区的耗时
+     */
+    private final LatencyHistogram stallLatency = new LatencyHistogram();
+    /**
+     * 从仓库成功加载一个段的耗时
+     */
+    private final LatencyHistogram refillLatency = new LatencyHistogram();
+    private final LongAdder refillFailures = new LongAdder();
+    /**
+     * 仓库返回null的次数
+     */
+    private final LongAdder casFailures = new LongAdder();
+    /**
+     * 因为环已满被丢掉的ID个数
+     */
+    private final LongAdder wastedIds = new LongAdder();
+    /**
+     * 备用生成器发出的ID个数
+     */
+    private final LongAdder fallbackIds = new LongAdder();
+    private final long createdNanos = System.nanoTime();
+    /**
+     * 最近几次切换段时的{时间, 已经发出的ID总数}，用来计算每秒发出的ID个数，只在切换段时写，取指标只读
+     */
+    private final AtomicReferenceArray<long[]> rateSamples = new AtomicReferenceArray<>(RATE_SAMPLES);
+    private final AtomicLong rateSampleCount = new AtomicLong();
+    /**
+     * 可选配置
+     */
+    @Getter
+    private final IdGetterConfig config;
+    /**
+     * 段的生命周期事件，按配置限速输出
+     */
+    private final SegmentTracer tracer;
+    /**
+     * 本地号段日志里这个bizTag的槽位，没有开启日志时为null
+     */
+    private final RangeJournal.Slot journalSlot;
+    /**
+     * 已经提交了往前推号段日志的任务，还没有执行完
+     */
+    private final AtomicBoolean journalPushing = new AtomicBoolean();
+    /**
+     * 线程本地号段的大小，0表示不开启
+     */
+    private final int localRangeSize;
+    /**
+     * 每个线程从当前段一次领走localRangeSize个ID，之后在自己的号段里取号，不写共享变量
+     */
+    private final ThreadLocal<LocalRange> localRange;
+    /**
+     * 所有线程的本地号段，用来找出已经结束的线程留下的号段
+     */
+    private final ConcurrentLinkedQueue<LocalRange> localRanges = new ConcurrentLinkedQueue<>();
+    /**
+     * 已经结束的线程没用完的号段(next, limit]，领号段时优先从这里拿
      */
-    private ExecutorService taskExecutor;
+    private final ConcurrentLinkedQueue<long[]> orphanedRanges = new ConcurrentLinkedQueue<>();
     /**
-     * 双缓存切换，是否需要切换缓冲区
+     * 仓库不可用并且备用缓冲区用完时使用的时间型生成器，没有开启fallbackToTimeBased或者租用worker ID失败时为null
      */
-    private volatile boolean segmentChanged;
+    private final SnowflakeIdGetter fallback;
     /**
-     * 当前的ID
+     * 备用生成器是不是自己创建的，自己创建的才在close时停止续租
      */
-    private AtomicLong currentId;
+    private final boolean ownsFallback;
 
     /**
      * 同步加载第二个缓冲器
@@ -74,13 +185,7 @@ public class IdGetter {
      * @param sequenceRepository
      */
     public IdGetter(String tableName, Long increaseIdSize, ISequenceRepository sequenceRepository) {
-        asyncLoadingSegment = false;
-        segment = new AtomicReferenceArray<>(2);
-        bizTag = tableName;
-        incrSize = increaseIdSize == null ? 5000L : increaseIdSize;
-        this.sequenceRepository = sequenceRepository;
-        lock = new ReentrantLock();
-        init();
+        this(tableName, sequenceRepository, (RefillScheduler) null, new IdGetterConfig().setIncrSize(increaseIdSize == null ? 5000L : increaseIdSize));
     }
 
     /**
@@ -92,243 +197,949 @@ public class IdGetter {
      * @param taskExecutor
      */
     public IdGetter(String tableName, Long increaseIdSize, ISequenceRepository sequenceRepository, ExecutorService taskExecutor) {
-        this(tableName, increaseIdSize, sequenceRepository);
-        asyncLoadingSegment = true;
-        this.taskExecutor = taskExecutor;
-        asyncLoadSegmentTask = new AtomicReference<>();
-        init();
+        this(tableName, sequenceRepository, taskExecutor, new IdGetterConfig().setIncrSize(increaseIdSize == null ? 5000L : increaseIdSize));
+    }
+
+    /**
+     * 按配置创建，taskExecutor为null时同步加载备用缓冲区，否则异步加载
+     *
+     * @param tableName
+     * @param sequenceRepository
+     * @param taskExecutor
+     * @param config
+     */
+    public IdGetter(String tableName, ISequenceRepository sequenceRepository, ExecutorService taskExecutor, IdGetterConfig config) {
+        this(tableName, sequenceRepository, taskExecutor == null ? null : new RefillScheduler(taskExecutor), config);
+    }
+
+    /**
+     * 按配置创建，refillScheduler为null时同步加载备用缓冲区，否则交给调度器异步加载
+     *
+     * @param tableName
+     * @param sequenceRepository
+     * @param refillScheduler
+     * @param config
+     */
+    public IdGetter(String tableName, ISequenceRepository sequenceRepository, RefillScheduler refillScheduler, IdGetterConfig config) {
+        this(tableName, sequenceRepository, refillScheduler, config,
+                config.isFallbackToTimeBased() ? createFallback(tableName, sequenceRepository, refillScheduler, config) : null, true);
+    }
+
+    /**
+     * 使用别人创建的备用生成器，IdGetterFactory里所有bizTag共用一个
+     *
+     * @param tableName
+     * @param sequenceRepository
+     * @param refillScheduler
+     * @param config
+     * @param fallback 备用生成器，不需要时传null
+     */
+    IdGetter(String tableName, ISequenceRepository sequenceRepository, RefillScheduler refillScheduler, IdGetterConfig config,
+             SnowflakeIdGetter fallback) {
+        this(tableName, sequenceRepository, refillScheduler, config, fallback, false);
+    }
+
+    private IdGetter(String tableName, ISequenceRepository sequenceRepository, RefillScheduler refillScheduler, IdGetterConfig config,
+                     SnowflakeIdGetter fallback, boolean ownsFallback) {
+        if (config.getSegmentCount() < 2) {
+            throw new IllegalArgumentException("segmentCount must be at least 2, segmentCount=" + config.getSegmentCount());
+        }
+        asyncLoadingSegment = refillScheduler != null;
+        segment = new AtomicReferenceArray<>(config.getSegmentCount());
+        bizTag = tableName;
+        this.config = config;
+        incrSize = config.getIncrSize();
+        this.sequenceRepository = sequenceRepository;
+        this.refillScheduler = refillScheduler;
+        tracer = new SegmentTracer(tableName, config.getTraceEventsPerSecond());
+        localRangeSize = config.getThreadLocalRangeSize();
+        journalSlot = config.getRangeJournal() == null ? null : config.getRangeJournal().slot(tableName);
+        localRange = localRangeSize > 0 ? ThreadLocal.withInitial(this::newLocalRange) : null;
+        lock = new ReentrantLock();
+        this.fallback = fallback;
+        this.ownsFallback = ownsFallback;
+        try {
+            init();
+        } catch (RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * 不再使用时释放号段日志的槽位，之后同一个bizTag可以创建新的IdGetter，这个IdGetter取号越过日志记录的位置时会失败
+     * IdGetterFactory淘汰IdGetter时调用
+     */
+    void release() {
+        if (journalSlot != null) {
+            journalSlot.release();
+        }
+    }
+
+    /**
+     * 单独创建的IdGetter不再使用时调用，释放号段日志的槽位，自己创建的备用生成器停止续租worker ID
+     * IdGetterFactory创建的IdGetter由工厂的close统一关闭
+     */
+    @Override
+    public void close() {
+        release();
+        if (ownsFallback && fallback != null) {
+            fallback.close();
+        }
+    }
+
+    /**
+     * 趁仓库可用的时候先把备用生成器的worker ID租好，真正需要它的时候仓库已经访问不了了
+     *
+     * @return
+     */
+    private static SnowflakeIdGetter createFallback(String bizTag, ISequenceRepository sequenceRepository,
+                                                   RefillScheduler refillScheduler, IdGetterConfig config) {
+        try {
+            WorkerIdLease lease = new WorkerIdLease(sequenceRepository, config,
+                    refillScheduler != null ? refillScheduler : RefillScheduler.shared());
+            return new SnowflakeIdGetter(bizTag, lease, true, config, true);
+        } catch (RuntimeException e) {
+            log.warn("create time based fallback of {} fail, it will wait for the repository when unavailable", bizTag, e);
+            return null;
+        }
+    }
+
+    /**
+     * 仓库不可用并且有备用生成器，这时不再等待加载
+     *
+     * @return
+     */
+    private boolean fallbackActive() {
+        return fallback != null && !sequenceRepository.isAvailable();
+    }
+
+    /**
+     * 从备用生成器取一个ID
+     *
+     * @return
+     */
+    private long fallbackId() {
+        fallbackIds.increment();
+        tracer.trace(SegmentTracer.Event.FALLBACK, null, 1L);
+        return fallback.nextId();
     }
 
     /**
      * 读取当前最大值，然后填充缓冲区，并初始化递增ID值
      */
     public void init() {
-        segment.set(0, loadOtherSegment(bizTag));
-        setSegmentChanged(false);
-        currentId = new AtomicLong(segment.get(currentSegmentIndex()).getMinId());
+        IdSegment first = restoreFromJournal();
+        if (first == null) {
+            first = loadOtherSegment(bizTag);
+        }
+        first = first.withPrefetchDistance(prefetchDistance());
+        long index = segmentIndex.get();
+        segment.set(slot(index), first);
+        filledIndex = index;
+        currentSegmentSinceNanos = System.nanoTime();
+    }
+
+    /**
+     * 从本地号段日志里恢复上次没用完的段，不访问仓库
+     *
+     * @return 没有开启日志或者没有可用的部分时返回null
+     */
+    private IdSegment restoreFromJournal() {
+        if (journalSlot == null) {
+            return null;
+        }
+        long[] remainder = journalSlot.restore();
+        if (remainder == null) {
+            return null;
+        }
+        log.info("restore id segment of {} from range journal, range=({},{}]", bizTag, remainder[0], remainder[1]);
+        return new IdSegment(remainder[1], remainder[1] - remainder[0]);
+    }
+
+    /**
+     * 在ID返回给调用方之前确认它不超过号段日志里已经刷盘的limit
+     * 异步模式下取号进入limit前的最后一块时交给加载线程把limit往后推，只有越过limit时才在调用方线程里刷盘
+     * 没有开启日志时只是一次null判断
+     *
+     * @param current 取号的段
+     * @param id      这次要发出去的最大的ID
+     */
+    private void journal(IdSegment current, long id) {
+        if (journalSlot == null) {
+            return;
+        }
+        long limit = current.getJournalLimit();
+        if (id > limit) {
+            checkpoint(current, id);
+        } else if (asyncLoadingSegment && id > limit - config.getJournalChunkSize() && journalPushing.compareAndSet(false, true)) {
+            refillScheduler.submit(journalSlot, this::pushJournal);
+        }
+    }
+
+    /**
+     * 取号越过了已经刷盘的limit，在调用方线程里推进，推完才能返回ID
+     *
+     * @param current
+     * @param id
+     */
+    private void checkpoint(IdSegment current, long id) {
+        synchronized (journalSlot) {
+            if (id > current.getJournalLimit()) {
+                extendJournal(current, id);
+            }
+        }
     }
 
-    private boolean isSegmentChanged() {
-        return segmentChanged;
+    /**
+     * 在加载线程里把当前段的limit往后推一块，当前段已经全部记录时先把下一个段记上，切换之后第一次取号不用等刷盘
+     *
+     * @return
+     */
+    private Boolean pushJournal() {
+        try {
+            synchronized (journalSlot) {
+                long index = segmentIndex.get();
+                IdSegment current = segment.get(slot(index));
+                extendJournal(current, current.getJournalLimit());
+                if (current.getJournalLimit() >= current.getMaxId() && filledIndex > index) {
+                    IdSegment next = segment.get(slot(index + 1));
+                    if (next.getMaxId() > current.getMaxId() && next.getJournalLimit() == next.getMinId()) {
+                        extendJournal(next, next.getMinId());
+                    }
+                }
+            }
+            return Boolean.TRUE;
+        } finally {
+            journalPushing.set(false);
+        }
     }
 
-    private void setSegmentChanged(boolean isSegmentChanged) {
-        segmentChanged = isSegmentChanged;
+    /**
+     * 把日志里的limit推到id之后一块，需要持有journalSlot
+     * 已经被换掉的旧段不再写日志，日志里记录的新段比它大，重启后不会用到旧段
+     *
+     * @param current
+     * @param id
+     */
+    private void extendJournal(IdSegment current, long id) {
+        long limit = current.getJournalLimit();
+        if (limit >= current.getMaxId()) {
+            return;
+        }
+        if (journalSlot.getMaxId() > current.getMaxId()) {
+            current.setJournalLimit(current.getMaxId());
+            return;
+        }
+        long newLimit = Math.min(current.getMaxId(), Math.max(id, limit) + config.getJournalChunkSize());
+        journalSlot.record(current.getMinId(), current.getMaxId(), newLimit);
+        current.setJournalLimit(newLimit);
     }
 
     /**
-     * 异步获取数据装填缓冲区，主要是装填备用缓冲区
+     * 序号对应的槽位
      *
+     * @param index
      * @return
      */
-    private Long asyncGetId() {
+    private int slot(long index) {
+        return (int) (index % segment.length());
+    }
+
+    /**
+     * 当前段用到了需要加载备用缓冲区的位置，只有抢到触发权的线程才会进来
+     * 异步模式只是提交加载任务，同步模式则在锁内等待加载完成
+     *
+     * @param current 触发加载的段
+     */
+    private void triggerLoadOtherSegment(IdSegment current) {
+        if (!current.tryTriggerLoad()) {
+            return;
+        }
         lock.lock();
         try {
-            //当前缓冲区使用超过50%，则需要加载另一个缓冲区, 不同之处在于加载另一个缓冲区是异步完成
-            if (needLoadOtherSegment() && asyncLoadSegmentTask.get() == null) {
+            if (current != currentSegment()) {
+                // 拿到的是已经被换掉的槽位里的段，把触发权还回去，等它真正成为当前段时再触发
+                current.resetTriggerLoad();
+                return;
+            }
+            if (asyncLoadingSegment) {
                 asyncLoadOtherSegment();
+            } else {
+                syncLoadOtherSegment();
+            }
+        } catch (RuntimeException e) {
+            current.resetTriggerLoad();
+            throw e;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 当前段已经用完，切换到下一个段
+     * 下一个段已经准备好时只是CAS推进序号，不加锁；没准备好才在锁内等待加载
+     * 如果别的线程已经切换过了就直接返回，调用方回到快速路径重新取号
+     * 仓库不可用并且有备用生成器时不等待，返回false
+     *
+     * @param index     已经用完的段的序号
+     * @param exhausted 已经用完的段
+     * @return false表示调用方应该从备用生成器取号
+     */
+    private boolean switchOtherSegment(long index, IdSegment exhausted) {
+        if (filledIndex > index) {
+            advanceSegment(index, exhausted);
+            return true;
+        }
+        if (fallbackActive()) {
+            return false;
+        }
+        lock.lock();
+        try {
+            if (segmentIndex.get() != index) {
+                return true;
             }
-            //当前缓冲区使用量达100%，切换到另一个缓冲区。
-            if (needSwitchToOtherSegment()) {
-                asyncSwitchOtherSegment();
+            if (!isOtherSegmentEmpty()) {
+                advanceSegment(index, exhausted);
+                return true;
+            }
+            switchWaitCount.increment();
+            long waitStart = System.nanoTime();
+            try {
+                return asyncLoadingSegment ? asyncSwitchOtherSegment(index, exhausted) : syncSwitchOtherSegment(index, exhausted);
+            } finally {
+                long waitMicros = (System.nanoTime() - waitStart) / 1000;
+                stallLatency.record(waitMicros);
+                tracer.trace(SegmentTracer.Event.WAITED, exhausted, waitMicros);
             }
-            return currentId.incrementAndGet();
         } finally {
             lock.unlock();
         }
     }
 
+    /**
+     * 把序号从index推进到index+1，只有一个线程能成功，成功的线程顺便用刚用完的段更新消耗速度
+     *
+     * @param index     已经用完的段的序号
+     * @param exhausted 已经用完的段
+     */
+    private void advanceSegment(long index, IdSegment exhausted) {
+        long now = System.nanoTime();
+        if (!segmentIndex.compareAndSet(index, index + 1)) {
+            return;
+        }
+        long elapsed = Math.max(1L, now - currentSegmentSinceNanos);
+        consumeRatePerNano = smooth(consumeRatePerNano, (double) exhausted.getStep() / elapsed);
+        lastDrainNanos = elapsed;
+        lastDrainedStep = exhausted.getStep();
+        currentSegmentSinceNanos = now;
+        servedInPastSegments.add(exhausted.getStep());
+        switchCount.increment();
+        rateSamples.set((int) (rateSampleCount.getAndIncrement() % RATE_SAMPLES), new long[]{now, servedInPastSegments.sum()});
+        tracer.trace(SegmentTracer.Event.SWITCHED, exhausted, index + 1);
+    }
+
     /**
      * 异步切换到备用缓冲区
      * 切换之前得确保填充备用缓冲区的动作已经完成且装填成功
      */
-    private void asyncSwitchOtherSegment() {
-        if (needSwitchToOtherSegment()) {
-            boolean isLoadingSuccess;
-            try {
-                isLoadingSuccess = (asyncLoadSegmentTask.get() == null || asyncLoadSegmentTask.get().get(1500, TimeUnit.MILLISECONDS));
-                // 确保另一个缓冲区已加载结束
-                if (isLoadingSuccess) {
-                    setSegmentChanged(!isSegmentChanged());
-                    currentId = new AtomicLong(segment.get(currentSegmentIndex()).getMinId());
-                    asyncLoadSegmentTask.set(null);
-                }
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-                log.warn("get the asyncLoadSegmentTask result InterruptedException fail", e);
-                isLoadingSuccess = false;
-                asyncLoadSegmentTask.set(null);
-            } catch (ExecutionException e) {
-                log.warn("get the asyncLoadSegmentTask result ExecutionException fail", e);
-                isLoadingSuccess = false;
-                asyncLoadSegmentTask.set(null);
-            } catch (TimeoutException e) {
-                log.warn("get the asyncLoadSegmentTask result TimeoutException fail", e);
-                isLoadingSuccess = false;
-                asyncLoadSegmentTask.get().cancel(false);
-                asyncLoadSegmentTask.set(null);
-            }
-            //如果备用缓冲区没有装填成功，那么就只能是无限循环，直到主缓冲区装填完毕
-            if (!isLoadingSuccess) {
-                doUntilFillOtherSegmentSuccess();
-                setSegmentChanged(!isSegmentChanged());
-                currentId = new AtomicLong(segment.get(currentSegmentIndex()).getMinId());
+    private boolean asyncSwitchOtherSegment(long index, IdSegment exhausted) {
+        boolean isLoadingSuccess;
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(1500);
+        try {
+            // 加载任务可能刚好在段用完之前判断环已满而结束，所以要一直等到备用缓冲区真的装上
+            // 已经有加载任务在跑时调度器直接返回那个任务，不会重复加载
+            while (isOtherSegmentEmpty() && !fallbackActive()) {
+                refillScheduler.submitAsync(this, this::fillFreeSlots).get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
             }
+            // 确保另一个缓冲区已加载结束，仓库不可用而提前结束时交给下面判断是否改用备用生成器
+            isLoadingSuccess = !isOtherSegmentEmpty();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IdGetFailException("wait for the other segment of " + bizTag + " interrupted", e);
+        } catch (ExecutionException e) {
+            log.warn("get the async load segment result ExecutionException fail", e);
+            isLoadingSuccess = false;
+        } catch (TimeoutException e) {
+            log.warn("get the async load segment result TimeoutException fail", e);
+            isLoadingSuccess = false;
+        }
+        //如果备用缓冲区没有装填成功，就交给调度器退避重试，直到备用缓冲区装填完毕或者超过重试次数
+        if (!isLoadingSuccess && !doUntilFillOtherSegmentSuccess()) {
+            return false;
         }
+        advanceSegment(index, exhausted);
+        return true;
     }
 
-    private void doUntilFillOtherSegmentSuccess() {
+    /**
+     * 在调度器的线程里加载备用缓冲区，失败按退避时间重试，调用方只是等待结果
+     * 调度器里已经有这个IdGetter的任务时直接等那个任务，等它失败了再提交一次带重试的
+     * 每等一小段时间检查一次仓库是否可用，不可用时不再等退避重试结束
+     *
+     * @return false表示仓库不可用，调用方应该从备用生成器取号
+     */
+    private boolean doUntilFillOtherSegmentSuccess() {
         int tryTime = 0;
         while (isOtherSegmentEmpty()) {
-            if (tryTime++ > 50) {
-                throw new IdGetFatalException("try to fill Other segment fail over limit.....");
+            if (!sequenceRepository.isAvailable()) {
+                if (fallback != null) {
+                    return false;
+                }
+                throw new IdGetFailException("sequence repository of " + bizTag + " is unavailable");
             }
             try {
-                IdGetterThreadPool.delayExecutePool().schedule(()->{
-                    try {
-                        segment.set(otherSegmentIndex(), loadOtherSegment(bizTag));
-                    } catch (IdGetFailException e) {
-                        log.warn("The IdGetFailException can be retry until the other segment full", e);
-                        try {
-                            Thread.sleep(1000);
-                        } catch (InterruptedException interruptedException) {
-                            log.warn("doUntilFillOtherSegmentSuccess sleep InterruptedException", e);
-                            Thread.currentThread().interrupt();
-                        }
-                    }
-                }, 1000, TimeUnit.MILLISECONDS).get();
+                refillWithRetry().get(100, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                // 重试任务还在跑，同一个IdGetter下一轮拿到的还是这个任务
             } catch (InterruptedException e) {
                 Thread.currentThread().interrupt();
+                throw new IdGetFailException("wait for the other segment of " + bizTag + " interrupted", e);
             } catch (ExecutionException e) {
-                throw new IdGetFailException("load id segment fail", e);
+                if (++tryTime >= 2) {
+                    throw new IdGetFatalException("try to fill Other segment fail over limit.....", e.getCause());
+                }
+                log.warn("The IdGetFailException can be retry until the other segment full", e.getCause());
             }
-
         }
+        return true;
+    }
+
+    /**
+     * 提交一个带退避重试的加载任务
+     *
+     * @return
+     */
+    private CompletableFuture<Boolean> refillWithRetry() {
+        return scheduler().submitAsyncWithRetry(this, this::fillFreeSlots, config.getRefillMaxAttempts());
+    }
+
+    /**
+     * 同步模式没有自己的调度器，需要在别的线程里加载时用共享的
+     *
+     * @return
+     */
+    private RefillScheduler scheduler() {
+        return refillScheduler != null ? refillScheduler : RefillScheduler.shared();
     }
 
     /**
      * 异步装填备用缓冲区
-     * 将更新数据库的任务设置为异步
+     * 把更新数据库的任务交给调度器，任务会把环里空出来的槽位都装满
      */
     private void asyncLoadOtherSegment() {
-        if (needLoadOtherSegment()) {
-            FutureTask<Boolean> f = new FutureTask<>(() -> {
-                segment.set(otherSegmentIndex(), loadOtherSegment(bizTag));
-                return true;
-            });
-            asyncLoadSegmentTask.set(f);
-            taskExecutor.submit(f);
+        if (hasFreeSlot()) {
+            refillScheduler.submitAsync(this, this::fillFreeSlots);
+        }
+    }
+
+    /**
+     * 依次加载段，直到环里没有空槽位
+     * 等仓库的期间不占用调度器的线程，每一段加载完之后回到调度器的线程里装填下一段
+     */
+    private CompletableFuture<Boolean> fillFreeSlots() {
+        reclaimLocalRanges();
+        return fillNextFreeSlot();
+    }
+
+    private CompletableFuture<Boolean> fillNextFreeSlot() {
+        if (!hasFreeSlot()) {
+            return CompletableFuture.completedFuture(true);
+        }
+        return loadSegmentAsync(bizTag).thenComposeAsync(loaded -> {
+            publishOtherSegment(loaded);
+            return fillNextFreeSlot();
+        }, scheduler().executor());
+    }
+
+    /**
+     * 把新加载的段放进下一个空槽位，放进去之前先按当前的提前量确定加载位置
+     * 环已经满了的话这个段只能丢掉
+     *
+     * @param loaded
+     */
+    private void publishOtherSegment(IdSegment loaded) {
+        IdSegment newSegment = loaded.withPrefetchDistance(prefetchDistance());
+        synchronized (segment) {
+            if (!hasFreeSlot()) {
+                wastedIds.add(newSegment.getStep());
+                log.warn("segment ring of {} is full, drop the loaded segment={}", bizTag, newSegment);
+                return;
+            }
+            long index = filledIndex + 1;
+            segment.set(slot(index), newSegment);
+            filledIndex = index;
         }
     }
 
     /**
      * 判断备用缓冲区是否需要装填
-     * 如果备用缓冲区的初始值还比主缓冲区的初始值小，那就是没更新，也需要更新了
+     * 当前段之后没有已经装填好的段，就是空的
      *
      * @return
      */
     private boolean isOtherSegmentEmpty() {
-        if (segment.get(otherSegmentIndex()) == null) {
+        return filledIndex <= segmentIndex.get();
+    }
+
+    /**
+     * 环里是否还有空槽位，当前段占一个，其余的都装填好了就是满了
+     *
+     * @return
+     */
+    private boolean hasFreeSlot() {
+        return filledIndex - segmentIndex.get() < segment.length() - 1;
+    }
+
+    /**
+     * 同步切换备用缓冲区
+     */
+    private boolean syncSwitchOtherSegment(long index, IdSegment exhausted) {
+        // 如果另一个缓冲区也是空的，就不得不加载,直到成功
+        if (!doUntilFillOtherSegmentSuccess()) {
+            return false;
+        }
+        // 确保另一个缓冲区已加载后，切换缓冲区到另一个
+        advanceSegment(index, exhausted);
+        return true;
+    }
+
+    /**
+     * 同步加载备用缓冲区
+     */
+    private void syncLoadOtherSegment() {
+        // 使用超过加载位置，并且还有空槽位，就进行加载；仓库不可用时留到切换的时候再处理
+        reclaimLocalRanges();
+        while (hasFreeSlot() && sequenceRepository.isAvailable()) {
+            try {
+                publishOtherSegment(loadOtherSegment(bizTag));
+            } catch (IdGetFailException e) {
+                if (sequenceRepository.isAvailable()) {
+                    throw e;
+                }
+                // 这次的ID已经取到了，仓库熔断时不抛给调用方
+                log.warn("sequence repository is unavailable, stop loading the other segment of {}", bizTag);
+                return;
+            }
+        }
+    }
+
+    /**
+     * 是否需要加载备用缓冲区
+     * 刚取到的ID已经到了加载位置（默认是中间值，按消耗速度可能提前），并且环里还有空槽位
+     *
+     * @param current 取号的段
+     * @param id      刚从这个段取到的ID
+     * @return
+     */
+    private boolean needLoadOtherSegment(IdSegment current, long id) {
+        return current.getLoadThresholdId() <= id && hasFreeSlot();
+    }
+
+    /**
+     * 获取下一个ID
+     * <p>
+     * IdGetter的主方法，如果有接口的话，这是接口中的唯一方法
+     * 快速路径只对当前段的游标做一次原子自增，只有备用缓冲区没准备好时才会加锁
+     *
+     * @return
+     */
+    @Override
+    public Long getId() {
+        return nextId();
+    }
+
+    /**
+     * 获取下一个ID，返回基本类型，取号路径上不装箱也不分配对象
+     *
+     * @return
+     */
+    @Override
+    public long nextId() {
+        if (localRangeSize > 0) {
+            return nextLocalId();
+        }
+        for (; ; ) {
+            long index = segmentIndex.get();
+            IdSegment current = segment.get(slot(index));
+            long nextId = current.nextId();
+            if (nextId <= current.getMaxId()) {
+                journal(current, nextId);
+                if (needLoadOtherSegment(current, nextId)) {
+                    triggerLoadOtherSegment(current);
+                }
+                return nextId;
+            }
+            if (!switchOtherSegment(index, current)) {
+                return fallbackId();
+            }
+        }
+    }
+
+    /**
+     * 从线程本地号段取号，号段用完了再从当前段领一个新的
+     * 不同线程的号段互不重叠，但节点内取到的ID不再是全局递增的
+     * 切换段时线程手上旧段的号段继续用完，不会浪费
+     *
+     * @return
+     */
+    private long nextLocalId() {
+        LocalRange range = localRange.get();
+        if (range.next >= range.limit && !claimLocalRange(range)) {
+            return fallbackId();
+        }
+        return ++range.next;
+    }
+
+    /**
+     * 给线程领一个新的号段
+     *
+     * @param range
+     * @return false表示仓库不可用，没有领到
+     */
+    private boolean claimLocalRange(LocalRange range) {
+        long[] orphan = orphanedRanges.poll();
+        if (orphan != null) {
+            range.next = orphan[0];
+            range.limit = orphan[1];
             return true;
         }
-        return segment.get(otherSegmentIndex()).getMinId() < segment.get(currentSegmentIndex()).getMinId();
+        for (; ; ) {
+            long index = segmentIndex.get();
+            IdSegment current = segment.get(slot(index));
+            long start = current.nextIds(localRangeSize);
+            long end = Math.min(start + localRangeSize, current.getMaxId());
+            if (end > start) {
+                journal(current, end);
+                range.next = start;
+                range.limit = end;
+                if (needLoadOtherSegment(current, end)) {
+                    triggerLoadOtherSegment(current);
+                }
+                return true;
+            }
+            if (!switchOtherSegment(index, current)) {
+                return false;
+            }
+        }
+    }
+
+    private LocalRange newLocalRange() {
+        LocalRange range = new LocalRange(Thread.currentThread());
+        localRanges.add(range);
+        return range;
+    }
+
+    /**
+     * 把已经结束的线程没用完的号段收回来给别的线程用，在加载段的时候顺便做，不在取号路径上
+     * 线程结束之后isAlive()返回false，这时它对号段的写入对当前线程一定可见
+     */
+    private void reclaimLocalRanges() {
+        if (localRangeSize <= 0) {
+            return;
+        }
+        for (Iterator<LocalRange> it = localRanges.iterator(); it.hasNext(); ) {
+            LocalRange range = it.next();
+            if (!range.owner.isAlive()) {
+                it.remove();
+                if (range.next < range.limit) {
+                    orphanedRanges.add(new long[]{range.next, range.limit});
+                }
+            }
+        }
+    }
+
+    /**
+     * 线程本地号段，可用的ID是(next, limit]，只有owner线程会修改
+     */
+    private static final class LocalRange {
+        private final Thread owner;
+        private long next;
+        private long limit;
+
+        LocalRange(Thread owner) {
+            this.owner = owner;
+        }
     }
 
     /**
-     * 同步获取ID
-     * 需要更新备用缓冲区时，同步等待备用缓冲区更新完，然后判断是否需要切换缓冲区，需要切换则同步切换完成，然后才获取ID
+     * 批量获取ID
+     * <p>
+     * 对当前段的游标做一次原子加size，当前段不够时把剩下的部分从备用缓冲区里取
      *
+     * @param size 需要的ID个数
      * @return
      */
-    private synchronized long syncGetId() {
-        lock.lock();
-        try {
-            //当前缓冲区使用超过50%，则需要加载另一个缓冲区
-            if (needLoadOtherSegment()) {
-                syncLoadOtherSegment();
+    @Override
+    public long[] getIds(int size) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("size must be positive, size=" + size);
+        }
+        long[] ids = new long[size];
+        int filled = 0;
+        while (filled < size) {
+            long index = segmentIndex.get();
+            IdSegment current = segment.get(slot(index));
+            long start = current.nextIds(size - filled);
+            long end = Math.min(start + (size - filled), current.getMaxId());
+            if (end > start) {
+                journal(current, end);
             }
-            //当前缓冲区使用量达100%，切换到另一个缓冲区
-            if (needSwitchToOtherSegment()) {
-                syncSwitchOtherSegment();
+            for (long id = start + 1; id <= end; id++) {
+                ids[filled++] = id;
+            }
+            if (end > start && needLoadOtherSegment(current, end)) {
+                triggerLoadOtherSegment(current);
+            }
+            if (filled < size && !switchOtherSegment(index, current)) {
+                fillFallbackIds(ids, filled);
+                break;
             }
-            return currentId.incrementAndGet();
-        } finally {
-            lock.unlock();
         }
+        return ids;
     }
 
     /**
-     * 同步切换备用缓冲区
+     * 异步获取下一个ID
+     * <p>
+     * 当前段或者已经装好的备用缓冲区里有ID时返回已经完成的future；
+     * 都用完了就提交加载任务，加载完成后在加载线程里完成future，调用线程不会被挂起，也不拿锁
+     *
+     * @return
      */
-    private void syncSwitchOtherSegment() {
-        if (needSwitchToOtherSegment()) {
-            // 如果另一个缓冲区也是空的，就不得不加载,直到成功
-            doUntilFillOtherSegmentSuccess();
-            // 确保另一个缓冲区已加载后，切换缓冲区到另一个
-            setSegmentChanged(!isSegmentChanged());
-            currentId = new AtomicLong(segment.get(currentSegmentIndex()).getMinId());
+    @Override
+    public CompletableFuture<Long> getIdAsync() {
+        for (; ; ) {
+            long index = segmentIndex.get();
+            IdSegment current = segment.get(slot(index));
+            long nextId = current.nextId();
+            if (nextId <= current.getMaxId()) {
+                journal(current, nextId);
+                if (needLoadOtherSegment(current, nextId)) {
+                    requestLoadOtherSegment(current);
+                }
+                return CompletableFuture.completedFuture(nextId);
+            }
+            if (!tryAdvanceSegment(index, current)) {
+                if (fallbackActive()) {
+                    return CompletableFuture.completedFuture(fallbackId());
+                }
+                switchWaitCount.increment();
+                tracer.trace(SegmentTracer.Event.WAITED, current, 0L);
+                return refillWithRetry().thenCompose(loaded -> getIdAsync());
+            }
         }
     }
 
     /**
-     * 同步加载备用缓冲区
+     * 异步批量获取ID，规则和getIds(int)一样，缓冲区不够时不阻塞调用线程
+     *
+     * @param size 需要的ID个数
+     * @return
      */
-    private void syncLoadOtherSegment() {
-        if (needLoadOtherSegment()) {
-            // 使用50%以上，并且没有加载成功过，就进行加载
-            segment.set(otherSegmentIndex(), loadOtherSegment(bizTag));
+    @Override
+    public CompletableFuture<long[]> getIdsAsync(int size) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("size must be positive, size=" + size);
+        }
+        return fillIdsAsync(new long[size], 0);
+    }
+
+    private CompletableFuture<long[]> fillIdsAsync(long[] ids, int filled) {
+        int size = ids.length;
+        while (filled < size) {
+            long index = segmentIndex.get();
+            IdSegment current = segment.get(slot(index));
+            long start = current.nextIds(size - filled);
+            long end = Math.min(start + (size - filled), current.getMaxId());
+            if (end > start) {
+                journal(current, end);
+            }
+            for (long id = start + 1; id <= end; id++) {
+                ids[filled++] = id;
+            }
+            if (end > start && needLoadOtherSegment(current, end)) {
+                requestLoadOtherSegment(current);
+            }
+            if (filled < size && !tryAdvanceSegment(index, current)) {
+                if (fallbackActive()) {
+                    fillFallbackIds(ids, filled);
+                    break;
+                }
+                switchWaitCount.increment();
+                tracer.trace(SegmentTracer.Event.WAITED, current, 0L);
+                final int done = filled;
+                return refillWithRetry().thenCompose(loaded -> fillIdsAsync(ids, done));
+            }
+        }
+        return CompletableFuture.completedFuture(ids);
+    }
+
+    /**
+     * 从filled开始用备用生成器把ids填满
+     *
+     * @param ids
+     * @param filled
+     */
+    private void fillFallbackIds(long[] ids, int filled) {
+        int count = ids.length - filled;
+        fallbackIds.add(count);
+        tracer.trace(SegmentTracer.Event.FALLBACK, null, count);
+        for (int i = filled; i < ids.length; i++) {
+            ids[i] = fallback.nextId();
+        }
+    }
+
+    /**
+     * 不加锁地尝试切换到下一个段
+     *
+     * @param index     已经用完的段的序号
+     * @param exhausted 已经用完的段
+     * @return false表示备用缓冲区还没准备好，需要等加载
+     */
+    private boolean tryAdvanceSegment(long index, IdSegment exhausted) {
+        if (filledIndex > index) {
+            advanceSegment(index, exhausted);
+            return true;
+        }
+        // 别的线程已经切换过了，回去重新取号
+        return segmentIndex.get() != index;
+    }
+
+    /**
+     * 异步接口用的加载触发，不拿锁，同步模式也交给调度器去加载
+     *
+     * @param current 触发加载的段
+     */
+    private void requestLoadOtherSegment(IdSegment current) {
+        if (!current.tryTriggerLoad()) {
+            return;
         }
+        if (current != currentSegment()) {
+            current.resetTriggerLoad();
+            return;
+        }
+        scheduler().submitAsync(this, this::fillFreeSlots);
+    }
+
+    /**
+     * 预热，把环里所有的空槽位都装满，失败按退避时间重试
+     * 已经有加载任务在跑时返回那个任务
+     *
+     * @return 全部装满或者重试次数用完时完成
+     */
+    public CompletableFuture<Boolean> preload() {
+        return hasFreeSlot() ? refillWithRetry() : CompletableFuture.completedFuture(true);
     }
 
     /**
-     * 是否需要切换备用缓冲区
-     * 条件是当前值已经大于等于主缓冲区的最大值
+     * 切换缓冲区的总次数
      *
      * @return
      */
-    private boolean needSwitchToOtherSegment() {
-        return segment.get(currentSegmentIndex()).getMaxId() <= currentId.longValue();
+    public long getSwitchCount() {
+        return switchCount.sum();
     }
 
     /**
-     * 是否需要加载备用缓冲区
-     * 当前值已经大于主缓冲区中间值时，并且备用缓冲区是空
+     * 切换时备用缓冲区还没准备好的次数，和getSwitchCount()比较可以看出提前加载是否及时
      *
      * @return
      */
-    private boolean needLoadOtherSegment() {
-        return segment.get(currentSegmentIndex()).getMiddleId() <= currentId.longValue() && isOtherSegmentEmpty();
+    public long getSwitchWaitCount() {
+        return switchWaitCount.sum();
     }
 
     /**
-     * 获取下一个ID
-     * <p>
-     * IdGetter的主方法，如果有接口的话，这是接口中的唯一方法
+     * 取一份指标快照，读的都是计数器的当前值，不影响取号
      *
      * @return
      */
-    public Long getId() {
-        Long nextId = asyncLoadingSegment ? asyncGetId() : syncGetId();
-        log.info("####### current segment={}, willReturnId={}", segment, nextId);
-        return nextId;
+    public IdGetterMetrics getMetrics() {
+        long now = System.nanoTime();
+        long index = segmentIndex.get();
+        IdSegment current = segment.get(slot(index));
+        long used = Math.max(0L, Math.min(current.getCurrentId(), current.getMaxId()) - current.getMinId());
+
+        IdGetterMetrics metrics = new IdGetterMetrics();
+        metrics.bizTag = bizTag;
+        metrics.timestampMillis = System.currentTimeMillis();
+        metrics.idsServed = servedInPastSegments.sum() + used;
+        metrics.idsPerSecond = idsPerSecond(now, metrics.idsServed);
+        metrics.currentSegmentFillPercent = (current.getStep() - used) * 100D / current.getStep();
+        metrics.readySegments = (int) Math.max(0L, filledIndex - index);
+        metrics.standbyReady = metrics.readySegments > 0;
+        metrics.switchCount = switchCount.sum();
+        metrics.stallCount = switchWaitCount.sum();
+        metrics.stallTotalMicros = stallLatency.getTotalMicros();
+        metrics.stallMaxMicros = stallLatency.getMaxMicros();
+        metrics.stallP99Micros = stallLatency.getPercentileMicros(0.99D);
+        metrics.refillCount = refillLatency.getCount();
+        metrics.refillFailures = refillFailures.sum();
+        metrics.refillLatencyP50Micros = refillLatency.getPercentileMicros(0.5D);
+        metrics.refillLatencyP99Micros = refillLatency.getPercentileMicros(0.99D);
+        metrics.refillLatencyMaxMicros = refillLatency.getMaxMicros();
+        metrics.refillLatencyBuckets = refillLatency.getBucketCounts();
+        metrics.casFailures = casFailures.sum();
+        metrics.wastedIds = wastedIds.sum();
+        metrics.fallbackIds = fallbackIds.sum();
+        return metrics;
     }
 
     /**
-     * 获取主缓冲区索引，知道从哪个缓存里取值
+     * 从RATE_WINDOW_NANOS之内最早的采样到现在的平均速度，窗口里没有采样时用最近的一个，还没切换过段时从创建时算起
      *
+     * @param now
+     * @param idsServed
      * @return
      */
-    private int currentSegmentIndex() {
-        return isSegmentChanged() ? 1 : 0;
+    private double idsPerSecond(long now, long idsServed) {
+        long[] base = null;
+        long[] newest = null;
+        for (int i = 0; i < RATE_SAMPLES; i++) {
+            long[] sample = rateSamples.get(i);
+            if (sample == null) {
+                continue;
+            }
+            if (newest == null || sample[0] - newest[0] > 0) {
+                newest = sample;
+            }
+            if (now - sample[0] <= RATE_WINDOW_NANOS && (base == null || sample[0] - base[0] < 0)) {
+                base = sample;
+            }
+        }
+        if (base == null) {
+            base = newest != null ? newest : new long[]{createdNanos, 0L};
+        }
+        long sinceNanos = now - base[0];
+        return sinceNanos <= 0 ? 0D : (idsServed - base[1]) * 1e9D / sinceNanos;
+    }
+
+    private IdSegment currentSegment() {
+        return segment.get(slot(segmentIndex.get()));
     }
 
     /**
-     * 获取备用缓冲区的索引，两个缓冲区互为主备。因此根据切换状态的true false，自动切换
+     * 指数平滑，新样本占一半权重，第一次直接用样本
      *
+     * @param old
+     * @param sample
      * @return
      */
-    private int otherSegmentIndex() {
-        return isSegmentChanged() ? 0 : 1;
+    private static double smooth(double old, double sample) {
+        return old == 0D ? sample : (old + sample) / 2;
+    }
+
+    /**
+     * 估算从开始加载备用缓冲区到加载完成之间会消耗掉多少个ID
+     *
+     * @return
+     */
+    private long prefetchDistance() {
+        if (!config.isAdaptivePrefetch()) {
+            return 0L;
+        }
+        return (long) (consumeRatePerNano * loadLatencyNanos * config.getPrefetchSafetyFactor());
     }
 
     /**
@@ -340,8 +1151,11 @@ public class IdGetter {
     private IdSegment loadOtherSegment(String bizTag) {
         for (int i = 0; i < 20; i++) {
             try {
-                return updateId(bizTag);
+                return loadSegment(bizTag);
             } catch (Exception e) {
+                if (!sequenceRepository.isAvailable()) {
+                    break;
+                }
                 log.warn("load id segment fail, it will be re-try", e);
                 try {
                     Thread.sleep(1000);
@@ -351,40 +1165,144 @@ public class IdGetter {
                 }
             }
         }
-        throw new IdGetFailException("load id segment fail and over the re-try time");
+        throw new IdGetFailException("load id segment fail and over the re-try time, bizTag=" + bizTag);
     }
 
     /**
-     * 获取主缓冲区
+     * 只加载一次，失败直接抛出，重试交给调用方，顺便记录加载耗时
      *
      * @param bizTag
      * @return
      */
-    protected IdSegment updateId(String bizTag) {
+    private IdSegment loadSegment(String bizTag) {
+        long start = System.nanoTime();
+        tracer.trace(SegmentTracer.Event.REFILL_STARTED, null, currentStep);
+        IdSegment loaded;
+        try {
+            loaded = updateId(bizTag);
+        } catch (RuntimeException e) {
+            refillFailed(start);
+            throw e;
+        }
+        refillDone(loaded, start);
+        return loaded;
+    }
+
+    /**
+     * 和loadSegment一样，只是通过updateIdAsync加载
+     *
+     * @param bizTag
+     * @return
+     */
+    private CompletableFuture<IdSegment> loadSegmentAsync(String bizTag) {
+        long start = System.nanoTime();
+        tracer.trace(SegmentTracer.Event.REFILL_STARTED, null, currentStep);
+        CompletableFuture<IdSegment> loading;
         try {
-            log.info("start to get batch ids from repository for {}", bizTag);
-            final long currentValue = sequenceRepository.getCurrentSequence(bizTag);
-            log.info("get current max value from repository for={} return={}", bizTag, currentValue);
-            if (sequenceRepository.increaseSequence(bizTag, incrSize, currentValue)) {
-
-                final IdSegment currentSegment = new IdSegment();
-                currentSegment.setMaxId(currentValue);
-                currentSegment.setStep(incrSize);
-                Long newMaxId = currentSegment.getMaxId() + currentSegment.getStep();
-
-                IdSegment newSegment = new IdSegment();
-                newSegment.setStep(currentSegment.getStep());
-                newSegment.setMaxId(newMaxId);
-
-                log.info("get batch ids from repository for {} success. the result={}", bizTag, newSegment);
-                return newSegment;
+            loading = updateIdAsync(bizTag);
+        } catch (RuntimeException e) {
+            loading = new CompletableFuture<>();
+            loading.completeExceptionally(e);
+        }
+        return loading.whenComplete((loaded, error) -> {
+            if (error != null) {
+                refillFailed(start);
             } else {
-                throw new IdGetFailException("increaseSequence return false bizTag=" + bizTag);
+                refillDone(loaded, start);
             }
-        } catch (IdGetFailException e) {
-            throw e;
+        });
+    }
+
+    private void refillFailed(long start) {
+        refillFailures.increment();
+        tracer.trace(SegmentTracer.Event.REFILL_FAILED, null, (System.nanoTime() - start) / 1000);
+    }
+
+    private void refillDone(IdSegment loaded, long start) {
+        long elapsed = System.nanoTime() - start;
+        loadLatencyNanos = smooth(loadLatencyNanos, elapsed);
+        refillLatency.record(elapsed / 1000);
+        tracer.trace(SegmentTracer.Event.REFILL_DONE, loaded, elapsed / 1000);
+    }
+
+    /**
+     * 下一个段的步长
+     * 不开启自适应时固定是incrSize，开启后根据最近用完的段从开始使用到用完花了多久来翻倍或者减半
+     * 加载是在段用完之前提前触发的，还没有用完过段时保持当前步长
+     *
+     * @param bizTag
+     * @return
+     */
+    protected long nextStep(String bizTag) {
+        if (!config.isAdaptiveStep()) {
+            return incrSize;
+        }
+        long step = currentStep;
+        if (step == 0) {
+            Long configured = sequenceRepository.getIncrementSize(bizTag);
+            return config.clampStep(configured != null && configured > 0 ? configured : incrSize);
+        }
+        long drainedStep = lastDrainedStep;
+        if (drainedStep == 0) {
+            return step;
+        }
+        return config.nextStep(drainedStep, TimeUnit.NANOSECONDS.toMillis(lastDrainNanos));
+    }
+
+    /**
+     * 获取主缓冲区
+     *
+     * @param bizTag
+     * @return
+     */
+    protected IdSegment updateId(String bizTag) {
+        try {
+            final long step = nextStep(bizTag);
+            return acceptSegment(bizTag, step, sequenceRepository.reserveSegment(bizTag, step));
+        } catch (Exception e) {
+            throw updateIdFailure(bizTag, e);
+        }
+    }
+
+    /**
+     * 异步获取主缓冲区，调度器装填空槽位时用，仓库合并请求时不占用加载线程
+     * 覆盖了updateId的子类也要覆盖它
+     *
+     * @param bizTag
+     * @return
+     */
+    protected CompletableFuture<IdSegment> updateIdAsync(String bizTag) {
+        final long step;
+        CompletableFuture<IdSegment> reserved;
+        try {
+            step = nextStep(bizTag);
+            reserved = sequenceRepository.reserveSegmentAsync(bizTag, step);
         } catch (Exception e) {
-            throw new IdGetFatalException("updateId fail. bizTag=" + bizTag, e);
+            CompletableFuture<IdSegment> failed = new CompletableFuture<>();
+            failed.completeExceptionally(updateIdFailure(bizTag, e));
+            return failed;
+        }
+        return reserved.handle((newSegment, error) -> {
+            if (error != null) {
+                throw updateIdFailure(bizTag, RefillScheduler.unwrap(error));
+            }
+            return acceptSegment(bizTag, step, newSegment);
+        });
+    }
+
+    private IdSegment acceptSegment(String bizTag, long step, IdSegment newSegment) {
+        if (newSegment == null) {
+            casFailures.increment();
+            throw new IdGetFailException("reserveSequence return null bizTag=" + bizTag);
+        }
+        currentStep = step;
+        return newSegment;
+    }
+
+    private static RuntimeException updateIdFailure(String bizTag, Throwable e) {
+        if (e instanceof IdGetFailException) {
+            return (IdGetFailException) e;
         }
+        return new IdGetFatalException("updateId fail. bizTag=" + bizTag, e);
     }
 }
@@ -0,0 +1,177 @@
+package cn.snow.idgetter.doublecache;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.experimental.Accessors;
+
+/**
+ * IdGetter的可选配置，不设置的项都有默认值
+ *
+ * @author dev
+ */
+@Getter
+@Setter
+@Accessors(chain = true)
+public class IdGetterConfig {
+    /**
+     * 每次拿取的id的数量，开启自适应步长时是初始步长
+     */
+    private long incrSize = 5000L;
+    /**
+     * 环形缓冲区的槽位数，默认2就是双缓存，突发流量大于一次数据库往返能补充的量时可以调大
+     */
+    private int segmentCount = 2;
+    /**
+     * 是否根据上一个段的消耗速度调整下一个段的步长
+     */
+    private boolean adaptiveStep;
+    /**
+     * 自适应步长的下限
+     */
+    private long minStep = 1000L;
+    /**
+     * 自适应步长的上限
+     */
+    private long maxStep = 1000000L;
+    /**
+     * 期望一个段能用多久，用得比这个快步长翻倍，用的时间超过两倍则步长减半
+     */
+    private long stepTargetMillis = 15 * 60 * 1000L;
+    /**
+     * 是否根据消耗速度和仓库耗时提前加载备用缓冲区，关闭时固定在段的50%处加载
+     */
+    private boolean adaptivePrefetch = true;
+    /**
+     * 提前量的安全系数，提前量 = 消耗速度 * 加载耗时 * 安全系数
+     */
+    private double prefetchSafetyFactor = 3.0D;
+    /**
+     * 大于0时，IdGetterFactory把这个时间窗口内各个bizTag的加载请求合并成一次批量预留
+     */
+    private long refillBatchWindowMillis;
+    /**
+     * 备用缓冲区没准备好而调用方不得不等待时，调度器最多尝试加载的次数，两次之间按指数退避加随机抖动
+     */
+    private int refillMaxAttempts = 50;
+    /**
+     * 段生命周期事件（加载、切换、等待）每秒最多输出的日志条数，0表示关闭
+     */
+    private int traceEventsPerSecond = 10;
+    /**
+     * 大于0时每个线程一次从当前段领走这么多个ID（比如64或者256），在自己的号段里取号，多核下不再争抢同一个游标
+     * 代价是节点内的ID不再严格递增，默认0不开启
+     */
+    private int threadLocalRangeSize;
+    /**
+     * 本地号段日志，设置后重启时先从日志恢复当前段没用完的部分，多个bizTag可以共用一个，同一个bizTag新建的IdGetter会接手旧的槽位
+     */
+    private RangeJournal rangeJournal;
+    /**
+     * 同一台机器上多个JVM共用号段的文件，设置后号段模式的bizTag改用SharedSegmentIdGetter，多个bizTag可以共用一个
+     */
+    private SharedSegmentFile sharedSegmentFile;
+    /**
+     * 使用SharedSegmentFile时每次从共享段领到进程内的ID个数，进程内发完再拿文件锁领下一块，进程退出时没发完的会浪费掉
+     */
+    private int sharedSegmentClaimSize = 100;
+    /**
+     * 格式化编号的格式，IdGetterFactory.getFormattedId、formatId和formatIds使用
+     */
+    private IdFormat idFormat;
+    /**
+     * 号段日志每次推进的ID个数，每推进一次刷一次盘，越大刷盘越少，重启时跳过的ID也越多
+     * 异步加载时日志始终比取号位置多留一块，由加载线程提前刷盘
+     */
+    private long journalChunkSize = 1000L;
+    /**
+     * 取号方式，默认是号段模式
+     */
+    private IdStrategy strategy = IdStrategy.SEGMENT;
+    /**
+     * 时间型ID的起始时间，默认2020-01-01 00:00:00 UTC，41位时间戳可以用大约69年
+     */
+    private long snowflakeEpochMillis = 1577836800000L;
+    /**
+     * 时间型ID里worker ID的位数
+     */
+    private int snowflakeWorkerIdBits = 10;
+    /**
+     * 时间型ID里毫秒内序号的位数，剩下的位数都给时间戳
+     */
+    private int snowflakeSequenceBits = 12;
+    /**
+     * 最多容忍的时钟回拨（或者序号用完向后借用）的毫秒数，超过时取号抛IdGetFailException
+     */
+    private long snowflakeMaxBackwardMillis = 10L;
+    /**
+     * 租用worker ID时使用t_seq_conf里的snowflakeWorkerTag_0到snowflakeWorkerTag_(2^snowflakeWorkerIdBits - 1)这些行，需要事先建好
+     */
+    private String snowflakeWorkerTag = "snowflake_worker";
+    /**
+     * worker ID的租约时长，每过1/3续租一次，连续续租失败超过2/3时停止取号
+     */
+    private long snowflakeWorkerLeaseMillis = 60000L;
+    /**
+     * 仓库连续失败（或者超过circuitBreakerSlowCallMillis）多少次后熔断，熔断期间不再访问仓库，0表示不开启
+     * 只有IdGetterFactory的默认配置里的熔断设置生效，所有bizTag共用一个熔断器
+     */
+    private int circuitBreakerFailureThreshold;
+    /**
+     * 超过这个时间的仓库调用也算一次失败
+     */
+    private long circuitBreakerSlowCallMillis = 1000L;
+    /**
+     * 熔断多久之后放一个调用过去试探仓库是否恢复
+     */
+    private long circuitBreakerOpenMillis = 5000L;
+    /**
+     * 号段模式下仓库不可用、备用缓冲区又用完时，是否改用时间型的备用生成器取号，不等待仓库恢复
+     * 备用生成器的ID第62位是1，和号段的ID不重复，但比号段的ID大，仓库恢复后ID会变回小的
+     * 创建IdGetter时通过snowflakeWorkerTag租用worker ID，IdGetterFactory里的bizTag共用一个租约和备用生成器；
+     * 仓库不可用超过snowflakeWorkerLeaseMillis的2/3时租约失效，备用生成器也停止取号
+     */
+    private boolean fallbackToTimeBased;
+    /**
+     * IdGetterFactory最多保留多少个bizTag的IdGetter，超过时淘汰最久没有用过的，只有默认配置里的生效
+     */
+    private int idGetterCacheSize = 10000;
+    /**
+     * bizTag的IdGetter多久没有用过就淘汰，0表示只按个数淘汰；淘汰后再次使用时重新从仓库加载
+     */
+    private long idGetterIdleMillis;
+    /**
+     * 节点上最多缓存多少个分区的IdGetter，超过时淘汰最久没有用过的，只有IdGetterFactory的默认配置里的生效
+     */
+    private int partitionCacheSize = 10000;
+    /**
+     * 分区的IdGetter多久没有用过就淘汰，缓冲区里剩下的ID随之丢掉，0表示只按个数淘汰
+     */
+    private long partitionIdleMillis = 10 * 60 * 1000L;
+
+    /**
+     * 把步长限制在[minStep, maxStep]之间
+     *
+     * @param step
+     * @return
+     */
+    long clampStep(long step) {
+        return Math.max(minStep, Math.min(maxStep, step));
+    }
+
+    /**
+     * 根据上一个段用了多久计算下一个段的步长
+     *
+     * @param lastStep           上一个用完的段的步长
+     * @param lastDurationMillis 上一个用完的段从开始使用到用完经过的时间
+     * @return
+     */
+    long nextStep(long lastStep, long lastDurationMillis) {
+        if (lastDurationMillis < stepTargetMillis) {
+            return clampStep(lastStep > maxStep / 2 ? maxStep : lastStep * 2);
+        }
+        if (lastDurationMillis >= stepTargetMillis * 2) {
+            return clampStep(lastStep / 2);
+        }
+        return clampStep(lastStep);
+    }
+}
@@ -1,42 +1,390 @@
 package cn.snow.idgetter.doublecache;
 
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ThreadFactory;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 
-public class IdGetterFactory {
+import lombok.extern.slf4j.Slf4j;
+
+@Slf4j
+public class IdGetterFactory implements AutoCloseable {
+
+    /**
+     * 分区bizTag里groupBy和partitionBy之间的分隔符
+     */
+    public static final char PARTITION_SEPARATOR = '#';
 
     private final ISequenceRepository sequenceRepository;
-    private final long defaultIncreaseSize;
+    private final IdGetterConfig defaultConfig;
+    private final RefillScheduler refillScheduler;
+    /**
+     * 单独配置过的bizTag，没有配置的用defaultConfig
+     */
+    private final ConcurrentHashMap<String, IdGetterConfig> bizTagConfigs = new ConcurrentHashMap<>();
+    private final CopyOnWriteArrayList<MetricsExporter> metricsExporters = new CopyOnWriteArrayList<>();
+    /**
+     * 每个工厂自己的bizTag注册表，不同的工厂可以用不同的仓库
+     */
+    private final IdGeneratorCache idGenerators;
+    /**
+     * 分区的IdGenerator，数量可能很大，只缓存最近用过的
+     */
+    private final IdGeneratorCache partitionGenerators;
+    /**
+     * 时间型bizTag的worker ID租约，同一个snowflakeWorkerTag的bizTag共用一个
+     */
+    private final ConcurrentHashMap<String, WorkerIdLease> workerLeases = new ConcurrentHashMap<>();
+    /**
+     * 号段模式的备用生成器，同一个snowflakeWorkerTag的bizTag共用一个，ID的布局按第一个用到它的bizTag的配置
+     */
+    private final ConcurrentHashMap<String, SnowflakeIdGetter> fallbacks = new ConcurrentHashMap<>();
+    /**
+     * 开启refillBatchWindowMillis时工厂自己创建的合并加载仓库，关闭工厂时一起关闭
+     */
+    private final BatchingSequenceRepository batchingRepository;
 
     public IdGetterFactory(ISequenceRepository sequenceRepository, long defaultIncreaseSize){
-        this.sequenceRepository = sequenceRepository;
-        this.defaultIncreaseSize = defaultIncreaseSize;
+        this(sequenceRepository, new IdGetterConfig().setIncrSize(defaultIncreaseSize));
     }
 
+    /**
+     * 所有bizTag共用一份配置，比如开启自适应步长
+     * @param sequenceRepository
+     * @param defaultConfig
+     */
+    public IdGetterFactory(ISequenceRepository sequenceRepository, IdGetterConfig defaultConfig){
+        this(sequenceRepository, defaultConfig, RefillScheduler.shared());
+    }
 
-    private static final ExecutorService THREAD_POOL = new ThreadPoolExecutor(5, 20,
-            0L, TimeUnit.MILLISECONDS,
-            new LinkedBlockingQueue<>(16), new SnowIdGetterThreadFactory("snow-id-getter", false), new ThreadPoolExecutor.CallerRunsPolicy());
+    /**
+     * 使用自己的加载调度器，比如需要单独控制加载线程数的时候
+     * @param sequenceRepository
+     * @param defaultConfig
+     * @param refillScheduler
+     */
+    public IdGetterFactory(ISequenceRepository sequenceRepository, IdGetterConfig defaultConfig, RefillScheduler refillScheduler){
+        this.refillScheduler = refillScheduler;
+        this.batchingRepository = defaultConfig.getRefillBatchWindowMillis() > 0
+                ? new BatchingSequenceRepository(sequenceRepository, defaultConfig.getRefillBatchWindowMillis())
+                : null;
+        ISequenceRepository repository = batchingRepository != null ? batchingRepository : sequenceRepository;
+        this.sequenceRepository = defaultConfig.getCircuitBreakerFailureThreshold() > 0
+                ? new CircuitBreakingSequenceRepository(repository, defaultConfig.getCircuitBreakerFailureThreshold(),
+                        defaultConfig.getCircuitBreakerSlowCallMillis(), defaultConfig.getCircuitBreakerOpenMillis())
+                : repository;
+        this.defaultConfig = defaultConfig;
+        this.idGenerators = new IdGeneratorCache(this::createIdGenerator, generator -> {
+            unregisterMetrics(generator);
+            close(generator);
+        }, defaultConfig.getIdGetterCacheSize(), defaultConfig.getIdGetterIdleMillis());
+        this.partitionGenerators = new IdGeneratorCache(this::createPartitionGenerator, IdGetterFactory::close,
+                defaultConfig.getPartitionCacheSize(), defaultConfig.getPartitionIdleMillis());
+    }
 
-    private static final ConcurrentHashMap<String, IdGetter> BIZ_TAG_ID_LEAF = new ConcurrentHashMap<>();
+    /**
+     * 给某个bizTag单独配置，比如只打开这个bizTag的段事件日志，或者改用时间型的取号方式，需要在第一次取号之前调用
+     * @param bizTagName
+     * @param config
+     * @return
+     */
+    public IdGetterFactory configure(String bizTagName, IdGetterConfig config) {
+        bizTagConfigs.put(bizTagName, config);
+        return this;
+    }
 
+    /**
+     * 添加一个指标导出器，已经创建的和以后创建的IdGetter都会注册上去
+     * @param exporter 比如new JmxMetricsExporter()
+     * @return
+     */
+    public IdGetterFactory addMetricsExporter(MetricsExporter exporter) {
+        metricsExporters.add(exporter);
+        idGenerators.values().stream()
+                .filter(IdGetter.class::isInstance)
+                .forEach(generator -> exporter.register((IdGetter) generator));
+        return this;
+    }
 
+    /**
+     * 某个bizTag当前的指标快照
+     * @param bizTagName
+     * @return 这个bizTag还没有取过号或者不是号段模式时返回null
+     */
+    public IdGetterMetrics getMetrics(String bizTagName) {
+        IdGenerator generator = idGenerators.getIfPresent(bizTagName);
+        return generator instanceof IdGetter ? ((IdGetter) generator).getMetrics() : null;
+    }
 
     protected Long getIdByBizTagName(String bizTagName) {
-        if (BIZ_TAG_ID_LEAF.get(bizTagName) == null) {
-            synchronized (BIZ_TAG_ID_LEAF) {
-                if (BIZ_TAG_ID_LEAF.get(bizTagName) == null) {
-                    IdGetter idGetter = new IdGetter(bizTagName, defaultIncreaseSize, sequenceRepository, THREAD_POOL);
-                    BIZ_TAG_ID_LEAF.putIfAbsent(bizTagName, idGetter);
-                }
+        return getIdGenerator(bizTagName).getId();
+    }
+
+    /**
+     * 号段模式的bizTag对应的IdGetter
+     * @param bizTagName
+     * @return
+     */
+    protected IdGetter getIdGetter(String bizTagName) {
+        IdGenerator generator = getIdGenerator(bizTagName);
+        if (!(generator instanceof IdGetter)) {
+            throw new IllegalStateException("bizTag=" + bizTagName + " is not using the segment strategy");
+        }
+        return (IdGetter) generator;
+    }
+
+    /**
+     * 第一次使用时创建，每个bizTag各自加锁，一个bizTag加载慢不会挡住别的bizTag
+     * @param bizTagName
+     * @return
+     */
+    protected IdGenerator getIdGenerator(String bizTagName) {
+        return idGenerators.get(bizTagName);
+    }
+
+    /**
+     * 获取某个bizTag的句柄，之后用句柄取号不再查注册表，适合热点调用方保存下来反复使用
+     * 拿过句柄的bizTag不会被淘汰
+     * @param bizTagName
+     * @return
+     */
+    public IdGetterHandle getHandle(String bizTagName) {
+        return new IdGetterHandle(idGenerators.pin(bizTagName));
+    }
+
+    /**
+     * 预热仓库里所有有效的bizTag（t_seq_conf里status = 'a'的行），分区的行和租用worker ID的行除外
+     * 仓库不支持列出bizTag时什么都不做
+     * @param maxConcurrency 最多同时预热几个bizTag
+     * @return 见warmUp(Collection, int)
+     */
+    public CompletableFuture<Void> warmUp(int maxConcurrency) {
+        return CompletableFuture.supplyAsync(sequenceRepository::listActiveBizTags, refillScheduler.executor())
+                .thenCompose(bizTagNames -> warmUp(activeBizTags(bizTagNames), maxConcurrency));
+    }
+
+    private List<String> activeBizTags(List<String> bizTagNames) {
+        return bizTagNames.stream()
+                .filter(bizTagName -> bizTagName.indexOf(PARTITION_SEPARATOR) < 0)
+                .filter(bizTagName -> !isWorkerIdRow(bizTagName))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * worker ID租约的行，以及以前按计数分配worker ID时用的那一行
+     * @param bizTagName
+     * @return
+     */
+    private boolean isWorkerIdRow(String bizTagName) {
+        String workerTag = defaultConfig.getSnowflakeWorkerTag();
+        return bizTagName.equals(workerTag) || bizTagName.startsWith(workerTag + "_");
+    }
+
+    /**
+     * 启动时预热，创建这些bizTag的IdGetter并把当前段和备用缓冲区都装满，之后第一次取号不用再访问仓库
+     * 在加载线程里并行执行，调用线程不阻塞，服务可以等返回的future完成之后再报告就绪
+     * @param bizTagNames
+     * @param maxConcurrency 最多同时预热几个bizTag，实际还受加载线程数限制
+     * @return 全部预热完成时完成；有bizTag预热失败时，其余的照样预热完，最后以IdGetFailException结束
+     */
+    public CompletableFuture<Void> warmUp(Collection<String> bizTagNames, int maxConcurrency) {
+        Queue<String> pending = new ConcurrentLinkedQueue<>(new LinkedHashSet<>(bizTagNames));
+        Queue<String> failed = new ConcurrentLinkedQueue<>();
+        int workers = Math.max(1, Math.min(maxConcurrency, pending.size()));
+        CompletableFuture<?>[] chains = new CompletableFuture<?>[workers];
+        for (int i = 0; i < workers; i++) {
+            chains[i] = warmUpNext(pending, failed);
+        }
+        return CompletableFuture.allOf(chains).thenRun(() -> {
+            if (!failed.isEmpty()) {
+                throw new IdGetFailException("warm up fail, bizTags=" + failed);
+            }
+        });
+    }
+
+    /**
+     * 一条预热链，预热完一个bizTag再从队列里取下一个，链的条数就是并发数
+     * @param pending
+     * @param failed
+     * @return
+     */
+    private CompletableFuture<Void> warmUpNext(Queue<String> pending, Queue<String> failed) {
+        String bizTagName = pending.poll();
+        if (bizTagName == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return CompletableFuture.supplyAsync(() -> getIdGenerator(bizTagName), refillScheduler.executor())
+                .thenCompose(generator -> generator instanceof IdGetter
+                        ? ((IdGetter) generator).preload()
+                        : CompletableFuture.completedFuture(true))
+                .handle((loaded, e) -> {
+                    if (e != null) {
+                        log.warn("warm up bizTag={} fail", bizTagName, e);
+                        failed.add(bizTagName);
+                    }
+                    return null;
+                })
+                .thenCompose(ignored -> warmUpNext(pending, failed));
+    }
+
+    private void unregisterMetrics(IdGenerator generator) {
+        if (generator instanceof IdGetter) {
+            metricsExporters.forEach(exporter -> exporter.unregister((IdGetter) generator));
+        }
+    }
+
+    /**
+     * 淘汰的IdGetter释放号段日志的槽位，同一个bizTag重新创建时才能再持有
+     * 工厂创建的IdGenerator共用工厂的租约和备用生成器，关闭它们不会停止续租
+     * @param generator
+     */
+    private static void close(IdGenerator generator) {
+        if (generator instanceof AutoCloseable) {
+            try {
+                ((AutoCloseable) generator).close();
+            } catch (Exception e) {
+                log.warn("close id generator of {} fail", generator.getBizTag(), e);
             }
         }
-        return BIZ_TAG_ID_LEAF.get(bizTagName).getId();
+    }
+
+    /**
+     * 关闭所有IdGenerator，停止worker ID的续租和合并加载的线程，之后不要再用这个工厂取号
+     * worker ID的租约不会改小，等它自然过期后别的节点才能接手，见WorkerIdLease
+     * 加载调度器是共享的或者调用方传进来的，不在这里关闭
+     */
+    @Override
+    public void close() {
+        for (IdGenerator generator : idGenerators.clear()) {
+            unregisterMetrics(generator);
+            close(generator);
+        }
+        for (IdGenerator generator : partitionGenerators.clear()) {
+            close(generator);
+        }
+        fallbacks.values().forEach(SnowflakeIdGetter::close);
+        fallbacks.clear();
+        workerLeases.values().forEach(WorkerIdLease::close);
+        workerLeases.clear();
+        if (batchingRepository != null) {
+            batchingRepository.close();
+        }
+    }
+
+    /**
+     * 按bizTag的配置选择取号方式
+     * @param bizTagName
+     * @return
+     */
+    protected IdGenerator createIdGenerator(String bizTagName) {
+        IdGenerator generator = newIdGenerator(bizTagName, bizTagConfigs.getOrDefault(bizTagName, defaultConfig));
+        if (generator instanceof IdGetter) {
+            metricsExporters.forEach(exporter -> exporter.register((IdGetter) generator));
+        }
+        return generator;
+    }
+
+    /**
+     * 分区用groupBy的配置，分区太多，不注册指标
+     * @param partitionBizTag
+     * @return
+     */
+    private IdGenerator createPartitionGenerator(String partitionBizTag) {
+        String groupBy = partitionBizTag.substring(0, partitionBizTag.indexOf(PARTITION_SEPARATOR));
+        return newIdGenerator(partitionBizTag, bizTagConfigs.getOrDefault(groupBy, defaultConfig));
+    }
+
+    /**
+     * 同一个snowflakeWorkerTag只租一个worker ID，第一次用到时租用，之后一直续租
+     * @param config
+     * @return
+     */
+    private WorkerIdLease workerLease(IdGetterConfig config) {
+        WorkerIdLease lease = workerLeases.computeIfAbsent(config.getSnowflakeWorkerTag(),
+                workerTag -> new WorkerIdLease(sequenceRepository, config, refillScheduler));
+        if (lease.getMaxWorkers() != 1 << config.getSnowflakeWorkerIdBits()) {
+            throw new IllegalArgumentException("bizTags sharing snowflakeWorkerTag=" + config.getSnowflakeWorkerTag()
+                    + " must use the same snowflakeWorkerIdBits");
+        }
+        return lease;
+    }
+
+    private IdGenerator newIdGenerator(String bizTagName, IdGetterConfig config) {
+        if (config.getStrategy() == IdStrategy.SNOWFLAKE) {
+            return new SnowflakeIdGetter(bizTagName, workerLease(config), config);
+        }
+        if (config.getSharedSegmentFile() != null) {
+            return new SharedSegmentIdGetter(bizTagName, sequenceRepository, refillScheduler, config);
+        }
+        return new IdGetter(bizTagName, sequenceRepository, refillScheduler, config,
+                config.isFallbackToTimeBased() ? fallback(config) : null);
+    }
+
+    /**
+     * 趁仓库可用的时候先把备用生成器准备好，失败时这个bizTag没有备用生成器，下一个bizTag创建时再试
+     * @param config
+     * @return
+     */
+    private SnowflakeIdGetter fallback(IdGetterConfig config) {
+        try {
+            return fallbacks.computeIfAbsent(config.getSnowflakeWorkerTag(),
+                    workerTag -> new SnowflakeIdGetter(workerTag, workerLease(config), false, config, true));
+        } catch (RuntimeException e) {
+            log.warn("create time based fallback of {} fail, it will wait for the repository when unavailable",
+                    config.getSnowflakeWorkerTag(), e);
+            return null;
+        }
+    }
+
+    /**
+     * 分区的bizTag，也就是t_seq_conf里的NAME
+     * @param groupBy 比如invoice，不能包含分隔符
+     * @param partitionBy 比如merchant42#20261017
+     * @return
+     */
+    public static String partitionBizTag(String groupBy, String partitionBy) {
+        if (groupBy.indexOf(PARTITION_SEPARATOR) >= 0) {
+            throw new IllegalArgumentException("groupBy must not contain '" + PARTITION_SEPARATOR + "', groupBy=" + groupBy);
+        }
+        return groupBy + PARTITION_SEPARATOR + partitionBy;
+    }
+
+    /**
+     * 按分区取号，比如每个商户每天从1开始的发票号，需要支持自动建行的仓库，比如SequenceRepositoryImplPartitionBy
+     * 用groupBy的配置，可以通过configure(groupBy, config)单独设置步长
+     * 长时间不用或者超过缓存个数的分区会被淘汰，再次使用时重新从仓库加载，中间没用完的ID不再使用
+     * @param groupBy
+     * @param partitionBy
+     * @return
+     */
+    public long getPartitionId(String groupBy, String partitionBy) {
+        return partitionGenerators.get(partitionBizTag(groupBy, partitionBy)).nextId();
+    }
+
+    /**
+     * 按分区一次获取size个ID，规则和getPartitionId一样
+     * @param groupBy
+     * @param partitionBy
+     * @param size
+     * @return
+     */
+    public long[] getPartitionIds(String groupBy, String partitionBy, int size) {
+        return partitionGenerators.get(partitionBizTag(groupBy, partitionBy)).getIds(size);
+    }
+
+    /**
+     * 当前缓存的分区个数
+     * @return
+     */
+    public int getPartitionCount() {
+        return partitionGenerators.size();
     }
 
     /**
@@ -48,6 +396,145 @@ public class IdGetterFactory {
         return getIdByBizTagName(bizTagName);
     }
 
+    /**
+     * 和getId一样，只是返回基本类型，取号路径上不装箱
+     * @param bizTagName
+     * @return
+     */
+    public long getIdAsLong(String bizTagName) {
+        return getIdGenerator(bizTagName).nextId();
+    }
+
+    /**
+     * 一次获取size个ID，适合批量插入，省掉每个ID的查表和装箱
+     * 返回的ID在当前节点上是递增的，但跨缓冲区时不一定连续
+     * @param bizTagName
+     * @param size
+     * @return
+     */
+    public long[] getIds(String bizTagName, int size) {
+        return getIdGenerator(bizTagName).getIds(size);
+    }
+
+    /**
+     * 按这个bizTag配置的IdFormat取一个格式化好的编号，比如ORD20261017000012345
+     * @param bizTagName
+     * @return
+     */
+    public String getFormattedId(String bizTagName) {
+        return idFormat(bizTagName).format(getIdGenerator(bizTagName).nextId());
+    }
+
+    /**
+     * 取一个编号写进调用方的buffer，不分配对象，buffer可以反复使用
+     * @param bizTagName
+     * @param buffer
+     * @param offset
+     * @return 写完之后的位置
+     */
+    public int formatId(String bizTagName, char[] buffer, int offset) {
+        return idFormat(bizTagName).format(getIdGenerator(bizTagName).nextId(), buffer, offset);
+    }
+
+    /**
+     * 取size个编号依次写进调用方的buffer，每个编号占IdFormat.getLength()个字符，中间没有分隔符
+     * @param bizTagName
+     * @param size
+     * @param buffer
+     * @param offset
+     * @return 写完之后的位置
+     */
+    public int formatIds(String bizTagName, int size, char[] buffer, int offset) {
+        IdFormat format = idFormat(bizTagName);
+        if (size <= 0 || offset + (long) size * format.getLength() > buffer.length) {
+            throw new IllegalArgumentException("buffer too small or invalid size, size=" + size + ", offset=" + offset);
+        }
+        IdGenerator generator = getIdGenerator(bizTagName);
+        for (int i = 0; i < size; i++) {
+            offset = format.format(generator.nextId(), buffer, offset);
+        }
+        return offset;
+    }
+
+    private IdFormat idFormat(String bizTagName) {
+        IdFormat format = bizTagConfigs.getOrDefault(bizTagName, defaultConfig).getIdFormat();
+        if (format == null) {
+            throw new IllegalArgumentException("no idFormat configured, bizTag=" + bizTagName);
+        }
+        return format;
+    }
+
+    /**
+     * 异步获取ID，缓冲区里有ID时直接返回已经完成的future
+     * 这个bizTag还没有初始化时，初始化也放到加载线程里做；时间型和共享号段的bizTag取号可能要等，也放到加载线程里做
+     * @param bizTagName
+     * @return
+     */
+    public CompletableFuture<Long> getIdAsync(String bizTagName) {
+        return idGeneratorAsync(bizTagName).thenCompose(generator -> generator instanceof IdGetter
+                ? generator.getIdAsync()
+                : CompletableFuture.supplyAsync(generator::getId, refillScheduler.executor()));
+    }
+
+    /**
+     * 异步批量获取ID，规则和getIds一样
+     * @param bizTagName
+     * @param size
+     * @return
+     */
+    public CompletableFuture<long[]> getIdsAsync(String bizTagName, int size) {
+        return idGeneratorAsync(bizTagName).thenCompose(generator -> generator instanceof IdGetter
+                ? generator.getIdsAsync(size)
+                : CompletableFuture.supplyAsync(() -> generator.getIds(size), refillScheduler.executor()));
+    }
+
+    /**
+     * 在加载线程里通过这个工厂的仓库租用或者续租worker ID，IdServer用它替客户端租用，参数和返回值见ISequenceRepository.leaseWorkerId
+     * 只接受这个工厂配置过的snowflakeWorkerTag，workerId和leaseMillis不能超出那份配置，别的请求以IllegalArgumentException结束，
+     * 不会改到t_seq_conf里别的行
+     * @param workerTag
+     * @param workerId
+     * @param token
+     * @param leaseMillis
+     * @return
+     */
+    public CompletableFuture<Long> leaseWorkerIdAsync(String workerTag, int workerId, Long token, long leaseMillis) {
+        IdGetterConfig config = workerConfig(workerTag);
+        if (config == null || workerId < 0 || workerId >= 1 << config.getSnowflakeWorkerIdBits()
+                || leaseMillis <= 0 || leaseMillis > config.getSnowflakeWorkerLeaseMillis()) {
+            CompletableFuture<Long> rejected = new CompletableFuture<>();
+            rejected.completeExceptionally(new IllegalArgumentException("lease of workerId=" + workerId + " of " + workerTag
+                    + " for " + leaseMillis + "ms is not allowed"));
+            return rejected;
+        }
+        return CompletableFuture.supplyAsync(() -> sequenceRepository.leaseWorkerId(workerTag, workerId, token, leaseMillis),
+                refillScheduler.executor());
+    }
+
+    /**
+     * 使用这个workerTag的配置
+     * @param workerTag
+     * @return 没有配置过时返回null
+     */
+    private IdGetterConfig workerConfig(String workerTag) {
+        if (defaultConfig.getSnowflakeWorkerTag().equals(workerTag)) {
+            return defaultConfig;
+        }
+        for (IdGetterConfig config : bizTagConfigs.values()) {
+            if (config.getSnowflakeWorkerTag().equals(workerTag)) {
+                return config;
+            }
+        }
+        return null;
+    }
+
+    private CompletableFuture<IdGenerator> idGeneratorAsync(String bizTagName) {
+        IdGenerator generator = idGenerators.getIfPresent(bizTagName);
+        if (generator != null) {
+            return CompletableFuture.completedFuture(generator);
+        }
+        return CompletableFuture.supplyAsync(() -> getIdGenerator(bizTagName), refillScheduler.executor());
+    }
 
     @SuppressWarnings("all")
     public static class SnowIdGetterThreadFactory implements ThreadFactory {
@@ -0,0 +1,58 @@
+package cn.snow.idgetter.doublecache;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * IdGetterFactory.getHandle返回的句柄，直接指向某个bizTag的IdGenerator
+ * 热点调用方拿着它取号，每次取号不再对bizTag算hash、查注册表
+ * 拿过句柄的bizTag不会被注册表淘汰
+ *
+ * @author dev
+ */
+public final class IdGetterHandle implements IdGenerator {
+
+    private final IdGenerator generator;
+
+    IdGetterHandle(IdGenerator generator) {
+        this.generator = generator;
+    }
+
+    @Override
+    public String getBizTag() {
+        return generator.getBizTag();
+    }
+
+    @Override
+    public long nextId() {
+        return generator.nextId();
+    }
+
+    @Override
+    public Long getId() {
+        return generator.getId();
+    }
+
+    @Override
+    public long[] getIds(int size) {
+        return generator.getIds(size);
+    }
+
+    @Override
+    public CompletableFuture<Long> getIdAsync() {
+        return generator.getIdAsync();
+    }
+
+    @Override
+    public CompletableFuture<long[]> getIdsAsync(int size) {
+        return generator.getIdsAsync(size);
+    }
+
+    /**
+     * 号段模式时的指标快照
+     *
+     * @return 不是号段模式时返回null
+     */
+    public IdGetterMetrics getMetrics() {
+        return generator instanceof IdGetter ? ((IdGetter) generator).getMetrics() : null;
+    }
+}
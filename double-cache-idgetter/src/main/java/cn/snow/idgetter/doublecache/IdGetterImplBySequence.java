@@ -1,10 +1,12 @@
 package cn.snow.idgetter.doublecache;
 
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 
-import lombok.extern.slf4j.Slf4j;
-
-@Slf4j
+/**
+ * 用INCREMENT BY 1的sequence取号，第v次取到的值对应(v * incrSize - incrSize, v * incrSize]这一段
+ * 新的表建议直接用IdGetter加SequenceRepositoryImplBySequence，sequence按incrSize递增，两种sequence都支持
+ */
 public class IdGetterImplBySequence extends IdGetter {
 
 
@@ -16,19 +18,37 @@ public class IdGetterImplBySequence extends IdGetter {
         super(tableName, increaseIdSize, sequenceRepository, taskExecutor);
     }
 
+    /**
+     * 和父类一样不单独打日志，加载结果由调用方记成SegmentTracer的REFILL_DONE事件
+     *
+     * @param bizTag
+     * @return
+     */
     @Override
     protected IdSegment updateId(String bizTag) {
         try {
             Long nextSeq = getSequenceRepository().getCurrentSequence(bizTag);
-            IdSegment newSegment = new IdSegment();
-            newSegment.setStep(getIncrSize());
-            newSegment.setMaxId(nextSeq * getIncrSize());
-
-            log.info("get batch ids from repository for {} success. the result={}", bizTag, newSegment);
-            return newSegment;
+            return new IdSegment(nextSeq * getIncrSize(), getIncrSize());
         } catch (Exception e) {
             throw new IdGetFatalException("updateId fail. bizTag=" + bizTag, e);
         }
     }
 
+    /**
+     * 读sequence只有同步的方式，在调度器的线程里直接读
+     *
+     * @param bizTag
+     * @return
+     */
+    @Override
+    protected CompletableFuture<IdSegment> updateIdAsync(String bizTag) {
+        CompletableFuture<IdSegment> result = new CompletableFuture<>();
+        try {
+            result.complete(updateId(bizTag));
+        } catch (RuntimeException e) {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
 }
@@ -0,0 +1,83 @@
+package cn.snow.idgetter.doublecache;
+
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * 某个bizTag的IdGetter在某一时刻的指标快照，由IdGetter.getMetrics()生成，生成之后不会再变
+ * 耗时的单位都是微秒
+ *
+ * @author dev
+ */
+@Getter
+@ToString
+public class IdGetterMetrics {
+
+    String bizTag;
+    /**
+     * 生成快照的时间
+     */
+    long timestampMillis;
+    /**
+     * 从创建到现在发出去的ID个数
+     */
+    long idsServed;
+    /**
+     * 最近一分钟左右每秒发出的ID个数，按最近几次切换段时的采样计算，取快照不影响它
+     * 一分钟内没有切换过段时是从最后一次切换到现在的平均值，还没切换过时是从创建到现在的平均值
+     */
+    double idsPerSecond;
+    /**
+     * 当前段还剩下的ID占整个段的百分比
+     */
+    double currentSegmentFillPercent;
+    /**
+     * 备用缓冲区是否已经装好
+     */
+    boolean standbyReady;
+    /**
+     * 装好了但还没开始用的段的个数
+     */
+    int readySegments;
+    /**
+     * 切换段的次数
+     */
+    long switchCount;
+    /**
+     * 切换时备用缓冲区没准备好的次数，包含异步接口的等待
+     */
+    long stallCount;
+    /**
+     * 调用线程阻塞等待备用缓冲区的总时间，异步接口不阻塞，不计入
+     */
+    long stallTotalMicros;
+    long stallMaxMicros;
+    long stallP99Micros;
+    /**
+     * 成功从仓库加载的段数
+     */
+    long refillCount;
+    /**
+     * 从仓库加载失败的次数
+     */
+    long refillFailures;
+    long refillLatencyP50Micros;
+    long refillLatencyP99Micros;
+    long refillLatencyMaxMicros;
+    /**
+     * 加载耗时每个桶的次数，桶的上界见LatencyHistogram.getBucketBoundsMicros()
+     */
+    long[] refillLatencyBuckets;
+    /**
+     * 仓库返回null的次数，默认的reserveSequence里就是increaseSequence的CAS失败
+     */
+    long casFailures;
+    /**
+     * 加载好了却因为环已满被丢掉的ID个数
+     */
+    long wastedIds;
+    /**
+     * 仓库不可用时由时间型备用生成器发出的ID个数，不计入idsServed
+     */
+    long fallbackIds;
+}
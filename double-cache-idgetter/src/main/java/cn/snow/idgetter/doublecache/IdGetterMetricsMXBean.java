@@ -0,0 +1,51 @@
+package cn.snow.idgetter.doublecache;
+
+/**
+ * JmxMetricsExporter注册的MXBean，每个bizTag一个，属性的含义见IdGetterMetrics
+ *
+ * @author dev
+ */
+public interface IdGetterMetricsMXBean {
+
+    String getBizTag();
+
+    long getIdsServed();
+
+    double getIdsPerSecond();
+
+    double getCurrentSegmentFillPercent();
+
+    boolean isStandbyReady();
+
+    int getReadySegments();
+
+    long getSwitchCount();
+
+    long getStallCount();
+
+    long getStallTotalMicros();
+
+    long getStallMaxMicros();
+
+    long getStallP99Micros();
+
+    long getRefillCount();
+
+    long getRefillFailures();
+
+    long getRefillLatencyP50Micros();
+
+    long getRefillLatencyP99Micros();
+
+    long getRefillLatencyMaxMicros();
+
+    long[] getRefillLatencyBucketBoundsMicros();
+
+    long[] getRefillLatencyBuckets();
+
+    long getCasFailures();
+
+    long getWastedIds();
+
+    long getFallbackIds();
+}
@@ -1,32 +1,21 @@
 package cn.snow.idgetter.doublecache;
 
 import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.ThreadFactory;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 public class IdGetterThreadPool {
 
     private IdGetterThreadPool(){}
 
+    /**
+     * 以前每次调用都会新建一个线程池，现在返回共享加载调度器的线程池，不要关闭它
+     *
+     * @deprecated 使用 {@link RefillScheduler#shared()}
+     */
+    @Deprecated
     public static ScheduledExecutorService delayExecutePool() {
-        ScheduledThreadPoolExecutor searchDelayPool = new ScheduledThreadPoolExecutor(
-                4
-                , new IdGetterFactory.SnowIdGetterThreadFactory("snow-id-getter-delay", false)
-                , new ThreadPoolExecutor.CallerRunsPolicy()) {
-            @Override
-            public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
-                if (getActiveCount() >= 5 * 10) {
-                    super.getRejectedExecutionHandler().rejectedExecution(command, this);
-                }
-                return super.schedule(command, delay, unit);
-            }
-        };
-        searchDelayPool.setMaximumPoolSize(10);
-        return searchDelayPool;
+        return RefillScheduler.shared().timer();
     }
 
     @SuppressWarnings("all")
@@ -1,42 +1,142 @@
 package cn.snow.idgetter.doublecache;
 
-import java.math.BigDecimal;
-
-import lombok.Getter;
-import lombok.Setter;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
 
+/**
+ * 一段从仓库预留下来的ID，可用的ID是(minId, maxId]
+ * 边界和加载位置在创建时就算好，之后不会再变，取号时只读这几个long，不拆箱也不分配对象
+ */
 public class IdSegment {
 
-    private Long minId;
-    @Getter
-    @Setter
-    private Long maxId;
-    @Getter
-    @Setter
-    private Long step;
+    private static final AtomicLongFieldUpdater<IdSegment> CURRENT_ID =
+            AtomicLongFieldUpdater.newUpdater(IdSegment.class, "currentId");
+    private static final AtomicIntegerFieldUpdater<IdSegment> LOAD_TRIGGERED =
+            AtomicIntegerFieldUpdater.newUpdater(IdSegment.class, "loadTriggered");
 
-    private Long middleId;
+    private final long minId;
+    private final long maxId;
+    private final long step;
+    private final long middleId;
+    /**
+     * 取到这个ID时开始加载备用缓冲区，默认是middleId，消耗快或者仓库慢时会提前
+     */
+    private final long loadThresholdId;
+    /**
+     * 本段已经发出的最大ID，取号就是对它做一次原子自增，不需要加锁
+     */
+    private volatile long currentId;
+    /**
+     * 本段是否已经触发过备用缓冲区的加载，保证一个段只触发一次，1表示已触发
+     */
+    private volatile int loadTriggered;
+    /**
+     * 本地号段日志里已经记录到的位置，不大于它的ID可以直接发出去，没有开启日志时不使用
+     */
+    private volatile long journalLimit;
 
-    public Long getMiddleId() {
-        if (middleId == null) {
-            middleId = maxId - BigDecimal.valueOf(step).divide(new BigDecimal("2")).longValue();
-        }
-        return middleId;
+    /**
+     * @param maxId 本段最大的ID
+     * @param step  本段的ID个数
+     */
+    public IdSegment(long maxId, long step) {
+        this(maxId, step, maxId - step / 2);
     }
 
-    public Long getMinId() {
-        if (minId == null) {
-            if (maxId != null && step != null) {
-                minId = maxId - step;
-            } else {
-                throw new IllegalArgumentException("maxId or step is null");
-            }
+    private IdSegment(long maxId, long step, long loadThresholdId) {
+        if (step <= 0) {
+            throw new IllegalArgumentException("step must be positive, step=" + step);
         }
+        this.maxId = maxId;
+        this.step = step;
+        this.minId = maxId - step;
+        this.middleId = maxId - step / 2;
+        this.loadThresholdId = loadThresholdId;
+        this.currentId = minId;
+        this.journalLimit = minId;
+    }
+
+    public long getMinId() {
         return minId;
     }
 
+    public long getMaxId() {
+        return maxId;
+    }
+
+    public long getStep() {
+        return step;
+    }
+
+    public long getMiddleId() {
+        return middleId;
+    }
+
+    long getJournalLimit() {
+        return journalLimit;
+    }
+
+    void setJournalLimit(long journalLimit) {
+        this.journalLimit = journalLimit;
+    }
+
+    long getLoadThresholdId() {
+        return loadThresholdId;
+    }
+
+    /**
+     * 按提前量确定加载备用缓冲区的位置，提前量不改变加载位置时返回自己，否则返回一个新的段
+     * 段在发布给取号线程之前调用
+     *
+     * @param prefetchDistance 估算出来的、在备用缓冲区加载完之前会消耗掉的ID个数
+     * @return
+     */
+    IdSegment withPrefetchDistance(long prefetchDistance) {
+        long threshold = maxId - Math.min(step, Math.max(maxId - middleId, prefetchDistance));
+        return threshold == loadThresholdId ? this : new IdSegment(maxId, step, threshold);
+    }
+
+    /**
+     * 从本段取下一个ID，返回值可能大于maxId，调用方需要自己判断是否越界
+     *
+     * @return
+     */
+    long nextId() {
+        return CURRENT_ID.incrementAndGet(this);
+    }
+
+    /**
+     * 从本段一次取走size个ID，返回取之前的游标，本次可用的ID是(返回值, min(返回值+size, maxId)]
+     *
+     * @param size
+     * @return
+     */
+    long nextIds(int size) {
+        return CURRENT_ID.getAndAdd(this, size);
+    }
+
+    long getCurrentId() {
+        return currentId;
+    }
+
+    /**
+     * 抢占本段的加载触发权，只有第一个抢到的线程返回true
+     *
+     * @return
+     */
+    boolean tryTriggerLoad() {
+        return loadTriggered == 0 && LOAD_TRIGGERED.compareAndSet(this, 0, 1);
+    }
+
+    /**
+     * 加载失败时释放触发权，让后面的线程可以重试
+     */
+    void resetTriggerLoad() {
+        loadTriggered = 0;
+    }
+
     @Override
     public String toString() {
-        return "(" + getMinId() + "," + maxId + "]";
+        return "(" + minId + "," + maxId + "]";
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,17 @@
+package cn.snow.idgetter.doublecache;
+
+/**
+ * bizTag的取号方式
+ *
+ * @author dev
+ */
+public enum IdStrategy {
+    /**
+     * 从仓库一次预留一段，在内存里双缓冲取号，ID稠密递增
+     */
+    SEGMENT,
+    /**
+     * 时间戳 + worker ID + 毫秒内序号，启动时从仓库租用worker ID，之后只定期续租，ID大致按时间递增但不稠密
+     */
+    SNOWFLAKE
+}
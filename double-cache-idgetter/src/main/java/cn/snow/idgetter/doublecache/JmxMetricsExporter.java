@@ -0,0 +1,182 @@
+package cn.snow.idgetter.doublecache;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 把每个bizTag的指标注册成一个MXBean，ObjectName是cn.snow.idgetter:type=IdGetter,bizTag="xxx"
+ * 不依赖外部服务，用jconsole、VisualVM或者JMX agent就能看
+ *
+ * @author dev
+ */
+@Slf4j
+public class JmxMetricsExporter implements MetricsExporter {
+
+    private static final String DOMAIN = "cn.snow.idgetter";
+
+    private final MBeanServer mBeanServer;
+
+    public JmxMetricsExporter() {
+        this(ManagementFactory.getPlatformMBeanServer());
+    }
+
+    public JmxMetricsExporter(MBeanServer mBeanServer) {
+        this.mBeanServer = mBeanServer;
+    }
+
+    @Override
+    public void register(IdGetter idGetter) {
+        try {
+            ObjectName name = objectName(idGetter.getBizTag());
+            // 同名的bizTag重新创建过时，以新的为准
+            if (mBeanServer.isRegistered(name)) {
+                mBeanServer.unregisterMBean(name);
+            }
+            mBeanServer.registerMBean(new Bean(idGetter), name);
+        } catch (JMException e) {
+            log.warn("register metrics mbean of {} fail", idGetter.getBizTag(), e);
+        }
+    }
+
+    @Override
+    public void unregister(IdGetter idGetter) {
+        try {
+            ObjectName name = objectName(idGetter.getBizTag());
+            if (mBeanServer.isRegistered(name)) {
+                mBeanServer.unregisterMBean(name);
+            }
+        } catch (JMException e) {
+            log.warn("unregister metrics mbean of {} fail", idGetter.getBizTag(), e);
+        }
+    }
+
+    public static ObjectName objectName(String bizTag) throws JMException {
+        return new ObjectName(DOMAIN + ":type=IdGetter,bizTag=" + ObjectName.quote(bizTag));
+    }
+
+    /**
+     * 每次读属性都取一次快照，JMX读得不频繁，不需要缓存
+     */
+    private static class Bean implements IdGetterMetricsMXBean {
+
+        private final IdGetter idGetter;
+
+        Bean(IdGetter idGetter) {
+            this.idGetter = idGetter;
+        }
+
+        private IdGetterMetrics metrics() {
+            return idGetter.getMetrics();
+        }
+
+        @Override
+        public String getBizTag() {
+            return idGetter.getBizTag();
+        }
+
+        @Override
+        public long getIdsServed() {
+            return metrics().getIdsServed();
+        }
+
+        @Override
+        public double getIdsPerSecond() {
+            return metrics().getIdsPerSecond();
+        }
+
+        @Override
+        public double getCurrentSegmentFillPercent() {
+            return metrics().getCurrentSegmentFillPercent();
+        }
+
+        @Override
+        public boolean isStandbyReady() {
+            return metrics().isStandbyReady();
+        }
+
+        @Override
+        public int getReadySegments() {
+            return metrics().getReadySegments();
+        }
+
+        @Override
+        public long getSwitchCount() {
+            return metrics().getSwitchCount();
+        }
+
+        @Override
+        public long getStallCount() {
+            return metrics().getStallCount();
+        }
+
+        @Override
+        public long getStallTotalMicros() {
+            return metrics().getStallTotalMicros();
+        }
+
+        @Override
+        public long getStallMaxMicros() {
+            return metrics().getStallMaxMicros();
+        }
+
+        @Override
+        public long getStallP99Micros() {
+            return metrics().getStallP99Micros();
+        }
+
+        @Override
+        public long getRefillCount() {
+            return metrics().getRefillCount();
+        }
+
+        @Override
+        public long getRefillFailures() {
+            return metrics().getRefillFailures();
+        }
+
+        @Override
+        public long getRefillLatencyP50Micros() {
+            return metrics().getRefillLatencyP50Micros();
+        }
+
+        @Override
+        public long getRefillLatencyP99Micros() {
+            return metrics().getRefillLatencyP99Micros();
+        }
+
+        @Override
+        public long getRefillLatencyMaxMicros() {
+            return metrics().getRefillLatencyMaxMicros();
+        }
+
+        @Override
+        public long[] getRefillLatencyBucketBoundsMicros() {
+            return LatencyHistogram.getBucketBoundsMicros();
+        }
+
+        @Override
+        public long[] getRefillLatencyBuckets() {
+            return metrics().getRefillLatencyBuckets();
+        }
+
+        @Override
+        public long getCasFailures() {
+            return metrics().getCasFailures();
+        }
+
+        @Override
+        public long getWastedIds() {
+            return metrics().getWastedIds();
+        }
+
+        @Override
+        public long getFallbackIds() {
+            return metrics().getFallbackIds();
+        }
+    }
+}
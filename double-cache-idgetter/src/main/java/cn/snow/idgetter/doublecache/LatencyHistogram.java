@@ -0,0 +1,110 @@
+package cn.snow.idgetter.doublecache;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 固定桶的耗时直方图，单位微秒
+ * 每个桶是一个LongAdder，记录时不加锁，多个线程同时记录也不会争抢同一个变量
+ *
+ * @author dev
+ */
+public class LatencyHistogram {
+
+    /**
+     * 每个桶的上界（包含），最后一个桶装所有更大的值
+     */
+    private static final long[] BUCKET_BOUNDS_MICROS = {
+            50L, 100L, 250L, 500L,
+            1_000L, 2_500L, 5_000L, 10_000L, 25_000L, 50_000L, 100_000L, 250_000L, 500_000L,
+            1_000_000L, 2_500_000L, 5_000_000L, Long.MAX_VALUE
+    };
+
+    private final LongAdder[] buckets = new LongAdder[BUCKET_BOUNDS_MICROS.length];
+    private final LongAdder totalMicros = new LongAdder();
+    private final AtomicLong maxMicros = new AtomicLong();
+
+    public LatencyHistogram() {
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * 记录一次耗时
+     *
+     * @param micros
+     */
+    public void record(long micros) {
+        long value = Math.max(0L, micros);
+        int i = 0;
+        while (value > BUCKET_BOUNDS_MICROS[i]) {
+            i++;
+        }
+        buckets[i].increment();
+        totalMicros.add(value);
+        long max = maxMicros.get();
+        while (value > max && !maxMicros.compareAndSet(max, value)) {
+            max = maxMicros.get();
+        }
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (LongAdder bucket : buckets) {
+            count += bucket.sum();
+        }
+        return count;
+    }
+
+    public long getTotalMicros() {
+        return totalMicros.sum();
+    }
+
+    public long getMaxMicros() {
+        return maxMicros.get();
+    }
+
+    /**
+     * 估算分位数，返回所在桶的上界，落在最后一个桶时返回最大值
+     *
+     * @param percentile 0到1之间，比如0.99
+     * @return 没有记录时返回0
+     */
+    public long getPercentileMicros(double percentile) {
+        long[] counts = getBucketCounts();
+        long count = 0;
+        for (long c : counts) {
+            count += c;
+        }
+        if (count == 0) {
+            return 0L;
+        }
+        long rank = (long) Math.ceil(percentile * count);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank && counts[i] > 0) {
+                return i == counts.length - 1 ? getMaxMicros() : Math.min(BUCKET_BOUNDS_MICROS[i], getMaxMicros());
+            }
+        }
+        return getMaxMicros();
+    }
+
+    /**
+     * 每个桶的上界，和getBucketCounts()一一对应
+     *
+     * @return
+     */
+    public static long[] getBucketBoundsMicros() {
+        return BUCKET_BOUNDS_MICROS.clone();
+    }
+
+    public long[] getBucketCounts() {
+        long[] counts = new long[buckets.length];
+        for (int i = 0; i < buckets.length; i++) {
+            counts[i] = buckets[i].sum();
+        }
+        return counts;
+    }
+}
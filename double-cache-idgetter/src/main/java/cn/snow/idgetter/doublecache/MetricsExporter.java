@@ -0,0 +1,24 @@
+package cn.snow.idgetter.doublecache;
+
+/**
+ * 把IdGetter的指标接到外部监控系统上
+ * IdGetterFactory每创建一个IdGetter就调用一次register，指标在需要时通过IdGetter.getMetrics()拉取
+ *
+ * @author dev
+ */
+public interface MetricsExporter {
+
+    /**
+     * 开始导出这个IdGetter的指标
+     *
+     * @param idGetter
+     */
+    void register(IdGetter idGetter);
+
+    /**
+     * 停止导出这个IdGetter的指标
+     *
+     * @param idGetter
+     */
+    void unregister(IdGetter idGetter);
+}
@@ -1,7 +1,17 @@
 package cn.snow.idgetter.doublecache;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
 import javax.annotation.Resource;
 
+import org.apache.ibatis.session.SqlSession;
+import org.apache.ibatis.session.SqlSessionFactory;
+
+import cn.snow.idgetter.doublecache.dao.SeqReservation;
 import cn.snow.idgetter.doublecache.dao.TSeqConfDao;
 
 
@@ -10,6 +20,12 @@ public class MybatisSequenceRepository implements ISequenceRepository {
     @Resource
     private TSeqConfDao seqConfDao;
 
+    /**
+     * 批量预留需要自己控制事务
+     */
+    @Resource
+    private SqlSessionFactory sqlSessionFactory;
+
     @Override
     public Long getCurrentSequence(String bizTag) {
         return seqConfDao.selectSeqNum(bizTag, System.currentTimeMillis());
@@ -20,4 +36,60 @@ public class MybatisSequenceRepository implements ISequenceRepository {
     public boolean increaseSequence(String bizTag, long incrSize, Long currentSequence) {
         return seqConfDao.updateSeqNum(bizTag, incrSize, currentSequence) == 1;
     }
+
+    @Override
+    //@Transactional(propagation = Propagation.REQUIRES_NEW, isolation = Isolation.READ_COMMITTED, rollbackFor = Exception.class, timeout = 2)
+    public Long reserveSequence(String bizTag, long incrSize) {
+        SeqReservation reservation = new SeqReservation(bizTag, incrSize);
+        if (seqConfDao.reserveSeqNum(reservation) != 1) {
+            return null;
+        }
+        return reservation.getMaxValue();
+    }
+
+    /**
+     * 加行锁、update、提交在同一个SqlSession的事务里，行锁从读出当前值一直持有到提交，
+     * 别的节点在这期间改不了这些行，当前值加上步长就是这次独占的上界
+     * 不存在或者停用的bizTag不参与update，结果里没有它，和reserveSequence返回null一样；
+     * update的行数和锁住的行数不一致时整体回滚，抛IdGetFailException
+     *
+     * @param incrSizeByBizTag
+     * @return
+     */
+    @Override
+    public Map<String, Long> reserveSequences(Map<String, Long> incrSizeByBizTag) {
+        // 按NAME排序，多个节点同时批量预留时按相同的顺序加行锁，避免死锁
+        TreeMap<String, Long> sorted = new TreeMap<>(incrSizeByBizTag);
+        try (SqlSession session = sqlSessionFactory.openSession(false)) {
+            TSeqConfDao dao = session.getMapper(TSeqConfDao.class);
+            List<SeqReservation> locked = dao.selectSeqNumsForUpdate(sorted.keySet());
+            if (locked.isEmpty()) {
+                return new HashMap<>(0);
+            }
+            List<SeqReservation> reservations = new ArrayList<>(locked.size());
+            Map<String, Long> result = new HashMap<>(locked.size() * 2);
+            for (SeqReservation current : locked) {
+                long incrSize = sorted.get(current.getSeqName());
+                reservations.add(new SeqReservation(current.getSeqName(), incrSize));
+                result.put(current.getSeqName(), current.getMaxValue() + incrSize);
+            }
+            int updated = dao.reserveSeqNums(reservations);
+            if (updated != reservations.size()) {
+                throw new IdGetFailException("reserve sequences fail, updated " + updated + " of " + reservations.size()
+                        + " rows, bizTags=" + result.keySet());
+            }
+            session.commit();
+            return result;
+        }
+    }
+
+    @Override
+    public Long getIncrementSize(String bizTag) {
+        return seqConfDao.selectIncrementSize(bizTag);
+    }
+
+    @Override
+    public List<String> listActiveBizTags() {
+        return seqConfDao.selectActiveSeqNames();
+    }
 }
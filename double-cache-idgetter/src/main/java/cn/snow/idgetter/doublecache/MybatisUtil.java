@@ -48,8 +48,6 @@ public class MybatisUtil {
 
         if (sqlSession == null) {
             log.error("#getSession error, session is nulll");
-        } else {
-            log.info("#getSession successfully");
         }
 
         return sqlSession;
@@ -64,6 +62,5 @@ public class MybatisUtil {
             sqlSession.close();
             localSessions.remove();
         }
-        log.info("#closeSession successfully");
     }
 }
@@ -0,0 +1,245 @@
+package cn.snow.idgetter.doublecache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 本地号段日志，用一个内存映射文件记录每个bizTag当前段的范围和已经可能发出去的最大ID
+ * 重启时IdGetter先从这里恢复当前段没用完的部分，不用访问t_seq_conf
+ * <p>
+ * 1. 每个bizTag一个槽位，记录(maxId, limit)，表示(limit, maxId]之间的ID肯定还没有发出去
+ * 2. 只有force()到磁盘的limit才算数，进程崩溃或者机器掉电都不会丢；异步加载的IdGetter在取号进入最后一块时
+ *    由加载线程把limit往后推一块，取号线程只有在越过limit时才等刷盘。journalChunkSize越大刷盘越少，重启时跳过的ID也越多
+ * 3. 一个槽位同时只能被一个IdGetter持有，同一个bizTag的新IdGetter直接接手，旧的持有者不能再写；
+ *    旧的持有者可能还在发已经记录过的ID，所以接手的IdGetter不从日志恢复，重新从仓库加载
+ * 4. 文件加了进程锁，一个文件只能被一个JVM使用
+ *
+ * @author dev
+ */
+@Slf4j
+public class RangeJournal implements AutoCloseable {
+
+    private static final int MAGIC = 0x534e574a;
+    private static final int HEADER_SIZE = 64;
+    private static final int OFFSET_MAGIC = 0;
+    private static final int OFFSET_SLOT_COUNT = 4;
+
+    private static final int SLOT_SIZE = 128;
+    private static final int MAX_TAG_BYTES = 96;
+    private static final int SLOT_TAG_LENGTH = 0;
+    private static final int SLOT_TAG = 4;
+    private static final int SLOT_MAX_ID = 104;
+    private static final int SLOT_LIMIT = 112;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final FileLock fileLock;
+    private final MappedByteBuffer buffer;
+    private final int slotCount;
+    /**
+     * bizTag -> 槽位在文件里的位置
+     */
+    private final ConcurrentHashMap<String, Integer> slotBases = new ConcurrentHashMap<>();
+    /**
+     * bizTag -> 当前持有的槽位
+     */
+    private final ConcurrentHashMap<String, Slot> claimed = new ConcurrentHashMap<>();
+    private int usedSlots;
+
+    /**
+     * 最多4096个bizTag
+     *
+     * @param path
+     */
+    public RangeJournal(File path) {
+        this(path, 4096);
+    }
+
+    /**
+     * @param path    日志文件，不存在时创建
+     * @param maxTags 最多记录多少个bizTag，已有文件以文件里的为准
+     */
+    public RangeJournal(File path, int maxTags) {
+        try {
+            file = new RandomAccessFile(path, "rw");
+            channel = file.getChannel();
+            fileLock = channel.tryLock();
+            if (fileLock == null) {
+                channel.close();
+                file.close();
+                throw new IdGetFatalException("range journal is used by another process, file=" + path);
+            }
+            boolean exists = channel.size() >= HEADER_SIZE;
+            int count = maxTags;
+            if (exists) {
+                MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+                if (header.getInt(OFFSET_MAGIC) != MAGIC) {
+                    throw new IdGetFatalException("not a range journal file, file=" + path);
+                }
+                count = header.getInt(OFFSET_SLOT_COUNT);
+            }
+            slotCount = count;
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) slotCount * SLOT_SIZE);
+            if (!exists) {
+                buffer.putInt(OFFSET_MAGIC, MAGIC);
+                buffer.putInt(OFFSET_SLOT_COUNT, slotCount);
+                buffer.force();
+            }
+            loadSlots();
+        } catch (IOException e) {
+            throw new IdGetFatalException("open range journal fail, file=" + path, e);
+        }
+    }
+
+    private void loadSlots() {
+        for (int i = 0; i < slotCount; i++) {
+            int base = HEADER_SIZE + i * SLOT_SIZE;
+            int length = buffer.getInt(base + SLOT_TAG_LENGTH);
+            if (length <= 0) {
+                break;
+            }
+            byte[] tag = new byte[length];
+            for (int j = 0; j < length; j++) {
+                tag[j] = buffer.get(base + SLOT_TAG + j);
+            }
+            slotBases.put(new String(tag, StandardCharsets.UTF_8), base);
+            usedSlots = i + 1;
+        }
+    }
+
+    /**
+     * 持有某个bizTag的槽位，没有时分配一个，用完之后调用Slot.release()
+     * 还被别的IdGetter持有时（比如IdGetterFactory淘汰之后马上又创建了）从它手里接过来
+     *
+     * @param bizTag
+     * @return 槽位用完或者bizTag太长时返回null，这个bizTag就不记录
+     */
+    synchronized Slot slot(String bizTag) {
+        Slot previous = claimed.remove(bizTag);
+        if (previous != null) {
+            previous.release();
+            log.info("range journal slot of bizTag={} is handed over to a new IdGetter", bizTag);
+        }
+        Integer base = slotBases.get(bizTag);
+        if (base == null) {
+            base = allocate(bizTag);
+            if (base == null) {
+                return null;
+            }
+        }
+        Slot slot = new Slot(bizTag, base, previous != null);
+        claimed.put(bizTag, slot);
+        return slot;
+    }
+
+    private Integer allocate(String bizTag) {
+        byte[] tag = bizTag.getBytes(StandardCharsets.UTF_8);
+        if (tag.length > MAX_TAG_BYTES || usedSlots >= slotCount) {
+            log.warn("range journal has no slot for bizTag={}, it will not be journaled", bizTag);
+            return null;
+        }
+        int base = HEADER_SIZE + usedSlots * SLOT_SIZE;
+        for (int j = 0; j < tag.length; j++) {
+            buffer.put(base + SLOT_TAG + j, tag[j]);
+        }
+        buffer.putLong(base + SLOT_MAX_ID, 0L);
+        buffer.putLong(base + SLOT_LIMIT, Long.MAX_VALUE);
+        // 最后写长度，写到一半崩溃的槽位长度还是0，打开时会被忽略
+        buffer.putInt(base + SLOT_TAG_LENGTH, tag.length);
+        usedSlots++;
+        slotBases.put(bizTag, base);
+        return base;
+    }
+
+    private synchronized void release(Slot slot) {
+        claimed.remove(slot.bizTag, slot);
+    }
+
+    @Override
+    public void close() {
+        buffer.force();
+        try {
+            fileLock.release();
+            channel.close();
+            file.close();
+        } catch (IOException e) {
+            log.warn("close range journal fail", e);
+        }
+    }
+
+    /**
+     * 一个IdGetter持有的槽位，写入由IdGetter保证串行
+     */
+    final class Slot {
+        private final String bizTag;
+        private final int base;
+        /**
+         * 从还没释放的持有者手里接过来的
+         */
+        private final boolean handedOver;
+        private boolean released;
+
+        private Slot(String bizTag, int base, boolean handedOver) {
+            this.bizTag = bizTag;
+            this.base = base;
+            this.handedOver = handedOver;
+        }
+
+        /**
+         * 上次记录的段里还没有发出去的部分
+         *
+         * @return {limit, maxId}，没有可用的部分或者是接手来的槽位时返回null
+         */
+        synchronized long[] restore() {
+            if (handedOver) {
+                return null;
+            }
+            long maxId = buffer.getLong(base + SLOT_MAX_ID);
+            long limit = buffer.getLong(base + SLOT_LIMIT);
+            return limit < maxId ? new long[]{limit, maxId} : null;
+        }
+
+        /**
+         * 记录段(minId, maxId]里不大于limit的ID可能已经发出去了，刷到磁盘之后才返回
+         * 换段时先把limit写成最大值，任何时候崩溃，文件里的(limit, maxId]都不会包含已经发出去的ID
+         *
+         * @param minId
+         * @param maxId
+         * @param limit
+         * @throws IdGetFailException 槽位已经释放
+         */
+        synchronized void record(long minId, long maxId, long limit) {
+            if (released) {
+                throw new IdGetFailException("range journal slot of bizTag=" + bizTag + " is released");
+            }
+            if (buffer.getLong(base + SLOT_MAX_ID) != maxId) {
+                buffer.putLong(base + SLOT_LIMIT, Long.MAX_VALUE);
+                buffer.putLong(base + SLOT_MAX_ID, maxId);
+            }
+            buffer.putLong(base + SLOT_LIMIT, Math.max(minId, limit));
+            buffer.force();
+        }
+
+        long getMaxId() {
+            return buffer.getLong(base + SLOT_MAX_ID);
+        }
+
+        /**
+         * 释放之后这个bizTag可以被别的IdGetter持有，这个对象不能再写
+         */
+        synchronized void release() {
+            if (!released) {
+                released = true;
+                RangeJournal.this.release(this);
+            }
+        }
+    }
+}
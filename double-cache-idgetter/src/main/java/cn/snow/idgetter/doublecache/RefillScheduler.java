@@ -0,0 +1,321 @@
+package cn.snow.idgetter.doublecache;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 所有IdGetter共用的缓冲区加载调度器
+ * <p>
+ * 1. 线程数固定，数据库不可用时也不会越堆越多；用虚拟线程时每个任务一个虚拟线程，同一个key同时只有一个任务，
+ *    所以同时在跑的任务不会超过IdGetter的个数
+ * 2. 同一个key（一般就是IdGetter自己）同时只会有一个加载任务，重复提交直接拿到正在跑的那个任务的结果
+ * 3. 失败后按指数退避加随机抖动重新调度，等待期间不占用线程
+ *    异步任务（submitAsyncWithRetry）只在开始时占用线程，返回的future完成才算结束，等仓库的期间也不占用线程
+ * 4. 线程都是守护线程，也可以调用close()主动关闭
+ * 5. 运行在JDK 21以上并且设置了系统属性snow.idgetter.refill.virtualThreads=true时，共享调度器的任务交给
+ *    Executors.newVirtualThreadPerTaskExecutor()执行，延时用单独的一个平台线程
+ *
+ * @author dev
+ */
+@Slf4j
+public class RefillScheduler implements AutoCloseable {
+
+    private static final String VIRTUAL_THREADS_PROPERTY = "snow.idgetter.refill.virtualThreads";
+
+    private static volatile RefillScheduler shared;
+
+    /**
+     * 只用来做延时，到点后把任务交给worker执行
+     * 为null表示借用共享调度器的，见RefillScheduler(ExecutorService)
+     */
+    private final ScheduledExecutorService timer;
+    /**
+     * 执行加载任务的线程池
+     */
+    private final ExecutorService worker;
+    /**
+     * worker是不是自己创建的，自己创建的才在close时关闭
+     */
+    private final boolean ownsWorker;
+    /**
+     * 正在进行的加载任务，按key去重
+     */
+    private final ConcurrentHashMap<Object, CompletableFuture<Boolean>> inFlight = new ConcurrentHashMap<>();
+    /**
+     * 第一次重试的基础等待时间
+     */
+    private final long baseBackoffMillis;
+    /**
+     * 重试等待时间的上限
+     */
+    private final long maxBackoffMillis;
+
+    /**
+     * 自己创建固定数量的守护线程
+     *
+     * @param threads
+     * @param virtualThreads 是否尝试使用虚拟线程，JDK不支持时退回普通线程
+     */
+    public RefillScheduler(int threads, boolean virtualThreads) {
+        ExecutorService virtualWorker = virtualThreads ? virtualThreadPerTaskExecutor() : null;
+        if (virtualWorker != null) {
+            this.timer = newTimer(1, "snow-id-getter-refill-timer");
+            this.worker = virtualWorker;
+        } else {
+            ScheduledThreadPoolExecutor executor = newTimer(threads, "snow-id-getter-refill");
+            this.timer = executor;
+            this.worker = executor;
+        }
+        this.ownsWorker = true;
+        this.baseBackoffMillis = 100L;
+        this.maxBackoffMillis = 5000L;
+    }
+
+    /**
+     * 使用调用方提供的线程池执行加载任务，兼容IdGetter原来传入ExecutorService的构造方式
+     * 不创建线程，延时借用共享调度器的timer，每次都取当前的共享调度器，shutdownShared之后会用重新创建的那个；
+     * close不关闭调用方的线程池，也不关闭共享的timer
+     *
+     * @param worker
+     */
+    public RefillScheduler(ExecutorService worker) {
+        this.timer = null;
+        this.worker = worker;
+        this.ownsWorker = false;
+        this.baseBackoffMillis = 100L;
+        this.maxBackoffMillis = 5000L;
+    }
+
+    private static ScheduledThreadPoolExecutor newTimer(int threads, String prefix) {
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(threads,
+                new IdGetterFactory.SnowIdGetterThreadFactory(prefix, true));
+        executor.setRemoveOnCancelPolicy(true);
+        return executor;
+    }
+
+    /**
+     * 进程内共享的调度器，第一次使用时创建
+     *
+     * @return
+     */
+    public static RefillScheduler shared() {
+        RefillScheduler scheduler = shared;
+        if (scheduler == null) {
+            synchronized (RefillScheduler.class) {
+                scheduler = shared;
+                if (scheduler == null) {
+                    int threads = Math.max(2, Math.min(8, Runtime.getRuntime().availableProcessors()));
+                    scheduler = new RefillScheduler(threads, Boolean.getBoolean(VIRTUAL_THREADS_PROPERTY));
+                    shared = scheduler;
+                }
+            }
+        }
+        return scheduler;
+    }
+
+    /**
+     * 关闭共享调度器，之后再调用shared()会重新创建一个
+     */
+    public static void shutdownShared() {
+        RefillScheduler scheduler;
+        synchronized (RefillScheduler.class) {
+            scheduler = shared;
+            shared = null;
+        }
+        if (scheduler != null) {
+            scheduler.close();
+        }
+    }
+
+    /**
+     * 提交一个只执行一次的加载任务
+     *
+     * @param key    去重的key，同一个key同时只有一个任务
+     * @param refill
+     * @return
+     */
+    public CompletableFuture<Boolean> submit(Object key, Callable<Boolean> refill) {
+        return submitWithRetry(key, refill, 1);
+    }
+
+    /**
+     * 提交一个加载任务，失败后退避重试，最多执行maxAttempts次
+     * 如果这个key已经有任务在跑，直接返回那个任务的结果
+     *
+     * @param key
+     * @param refill
+     * @param maxAttempts
+     * @return
+     */
+    public CompletableFuture<Boolean> submitWithRetry(Object key, Callable<Boolean> refill, int maxAttempts) {
+        return submitAsyncWithRetry(key, () -> CompletableFuture.completedFuture(refill.call()), maxAttempts);
+    }
+
+    /**
+     * 提交一个只执行一次的异步加载任务
+     *
+     * @param key
+     * @param refill
+     * @return
+     */
+    public CompletableFuture<Boolean> submitAsync(Object key, Callable<CompletableFuture<Boolean>> refill) {
+        return submitAsyncWithRetry(key, refill, 1);
+    }
+
+    /**
+     * 提交一个异步加载任务，refill在worker里调用，它返回的future失败时退避重试，最多执行maxAttempts次
+     * 如果这个key已经有任务在跑，直接返回那个任务的结果
+     *
+     * @param key
+     * @param refill
+     * @param maxAttempts
+     * @return
+     */
+    public CompletableFuture<Boolean> submitAsyncWithRetry(Object key, Callable<CompletableFuture<Boolean>> refill, int maxAttempts) {
+        CompletableFuture<Boolean> created = new CompletableFuture<>();
+        CompletableFuture<Boolean> existing = inFlight.putIfAbsent(key, created);
+        if (existing != null) {
+            return existing;
+        }
+        execute(key, refill, created, 1, maxAttempts);
+        return created;
+    }
+
+    private void execute(Object key, Callable<CompletableFuture<Boolean>> refill, CompletableFuture<Boolean> result, int attempt, int maxAttempts) {
+        try {
+            worker.execute(() -> run(key, refill, result, attempt, maxAttempts));
+        } catch (RejectedExecutionException e) {
+            // 不在调用方线程里执行，交给调用方自己决定怎么处理
+            finish(key, result, null, e);
+        }
+    }
+
+    private void run(Object key, Callable<CompletableFuture<Boolean>> refill, CompletableFuture<Boolean> result, int attempt, int maxAttempts) {
+        CompletableFuture<Boolean> attempted;
+        try {
+            attempted = refill.call();
+        } catch (Exception e) {
+            attempted = new CompletableFuture<>();
+            attempted.completeExceptionally(e);
+        }
+        attempted.whenComplete((value, error) -> {
+            if (error == null) {
+                finish(key, result, value, null);
+            } else {
+                retry(key, refill, result, attempt, maxAttempts, unwrap(error));
+            }
+        });
+    }
+
+    private void retry(Object key, Callable<CompletableFuture<Boolean>> refill, CompletableFuture<Boolean> result, int attempt, int maxAttempts,
+                       Throwable error) {
+        if (attempt >= maxAttempts || timer().isShutdown()) {
+            log.warn("refill of {} fail after {} attempts", key, attempt, error);
+            finish(key, result, null, error);
+            return;
+        }
+        long delay = backoffMillis(attempt);
+        log.warn("refill of {} fail at attempt {}, retry after {}ms", key, attempt, delay, error);
+        try {
+            timer().schedule(() -> execute(key, refill, result, attempt + 1, maxAttempts), delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException rejected) {
+            finish(key, result, null, error);
+        }
+    }
+
+    /**
+     * 去掉CompletableFuture组合时包上的CompletionException，调用方看到的还是任务自己抛的异常
+     *
+     * @param error
+     * @return
+     */
+    static Throwable unwrap(Throwable error) {
+        return error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+    }
+
+    /**
+     * 先从inFlight里移除再完成，保证拿到结果的调用方再提交时能创建新的任务
+     */
+    private void finish(Object key, CompletableFuture<Boolean> result, Boolean value, Throwable error) {
+        inFlight.remove(key, result);
+        if (error == null) {
+            result.complete(value);
+        } else {
+            result.completeExceptionally(error);
+        }
+    }
+
+    /**
+     * 指数退避，并在后一半范围内随机抖动，避免多个IdGetter同时重试
+     *
+     * @param attempt 已经失败的次数
+     * @return
+     */
+    long backoffMillis(int attempt) {
+        long exp = Math.min(maxBackoffMillis, baseBackoffMillis << Math.min(attempt - 1, 16));
+        return exp / 2 + ThreadLocalRandom.current().nextLong(exp / 2 + 1);
+    }
+
+    /**
+     * 执行加载任务的线程池，给需要在加载线程里做的其他初始化用
+     *
+     * @return
+     */
+    Executor executor() {
+        return worker;
+    }
+
+    /**
+     * 做延时用的线程，也给只接受ExecutorService的旧代码用
+     *
+     * @return
+     */
+    ScheduledExecutorService timer() {
+        return timer != null ? timer : shared().timer();
+    }
+
+    /**
+     * 停止接收新任务，还没有执行的任务以失败结束
+     */
+    @Override
+    public void close() {
+        if (ownsWorker) {
+            worker.shutdown();
+        }
+        if (timer != null && timer != worker) {
+            timer.shutdown();
+        }
+        for (Object key : inFlight.keySet()) {
+            CompletableFuture<Boolean> pending = inFlight.remove(key);
+            if (pending != null) {
+                pending.completeExceptionally(new IdGetFailException("refill scheduler closed"));
+            }
+        }
+    }
+
+    /**
+     * 通过反射使用JDK 21的Executors.newVirtualThreadPerTaskExecutor()，编译目标还是JDK 8
+     *
+     * @return 不支持时返回null
+     */
+    private static ExecutorService virtualThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            log.warn("virtual threads are not available, fall back to platform threads", e);
+            return null;
+        }
+    }
+}
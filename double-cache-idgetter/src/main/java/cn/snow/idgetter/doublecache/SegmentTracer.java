@@ -0,0 +1,92 @@
+package cn.snow.idgetter.doublecache;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 记录段的生命周期事件：开始加载、加载完成、加载失败、切换、等待、改用备用生成器
+ * 只在加载和切换这些低频路径上调用，取号路径上不会记录任何日志
+ * 每个bizTag一个实例，每秒最多输出maxEventsPerSecond条，超出的只计数，在下一条日志里带出来
+ * maxEventsPerSecond小于等于0时关闭，trace()直接返回，也不会格式化参数
+ * 日志输出到INFO级别，logger名就是这个类的全名
+ *
+ * @author dev
+ */
+@Slf4j
+public class SegmentTracer {
+
+    public enum Event {
+        /**
+         * 开始从仓库加载一个段，value是上一个段的步长，第一次加载是0
+         */
+        REFILL_STARTED,
+        /**
+         * 加载成功，value是耗时（微秒）
+         */
+        REFILL_DONE,
+        /**
+         * 一次加载失败，value是耗时（微秒）
+         */
+        REFILL_FAILED,
+        /**
+         * 切换到了下一个段，value是切换后的段序号
+         */
+        SWITCHED,
+        /**
+         * 切换时备用缓冲区还没准备好，value是等待的时间（微秒），异步接口不等待，固定是0
+         */
+        WAITED,
+        /**
+         * 仓库不可用，改用时间型的备用生成器取号，value是这次发出的ID个数
+         */
+        FALLBACK
+    }
+
+    private final String bizTag;
+    private final int maxEventsPerSecond;
+    /**
+     * 当前计数窗口所在的秒
+     */
+    private final AtomicLong windowSecond = new AtomicLong();
+    private final AtomicInteger emittedInWindow = new AtomicInteger();
+    private final AtomicLong suppressed = new AtomicLong();
+
+    public SegmentTracer(String bizTag, int maxEventsPerSecond) {
+        this.bizTag = bizTag;
+        this.maxEventsPerSecond = maxEventsPerSecond;
+    }
+
+    public boolean isEnabled() {
+        return maxEventsPerSecond > 0 && log.isInfoEnabled();
+    }
+
+    /**
+     * 记录一个事件，参数都是基本类型或者已有对象，关闭时没有任何分配
+     *
+     * @param event
+     * @param segment 事件相关的段，没有时传null
+     * @param value   含义见{@link Event}
+     */
+    public void trace(Event event, IdSegment segment, long value) {
+        if (maxEventsPerSecond <= 0 || !log.isInfoEnabled()) {
+            return;
+        }
+        long second = System.currentTimeMillis() / 1000;
+        long window = windowSecond.get();
+        if (window != second && windowSecond.compareAndSet(window, second)) {
+            emittedInWindow.set(0);
+        }
+        if (emittedInWindow.incrementAndGet() > maxEventsPerSecond) {
+            suppressed.incrementAndGet();
+            return;
+        }
+        long dropped = suppressed.getAndSet(0);
+        if (dropped > 0) {
+            log.info("bizTag={} event={} segment={} value={} suppressed={}", bizTag, event, segment, value, dropped);
+        } else {
+            log.info("bizTag={} event={} segment={} value={}", bizTag, event, segment, value);
+        }
+    }
+}
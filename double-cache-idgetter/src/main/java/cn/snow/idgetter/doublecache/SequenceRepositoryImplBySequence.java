@@ -1,11 +1,141 @@
 package cn.snow.idgetter.doublecache;
 
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+import javax.sql.DataSource;
+
+/**
+ * 用数据库原生的sequence预留ID，每个bizTag对应一个sequence，不需要t_seq_conf
+ * nextval本身是原子的、不参与事务，一次加载就是一条语句，没有行锁，也没有CAS失败重试
+ * <p>
+ * 1. 推荐按incrSize建sequence，比如CREATE SEQUENCE order_id START WITH 1 INCREMENT BY 5000，
+ *    一次nextval得到一个值v，这个节点独占(v - 1, v - 1 + incrSize]这一段
+ * 2. 兼容以前INCREMENT BY 1的sequence，v表示第v段，也就是(v * incrSize - incrSize, v * incrSize]，
+ *    这种方式要求incrSize固定不变
+ * 3. 两种都不是的sequence直接抛IdGetFatalException，不能开启自适应步长
+ * 4. reserveSequences用一条语句同时取多个sequence的下一个值，配合BatchingSequenceRepository使用，
+ *    一次nextval只能预留incrSize个，同一个bizTag的多个请求不能合并，见canMergeReservations
+ *
+ * @author dev
+ */
 public class SequenceRepositoryImplBySequence implements ISequenceRepository {
 
+    private static final Pattern SEQUENCE_NAME = Pattern.compile("[A-Za-z_][A-Za-z0-9_$]*(\\.[A-Za-z_][A-Za-z0-9_$]*)?");
+
+    /**
+     * 不同数据库取sequence下一个值的写法
+     */
+    public enum Dialect {
+        /**
+         * SQL标准的NEXT VALUE FOR，H2、MariaDB 10.3+、SQL Server
+         */
+        STANDARD {
+            @Override
+            String nextValuesSql(List<String> sequences) {
+                return "SELECT " + join(sequences, "NEXT VALUE FOR ", "");
+            }
+        },
+        /**
+         * HSQLDB的SELECT必须有FROM，用VALUES
+         */
+        HSQLDB {
+            @Override
+            String nextValuesSql(List<String> sequences) {
+                return "VALUES (" + join(sequences, "NEXT VALUE FOR ", "") + ")";
+            }
+        },
+        POSTGRESQL {
+            @Override
+            String nextValuesSql(List<String> sequences) {
+                return "SELECT " + join(sequences, "nextval('", "')");
+            }
+        },
+        ORACLE {
+            @Override
+            String nextValuesSql(List<String> sequences) {
+                return "SELECT " + join(sequences, "", ".NEXTVAL") + " FROM DUAL";
+            }
+
+            @Override
+            String incrementSql() {
+                return "SELECT INCREMENT_BY FROM USER_SEQUENCES WHERE SEQUENCE_NAME = UPPER(?)";
+            }
+        };
+
+        /**
+         * 一行里依次是每个sequence的下一个值
+         *
+         * @param sequences
+         * @return
+         */
+        abstract String nextValuesSql(List<String> sequences);
+
+        /**
+         * 查询sequence的步长，参数是sequence名
+         *
+         * @return
+         */
+        String incrementSql() {
+            return "SELECT INCREMENT FROM INFORMATION_SCHEMA.SEQUENCES WHERE UPPER(SEQUENCE_NAME) = UPPER(?)";
+        }
+
+        private static String join(List<String> sequences, String prefix, String suffix) {
+            StringBuilder sql = new StringBuilder();
+            for (String sequence : sequences) {
+                if (sql.length() > 0) {
+                    sql.append(", ");
+                }
+                sql.append(prefix).append(sequence).append(suffix);
+            }
+            return sql.toString();
+        }
+    }
+
+    private final DataSource dataSource;
+    private final Dialect dialect;
+    /**
+     * sequence名 = 前缀 + bizTag
+     */
+    private final String sequenceNamePrefix;
+    /**
+     * sequence名 -> 步长，步长建好之后不会变，只查一次
+     */
+    private final ConcurrentHashMap<String, Long> increments = new ConcurrentHashMap<>();
+
+    public SequenceRepositoryImplBySequence(DataSource dataSource, Dialect dialect) {
+        this(dataSource, dialect, "");
+    }
+
+    /**
+     * @param dataSource
+     * @param dialect
+     * @param sequenceNamePrefix 比如"seq_"，bizTag是order时使用seq_order这个sequence
+     */
+    public SequenceRepositoryImplBySequence(DataSource dataSource, Dialect dialect, String sequenceNamePrefix) {
+        this.dataSource = dataSource;
+        this.dialect = dialect;
+        this.sequenceNamePrefix = sequenceNamePrefix;
+    }
+
+    /**
+     * 取sequence的下一个值，给IdGetterImplBySequence用，它自己乘以incrSize
+     *
+     * @param bizTag
+     * @return
+     */
     @Override
     public Long getCurrentSequence(String bizTag) {
-        //TODO getNextSequence
-        return null;
+        return nextValues(new String[]{sequenceName(bizTag)})[0];
     }
 
     @Override
@@ -13,4 +143,118 @@ public class SequenceRepositoryImplBySequence implements ISequenceRepository {
         throw new UnsupportedOperationException("getCurrentSequence is increaseOneAndGet, so the increaseSequence was not required");
     }
 
+    @Override
+    public Long reserveSequence(String bizTag, long incrSize) {
+        String sequence = sequenceName(bizTag);
+        // 先确认步长，配置错误的sequence不会白白消耗掉一个值
+        long increment = increment(sequence);
+        return toMaxId(sequence, increment, incrSize, nextValues(new String[]{sequence})[0]);
+    }
+
+    /**
+     * 合并之后的个数是incrSize的几倍，不是sequence的步长，换算不出maxId
+     *
+     * @return
+     */
+    @Override
+    public boolean canMergeReservations() {
+        return false;
+    }
+
+    @Override
+    public Map<String, Long> reserveSequences(Map<String, Long> incrSizeByBizTag) {
+        List<String> bizTags = new ArrayList<>(incrSizeByBizTag.keySet());
+        String[] sequences = new String[bizTags.size()];
+        long[] increments = new long[sequences.length];
+        for (int i = 0; i < sequences.length; i++) {
+            sequences[i] = sequenceName(bizTags.get(i));
+            increments[i] = increment(sequences[i]);
+        }
+        long[] values = nextValues(sequences);
+        Map<String, Long> result = new HashMap<>(sequences.length * 2);
+        for (int i = 0; i < sequences.length; i++) {
+            String bizTag = bizTags.get(i);
+            result.put(bizTag, toMaxId(sequences[i], increments[i], incrSizeByBizTag.get(bizTag), values[i]));
+        }
+        return result;
+    }
+
+    /**
+     * 按sequence的步长把取到的值换算成新段的maxId
+     *
+     * @param sequence
+     * @param increment sequence的步长
+     * @param incrSize
+     * @param value
+     * @return
+     */
+    private static Long toMaxId(String sequence, long increment, long incrSize, long value) {
+        if (increment == incrSize) {
+            return value - 1 + incrSize;
+        }
+        if (increment == 1L) {
+            return value * incrSize;
+        }
+        throw new IdGetFatalException("increment of sequence " + sequence + " is " + increment
+                + ", it should be 1 or the same as incrSize=" + incrSize);
+    }
+
+    private long increment(String sequence) {
+        Long increment = increments.get(sequence);
+        if (increment != null) {
+            return increment;
+        }
+        try (Connection connection = dataSource.getConnection();
+             PreparedStatement statement = connection.prepareStatement(dialect.incrementSql())) {
+            statement.setString(1, sequence.substring(sequence.indexOf('.') + 1));
+            try (ResultSet resultSet = statement.executeQuery()) {
+                if (!resultSet.next()) {
+                    throw new IdGetFatalException("sequence " + sequence + " does not exist");
+                }
+                increment = resultSet.getLong(1);
+            }
+        } catch (SQLException e) {
+            throw new IdGetFailException("query increment of sequence " + sequence + " fail", e);
+        }
+        increments.put(sequence, increment);
+        return increment;
+    }
+
+    /**
+     * 一条语句取多个sequence的下一个值
+     *
+     * @param sequences
+     * @return 和sequences一一对应
+     */
+    private long[] nextValues(String[] sequences) {
+        String sql = dialect.nextValuesSql(Arrays.asList(sequences));
+        try (Connection connection = dataSource.getConnection();
+             PreparedStatement statement = connection.prepareStatement(sql);
+             ResultSet resultSet = statement.executeQuery()) {
+            if (!resultSet.next()) {
+                throw new IdGetFailException("no value returned by " + sql);
+            }
+            long[] values = new long[sequences.length];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = resultSet.getLong(i + 1);
+            }
+            return values;
+        } catch (SQLException e) {
+            throw new IdGetFailException("fetch next value of sequences fail, sql=" + sql, e);
+        }
+    }
+
+    /**
+     * sequence名会直接拼进SQL，只允许标识符
+     *
+     * @param bizTag
+     * @return
+     */
+    private String sequenceName(String bizTag) {
+        String sequence = sequenceNamePrefix + bizTag;
+        if (!SEQUENCE_NAME.matcher(sequence).matches()) {
+            throw new IllegalArgumentException("invalid sequence name: " + sequence);
+        }
+        return sequence;
+    }
 }
@@ -1,19 +1,81 @@
 package cn.snow.idgetter.doublecache;
 
-public class SequenceRepositoryImplPartitionBy implements ISequenceRepository{
+import javax.annotation.Resource;
+
+import cn.snow.idgetter.doublecache.dao.SeqReservation;
+import cn.snow.idgetter.doublecache.dao.TSeqConfDao;
+
+/**
+ * 按分区取号的仓库，bizTag = groupBy + 分隔符 + partitionBy，比如invoice#merchant42#20261017
+ * 每个分区是t_seq_conf里的一行，第一次使用时自动插入，之后和普通的bizTag一样更新，
+ * 所以每个商户每天的编号都从1开始
+ * <p>
+ * 1. reserveSequence先按reserveSeqNum预留，行已经存在时一次往返；没有这一行才insert ignore插入，
+ *    多个节点同时第一次使用同一个分区也只会插入一行，没插进去的再预留一次
+ *    停用(status不是'a')的分区和MybatisSequenceRepository一样返回null
+ * 2. 分区可能有几百万个，节点上只缓存最近用过的分区的IdGetter，见IdGetterFactory.getPartitionId
+ * 3. 过期分区的行不会自动删除，需要的话按edate定期清理
+ *
+ * @author dev
+ */
+public class SequenceRepositoryImplPartitionBy implements ISequenceRepository {
+
+    @Resource
+    private TSeqConfDao seqConfDao;
+
+    public SequenceRepositoryImplPartitionBy() {
+    }
+
+    public SequenceRepositoryImplPartitionBy(TSeqConfDao seqConfDao) {
+        this.seqConfDao = seqConfDao;
+    }
+
+    /**
+     * 分区的行还没有插入时返回null
+     *
+     * @param bizTag
+     * @return
+     */
     @Override
     public Long getCurrentSequence(String bizTag) {
-        //TODO bizTag=groupBy+partitionBy
-        return null;
+        return seqConfDao.selectSeqNum(bizTag, System.currentTimeMillis());
     }
 
+    /**
+     * currentSequence为null表示这个分区还没有行，插入一行，CURRENT_VALUE就是incrSize；
+     * 否则和MybatisSequenceRepository一样按currentSequence做CAS更新
+     *
+     * @param bizTag
+     * @param incrSize
+     * @param currentSequence
+     * @return
+     */
     @Override
+    //@Transactional(propagation = Propagation.REQUIRES_NEW, isolation = Isolation.READ_COMMITTED, rollbackFor = Exception.class, timeout = 2)
     public boolean increaseSequence(String bizTag, long incrSize, Long currentSequence) {
-        /**
-         * TODO
-         * 1. currentSequence == null, insert, return count == 1
-         * 2. currentSequence != null, update, return count == 1
-         */
-        return false;
+        if (currentSequence == null) {
+            return seqConfDao.insertSeqNum(bizTag, incrSize) == 1;
+        }
+        return seqConfDao.updateSeqNum(bizTag, incrSize, currentSequence) == 1;
+    }
+
+    @Override
+    //@Transactional(propagation = Propagation.REQUIRES_NEW, isolation = Isolation.READ_COMMITTED, rollbackFor = Exception.class, timeout = 2)
+    public Long reserveSequence(String bizTag, long incrSize) {
+        SeqReservation reservation = new SeqReservation(bizTag, incrSize);
+        if (seqConfDao.reserveSeqNum(reservation) == 1) {
+            return reservation.getMaxValue();
+        }
+        if (seqConfDao.insertSeqNum(bizTag, incrSize) == 1) {
+            // 新插入的行，CURRENT_VALUE就是第一段的maxValue
+            return incrSize;
+        }
+        // 别的节点刚插入了这一行，再预留一次；还是没有更新到说明这一行已经停用
+        return seqConfDao.reserveSeqNum(reservation) == 1 ? reservation.getMaxValue() : null;
+    }
+
+    @Override
+    public Long getIncrementSize(String bizTag) {
+        return seqConfDao.selectIncrementSize(bizTag);
     }
 }
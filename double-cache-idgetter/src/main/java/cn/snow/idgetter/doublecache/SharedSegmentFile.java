@@ -0,0 +1,328 @@
+package cn.snow.idgetter.doublecache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 同一台机器上多个JVM共用的号段文件，用内存映射共享从仓库预留的号段，配合SharedSegmentIdGetter使用
+ * 每个JVM各自预留号段时，数据库压力和重启丢掉的ID都要乘以JVM个数，共用之后整台机器只有一份
+ * <p>
+ * 1. 每个bizTag一个槽位，槽位里是两个段组成的环和一个游标，游标高32位是段的序号，低32位是段内已经领走的个数，
+ *    槽位只在持有它的文件锁时用普通的getLong/putLong读写，进程每次领一小块ID，块内在进程里发，不用每个ID都拿锁
+ * 2. 序号为e的段放在环的e % 2位置，段的内容在游标进入这个序号之前写好，之后不会再改
+ * 3. 加载备用段时先在槽位里登记正在加载的序号和截止时间，放开锁再去仓库预留，预留完再拿锁写入段，
+ *    哪个进程都可以加载，加载的进程崩溃了，过了截止时间别的进程接着加载
+ * 4. 每个进程同一时间最多持有一把文件锁，不会因为进程之间互相等锁被系统判定为死锁
+ * 5. 每个打开文件的进程都持有一个共享锁，第一个打开的进程清空所有槽位，机器重启或者所有进程都退出之后，
+ *    文件里可能没来得及刷盘的游标不会被用来继续发号
+ * 6. 文件锁是按进程的，一个JVM里一个文件只能打开一次，建议放在/dev/shm下
+ *
+ * @author dev
+ */
+@Slf4j
+public class SharedSegmentFile implements AutoCloseable {
+
+    private static final int MAGIC = 0x534e5753;
+    private static final int HEADER_SIZE = 64;
+    private static final int OFFSET_MAGIC = 0;
+    private static final int OFFSET_SLOT_COUNT = 4;
+    /**
+     * 活着的进程在这里持有共享锁
+     */
+    private static final int LOCK_ALIVE = 16;
+    /**
+     * 初始化文件和分配槽位时持有的排他锁
+     */
+    private static final int LOCK_ALLOCATE = 24;
+
+    private static final int SLOT_SIZE = 256;
+    private static final int MAX_TAG_BYTES = 96;
+    private static final int SLOT_TAG_LENGTH = 0;
+    private static final int SLOT_TAG = 4;
+    /**
+     * 游标和加载登记占一个缓存行，段占一个缓存行
+     */
+    private static final int SLOT_CURSOR = 128;
+    private static final int SLOT_LOADING_EPOCH = 136;
+    private static final int SLOT_LOADING_UNTIL = 144;
+    private static final int SLOT_SEGMENTS = 192;
+    private static final int SEGMENT_SIZE = 32;
+    private static final int SEGMENT_MAX_ID = 0;
+    private static final int SEGMENT_STEP = 8;
+    private static final int SEGMENT_EPOCH = 16;
+
+    private final File path;
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final FileLock aliveLock;
+    private final MappedByteBuffer buffer;
+    private final int slotCount;
+    private final ConcurrentHashMap<String, Slot> slots = new ConcurrentHashMap<>();
+
+    /**
+     * 最多1024个bizTag
+     *
+     * @param path
+     */
+    public SharedSegmentFile(File path) {
+        this(path, 1024);
+    }
+
+    /**
+     * @param path    共享文件，不存在时创建
+     * @param maxTags 最多多少个bizTag，已有文件以文件里的为准
+     */
+    public SharedSegmentFile(File path, int maxTags) {
+        this.path = path;
+        try {
+            file = new RandomAccessFile(path, "rw");
+            channel = file.getChannel();
+            FileLock allocateLock = channel.lock(LOCK_ALLOCATE, 8, false);
+            try {
+                int count = maxTags;
+                if (channel.size() < HEADER_SIZE) {
+                    file.setLength(HEADER_SIZE + (long) count * SLOT_SIZE);
+                } else {
+                    MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+                    if (header.getInt(OFFSET_MAGIC) != MAGIC) {
+                        throw new IdGetFatalException("not a shared segment file, file=" + path);
+                    }
+                    count = header.getInt(OFFSET_SLOT_COUNT);
+                }
+                slotCount = count;
+                buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) slotCount * SLOT_SIZE);
+                buffer.putInt(OFFSET_SLOT_COUNT, slotCount);
+                buffer.putInt(OFFSET_MAGIC, MAGIC);
+                FileLock alone = channel.tryLock(LOCK_ALIVE, 8, false);
+                if (alone != null) {
+                    resetSlots();
+                    alone.release();
+                }
+                // 共享锁只会和上面的tryLock冲突，而那必须先拿到LOCK_ALLOCATE，这里不会等
+                aliveLock = channel.tryLock(LOCK_ALIVE, 8, true);
+                if (aliveLock == null) {
+                    throw new IdGetFatalException("lock shared segment file fail, file=" + path);
+                }
+            } finally {
+                allocateLock.release();
+            }
+        } catch (IOException e) {
+            throw new IdGetFatalException("open shared segment file fail, file=" + path, e);
+        }
+    }
+
+    /**
+     * 没有别的进程在用，上次留下的游标和段都不可信，清掉，bizTag保留
+     */
+    private void resetSlots() {
+        for (int i = 0; i < slotCount; i++) {
+            int base = HEADER_SIZE + i * SLOT_SIZE;
+            if (buffer.getInt(base + SLOT_TAG_LENGTH) <= 0) {
+                break;
+            }
+            for (int offset = SLOT_CURSOR; offset < SLOT_SIZE; offset += 8) {
+                buffer.putLong(base + offset, 0L);
+            }
+        }
+        log.info("shared segment file {} opened by the first process, segments reset", path);
+    }
+
+    /**
+     * 某个bizTag的槽位，没有时在文件里分配一个，别的进程分配的槽位也能找到
+     *
+     * @param bizTag
+     * @return
+     */
+    Slot slot(String bizTag) {
+        Slot slot = slots.get(bizTag);
+        return slot != null ? slot : allocate(bizTag);
+    }
+
+    private synchronized Slot allocate(String bizTag) {
+        Slot slot = slots.get(bizTag);
+        if (slot != null) {
+            return slot;
+        }
+        byte[] tag = bizTag.getBytes(StandardCharsets.UTF_8);
+        if (tag.length > MAX_TAG_BYTES) {
+            throw new IllegalArgumentException("bizTag too long for shared segment file, bizTag=" + bizTag);
+        }
+        FileLock lock;
+        try {
+            lock = channel.lock(LOCK_ALLOCATE, 8, false);
+        } catch (IOException e) {
+            throw new IdGetFailException("lock shared segment file fail, file=" + path, e);
+        }
+        try {
+            // 分配槽位的进程都持有LOCK_ALLOCATE，读写tag不会和别的进程交错
+            for (int i = 0; i < slotCount; i++) {
+                int base = HEADER_SIZE + i * SLOT_SIZE;
+                int length = buffer.getInt(base + SLOT_TAG_LENGTH);
+                if (length == 0) {
+                    for (int j = 0; j < tag.length; j++) {
+                        buffer.put(base + SLOT_TAG + j, tag[j]);
+                    }
+                    buffer.putInt(base + SLOT_TAG_LENGTH, tag.length);
+                    return register(bizTag, base);
+                }
+                if (length == tag.length && tagEquals(base, tag)) {
+                    return register(bizTag, base);
+                }
+            }
+        } finally {
+            release(lock);
+        }
+        throw new IdGetFatalException("shared segment file has no slot for bizTag=" + bizTag + ", file=" + path);
+    }
+
+    private boolean tagEquals(int base, byte[] tag) {
+        for (int j = 0; j < tag.length; j++) {
+            if (buffer.get(base + SLOT_TAG + j) != tag[j]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private Slot register(String bizTag, int base) {
+        Slot slot = new Slot(base);
+        slots.put(bizTag, slot);
+        return slot;
+    }
+
+    private void release(FileLock lock) {
+        try {
+            lock.release();
+        } catch (IOException e) {
+            log.warn("release shared segment file lock fail, file={}", path, e);
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            aliveLock.release();
+            channel.close();
+            file.close();
+        } catch (IOException e) {
+            log.warn("close shared segment file fail", e);
+        }
+    }
+
+    /**
+     * 一个bizTag的槽位，所有读写都要持有这个槽位的锁
+     * 文件锁按进程持有，同一个进程里的线程先排进程内的锁
+     */
+    final class Slot {
+        private final int base;
+        private final ReentrantLock localLock = new ReentrantLock();
+
+        private Slot(int base) {
+            this.base = base;
+        }
+
+        long cursor() {
+            return buffer.getLong(base + SLOT_CURSOR);
+        }
+
+        void setCursor(long cursor) {
+            buffer.putLong(base + SLOT_CURSOR, cursor);
+        }
+
+        long maxId(long epoch) {
+            return buffer.getLong(segmentBase(epoch) + SEGMENT_MAX_ID);
+        }
+
+        long step(long epoch) {
+            return buffer.getLong(segmentBase(epoch) + SEGMENT_STEP);
+        }
+
+        /**
+         * 环上epoch位置的段现在是第几个段
+         *
+         * @param epoch
+         * @return
+         */
+        long epochAt(long epoch) {
+            return buffer.getLong(segmentBase(epoch) + SEGMENT_EPOCH);
+        }
+
+        /**
+         * 写入第epoch个段，调用方要确认游标还在第epoch - 1个段
+         *
+         * @param epoch
+         * @param maxId
+         * @param step
+         */
+        void publish(long epoch, long maxId, long step) {
+            int segment = segmentBase(epoch);
+            buffer.putLong(segment + SEGMENT_MAX_ID, maxId);
+            buffer.putLong(segment + SEGMENT_STEP, step);
+            buffer.putLong(segment + SEGMENT_EPOCH, epoch);
+        }
+
+        /**
+         * 登记正在加载第epoch个段，已经有进程在加载并且没过截止时间就返回false
+         *
+         * @param epoch
+         * @param nowMillis
+         * @param timeoutMillis 加载的进程多久没写入段就当作它已经挂了
+         * @return
+         */
+        boolean startLoading(long epoch, long nowMillis, long timeoutMillis) {
+            if (buffer.getLong(base + SLOT_LOADING_EPOCH) == epoch && buffer.getLong(base + SLOT_LOADING_UNTIL) > nowMillis) {
+                return false;
+            }
+            buffer.putLong(base + SLOT_LOADING_EPOCH, epoch);
+            buffer.putLong(base + SLOT_LOADING_UNTIL, nowMillis + timeoutMillis);
+            return true;
+        }
+
+        /**
+         * 加载结束，成功失败都要调用，让别的进程可以马上重试
+         *
+         * @param epoch
+         */
+        void finishLoading(long epoch) {
+            if (buffer.getLong(base + SLOT_LOADING_EPOCH) == epoch) {
+                buffer.putLong(base + SLOT_LOADING_UNTIL, 0L);
+            }
+        }
+
+        /**
+         * 拿到这个槽位的进程内锁和文件锁，持有期间不能再拿别的文件锁
+         *
+         * @return 用完调用unlock释放
+         */
+        FileLock lock() {
+            localLock.lock();
+            try {
+                return channel.lock(base, SLOT_SIZE, false);
+            } catch (IOException | RuntimeException e) {
+                localLock.unlock();
+                throw new IdGetFailException("lock shared segment slot fail, file=" + path, e);
+            }
+        }
+
+        void unlock(FileLock lock) {
+            try {
+                release(lock);
+            } finally {
+                localLock.unlock();
+            }
+        }
+
+        private int segmentBase(long epoch) {
+            return base + SLOT_SEGMENTS + (int) (epoch & 1) * SEGMENT_SIZE;
+        }
+    }
+}
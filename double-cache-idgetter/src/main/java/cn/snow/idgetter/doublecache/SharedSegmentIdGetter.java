@@ -0,0 +1,222 @@
+package cn.snow.idgetter.doublecache;
+
+import java.nio.channels.FileLock;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 同一台机器上的多个JVM共用号段的IdGetter，号段放在SharedSegmentFile里
+ * <p>
+ * 1. 每次持有槽位的文件锁领走sharedSegmentClaimSize个ID，领到的ID在进程内用AtomicLong发，段内ID在所有进程之间不重复
+ * 2. 当前段被领到一半时，刚好领走中间那个ID的进程异步加载备用段，其余进程不会重复加载
+ * 3. 当前段用完而备用段还没好时，当场加载或者等正在加载的进程，负责加载的进程挂了，过了登记的截止时间别的进程接着加载
+ * 4. 步长固定是incrSize，不支持自适应步长、线程本地号段和号段日志
+ *
+ * @author dev
+ */
+@Slf4j
+public class SharedSegmentIdGetter implements IdGenerator {
+
+    private static final long OFFSET_MASK = 0xFFFFFFFFL;
+    /**
+     * 登记加载之后这么久还没写入段，就当作加载的进程已经挂了
+     */
+    private static final long LOADING_TIMEOUT_MILLIS = 30000L;
+    private static final long WAIT_LOADING_NANOS = TimeUnit.MILLISECONDS.toNanos(1L);
+
+    @Getter
+    private final String bizTag;
+    private final ISequenceRepository sequenceRepository;
+    private final RefillScheduler refillScheduler;
+    private final SharedSegmentFile.Slot slot;
+    private final long incrSize;
+    private final int claimSize;
+    private final Object claimLock = new Object();
+    /**
+     * 进程内正在发的那一块，发完之后在claimLock里换成新领的一块
+     */
+    private volatile Claim claim = new Claim(1L, 0L);
+
+    /**
+     * @param bizTag
+     * @param sequenceRepository
+     * @param refillScheduler    为null时不预加载，段用完时再加载
+     * @param config             sharedSegmentFile不能为空
+     */
+    public SharedSegmentIdGetter(String bizTag, ISequenceRepository sequenceRepository, RefillScheduler refillScheduler, IdGetterConfig config) {
+        if (config.getSharedSegmentFile() == null) {
+            throw new IllegalArgumentException("sharedSegmentFile is required, bizTag=" + bizTag);
+        }
+        if (config.getIncrSize() <= 0 || config.getIncrSize() > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("incrSize must be in (0, " + Integer.MAX_VALUE + "], incrSize=" + config.getIncrSize());
+        }
+        if (config.getSharedSegmentClaimSize() <= 0) {
+            throw new IllegalArgumentException("sharedSegmentClaimSize must be positive, sharedSegmentClaimSize=" + config.getSharedSegmentClaimSize());
+        }
+        this.bizTag = bizTag;
+        this.sequenceRepository = sequenceRepository;
+        this.refillScheduler = refillScheduler;
+        this.incrSize = config.getIncrSize();
+        this.claimSize = config.getSharedSegmentClaimSize();
+        this.slot = config.getSharedSegmentFile().slot(bizTag);
+    }
+
+    @Override
+    public long nextId() {
+        for (; ; ) {
+            Claim current = claim;
+            long id = current.next.getAndIncrement();
+            if (id <= current.maxId) {
+                return id;
+            }
+            synchronized (claimLock) {
+                if (claim == current) {
+                    claim = claimFromShared(claimSize);
+                }
+            }
+        }
+    }
+
+    /**
+     * 直接从共享段领size个，不经过进程内的那一块
+     */
+    @Override
+    public long[] getIds(int size) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("size must be positive, size=" + size);
+        }
+        long[] ids = new long[size];
+        int filled = 0;
+        while (filled < size) {
+            Claim claimed = claimFromShared(size - filled);
+            for (long id = claimed.next.get(); id <= claimed.maxId; id++) {
+                ids[filled++] = id;
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * 持有槽位锁从共享段领最多count个ID，当前段用完时切到备用段，备用段没好就当场加载或者等别的进程加载完
+     *
+     * @param count
+     * @return 领到的ID，在同一个段里，至少一个
+     */
+    private Claim claimFromShared(long count) {
+        for (; ; ) {
+            Claim claimed = null;
+            long prefetchEpoch = 0L;
+            long next;
+            FileLock lock = slot.lock();
+            try {
+                long cursor = slot.cursor();
+                long epoch = cursor >>> 32;
+                long offset = cursor & OFFSET_MASK;
+                long step = slot.step(epoch);
+                next = epoch + 1;
+                if (offset < step) {
+                    long size = Math.min(count, step - offset);
+                    slot.setCursor(cursor + size);
+                    if (offset <= step / 2 && step / 2 < offset + size) {
+                        prefetchEpoch = next;
+                    }
+                    long first = slot.maxId(epoch) - step + offset + 1;
+                    claimed = new Claim(first, first + size - 1);
+                } else if (slot.epochAt(next) == next) {
+                    slot.setCursor(next << 32);
+                    continue;
+                }
+            } finally {
+                slot.unlock(lock);
+            }
+            if (claimed != null) {
+                // 放开槽位锁之后再提交，预加载的线程要拿同一把锁
+                if (prefetchEpoch > 0L) {
+                    prefetch(prefetchEpoch);
+                }
+                return claimed;
+            }
+            if (!refill(next)) {
+                LockSupport.parkNanos(WAIT_LOADING_NANOS);
+            }
+        }
+    }
+
+    private void prefetch(long epoch) {
+        if (refillScheduler != null) {
+            refillScheduler.submit(this, () -> refill(epoch));
+        }
+    }
+
+    /**
+     * 加载第epoch个段，别的进程已经加载过或者游标已经越过了就什么都不做
+     * 从仓库预留号段时不持有槽位锁，别的进程还可以从当前段领ID
+     *
+     * @param epoch
+     * @return 别的进程正在加载返回false，其余返回true
+     */
+    private boolean refill(long epoch) {
+        FileLock lock = slot.lock();
+        try {
+            if (loaded(epoch)) {
+                return true;
+            }
+            if (!slot.startLoading(epoch, System.currentTimeMillis(), LOADING_TIMEOUT_MILLIS)) {
+                return false;
+            }
+        } finally {
+            slot.unlock(lock);
+        }
+        IdSegment segment = null;
+        try {
+            segment = sequenceRepository.reserveSegment(bizTag, incrSize);
+            if (segment == null) {
+                throw new IdGetFailException("reserveSequence return null bizTag=" + bizTag);
+            }
+        } finally {
+            lock = slot.lock();
+            try {
+                if (segment != null) {
+                    if (loaded(epoch)) {
+                        // 登记超时之后别的进程也加载了，这一段只能浪费掉
+                        log.warn("shared segment {} of {} was loaded by another process, segment={} dropped", epoch, bizTag, segment);
+                    } else {
+                        slot.publish(epoch, segment.getMaxId(), segment.getStep());
+                        log.info("shared segment {} of {} loaded, segment={}", epoch, bizTag, segment);
+                    }
+                }
+                slot.finishLoading(epoch);
+            } finally {
+                slot.unlock(lock);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 需要持有槽位锁
+     *
+     * @param epoch
+     * @return
+     */
+    private boolean loaded(long epoch) {
+        return slot.epochAt(epoch) == epoch || (slot.cursor() >>> 32) != epoch - 1;
+    }
+
+    /**
+     * 领到进程内的一块ID，[next, maxId]
+     */
+    private static final class Claim {
+        private final AtomicLong next;
+        private final long maxId;
+
+        private Claim(long next, long maxId) {
+            this.next = new AtomicLong(next);
+            this.maxId = maxId;
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package cn.snow.idgetter.doublecache;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 时间型的ID生成器，ID = 时间戳 | worker ID | 毫秒内序号，各部分的位数可以配置
+ * <p>
+ * 1. 启动时通过WorkerIdLease租用一个worker ID，之后取号不再访问仓库，只在后台定期续租；
+ *    租约失效（仓库不可用超过租约时长的2/3，或者被别的节点接手）时取号抛IdGetFailException
+ * 2. 时间戳和序号放在一个AtomicLong里，取号就是一次CAS，不加锁；
+ *    序号用完时直接进位到下一毫秒，相当于向未来借时间
+ * 3. 时钟回拨或者借的时间不超过maxBackwardMillis时继续在上一次的时间戳上递增，
+ *    时钟回拨超过了就抛IdGetFailException，不会发出重复的ID；序号用得太快借到上限时等待时钟追上来
+ * 4. 作为号段模式的备用生成器时最高的可用位（第62位）固定是1，时间戳少一位，
+ *    号段模式发出的ID小于2^62，两边不会重复
+ *
+ * @author dev
+ */
+@Slf4j
+public class SnowflakeIdGetter implements IdGenerator, AutoCloseable {
+
+    @Getter
+    private final String bizTag;
+    @Getter
+    private final long workerId;
+    private final WorkerIdLease lease;
+    /**
+     * 租约是不是自己创建的，自己创建的才在close时停止续租
+     */
+    private final boolean ownsLease;
+    private final long epochMillis;
+    private final int sequenceBits;
+    private final int timestampShift;
+    private final long maxTimestamp;
+    private final long maxBackwardMillis;
+    /**
+     * 备用生成器是1L << 62，否则是0
+     */
+    private final long spaceBit;
+    /**
+     * 高位是相对epochMillis的时间戳，低sequenceBits位是毫秒内序号
+     */
+    private final AtomicLong state = new AtomicLong();
+
+    /**
+     * 自己租用一个worker ID，在共享的调度器里续租
+     * @param bizTag
+     * @param sequenceRepository
+     * @param config
+     */
+    public SnowflakeIdGetter(String bizTag, ISequenceRepository sequenceRepository, IdGetterConfig config) {
+        this(bizTag, new WorkerIdLease(sequenceRepository, config, RefillScheduler.shared()), true, config, false);
+    }
+
+    /**
+     * 使用别人持有的租约，多个bizTag可以共用一个worker ID
+     * @param bizTag
+     * @param lease
+     * @param config
+     */
+    public SnowflakeIdGetter(String bizTag, WorkerIdLease lease, IdGetterConfig config) {
+        this(bizTag, lease, false, config, false);
+    }
+
+    /**
+     * @param bizTag
+     * @param lease
+     * @param ownsLease
+     * @param config
+     * @param fallbackSpace true表示作为号段模式的备用生成器，ID放在第62位为1的空间里
+     */
+    SnowflakeIdGetter(String bizTag, WorkerIdLease lease, boolean ownsLease, IdGetterConfig config, boolean fallbackSpace) {
+        int workerIdBits = config.getSnowflakeWorkerIdBits();
+        int timestampBits = (fallbackSpace ? 62 : 63) - workerIdBits - config.getSnowflakeSequenceBits();
+        if (workerIdBits < 0 || config.getSnowflakeSequenceBits() <= 0 || timestampBits < 32
+                || lease.getMaxWorkers() != 1 << workerIdBits) {
+            if (ownsLease) {
+                lease.close();
+            }
+            throw new IllegalArgumentException("invalid snowflake layout, workerIdBits=" + workerIdBits
+                    + ", sequenceBits=" + config.getSnowflakeSequenceBits() + ", maxWorkers=" + lease.getMaxWorkers());
+        }
+        this.bizTag = bizTag;
+        this.epochMillis = config.getSnowflakeEpochMillis();
+        this.sequenceBits = config.getSnowflakeSequenceBits();
+        this.timestampShift = workerIdBits + sequenceBits;
+        this.maxTimestamp = (1L << timestampBits) - 1;
+        this.maxBackwardMillis = config.getSnowflakeMaxBackwardMillis();
+        this.spaceBit = fallbackSpace ? 1L << 62 : 0L;
+        this.lease = lease;
+        this.ownsLease = ownsLease;
+        this.workerId = lease.getWorkerId();
+        log.info("snowflake id getter of {} uses workerId={}", bizTag, workerId);
+    }
+
+    /**
+     * 当前时间，测试时可以覆盖
+     *
+     * @return
+     */
+    protected long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    @Override
+    public long nextId() {
+        lease.checkValid();
+        for (; ; ) {
+            // 先读状态再读时钟，别的线程推进的时间戳不会让这里误判成时钟回拨
+            long last = state.get();
+            long now = currentTimeMillis() - epochMillis;
+            long lastTimestamp = last >>> sequenceBits;
+            long next;
+            if (now > lastTimestamp) {
+                next = now << sequenceBits;
+            } else if (lastTimestamp - now <= maxBackwardMillis) {
+                // 同一毫秒、时钟小幅回拨或者序号用完，都在上一次的基础上加一，序号满了自然进位到时间戳
+                next = last + 1;
+                if ((next >>> sequenceBits) - now > maxBackwardMillis) {
+                    // 序号用得太快，借的时间已经到上限，等时钟追上来
+                    LockSupport.parkNanos(100_000L);
+                    continue;
+                }
+            } else {
+                throw new IdGetFailException("clock moved backwards " + (lastTimestamp - now) + "ms, bizTag=" + bizTag);
+            }
+            if (state.compareAndSet(last, next)) {
+                return compose(next);
+            }
+        }
+    }
+
+    private long compose(long timestampAndSequence) {
+        long timestamp = timestampAndSequence >>> sequenceBits;
+        if (timestamp > maxTimestamp) {
+            throw new IdGetFatalException("snowflake timestamp overflow, check snowflakeEpochMillis, bizTag=" + bizTag);
+        }
+        long sequence = timestampAndSequence & ((1L << sequenceBits) - 1);
+        return spaceBit | timestamp << timestampShift | workerId << sequenceBits | sequence;
+    }
+
+    @Override
+    public long[] getIds(int size) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("size must be positive, size=" + size);
+        }
+        long[] ids = new long[size];
+        for (int i = 0; i < size; i++) {
+            ids[i] = nextId();
+        }
+        return ids;
+    }
+
+    /**
+     * 自己创建的租约停止续租，共用的租约由持有者关闭
+     */
+    @Override
+    public void close() {
+        if (ownsLease) {
+            lease.close();
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package cn.snow.idgetter.doublecache;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 时间型ID生成器的worker ID租约
+ * <p>
+ * 1. 每个worker ID是仓库里的一行，行里存租约的过期时间，见ISequenceRepository.leaseWorkerId
+ * 2. 创建时从随机位置开始逐个尝试，拿到第一个没有被占用或者已经过期的worker ID，全部被占用时抛IdGetFailException
+ * 3. 每过租约时长的1/3续租一次，续租失败只打日志，下个周期再试
+ * 4. 本地认为租约有效的截止时间是发起续租的时刻加上租约时长的2/3，留出1/3给时钟误差和续租的耗时；
+ *    过了截止时间（仓库长时间不可用）或者发现已经被别的节点接手，checkValid都抛IdGetFailException，不会和别的节点发出重复的ID
+ * 5. close只停止续租，不把过期时间改小，等它自然过期后别的节点才能接手
+ *
+ * @author dev
+ */
+@Slf4j
+public class WorkerIdLease implements AutoCloseable {
+
+    @Getter
+    private final String workerTag;
+    @Getter
+    private final int workerId;
+    @Getter
+    private final int maxWorkers;
+    private final long leaseMillis;
+    private final ISequenceRepository sequenceRepository;
+    /**
+     * 最后一次写入仓库的过期时间，只有续租线程会修改
+     */
+    private volatile Long token;
+    /**
+     * 本地认为租约有效的截止时间，租约丢失时置为0
+     */
+    private volatile long validUntilMillis;
+    private final ScheduledFuture<?> heartbeat;
+
+    public WorkerIdLease(ISequenceRepository sequenceRepository, IdGetterConfig config, RefillScheduler refillScheduler) {
+        this(sequenceRepository, config.getSnowflakeWorkerTag(), 1 << config.getSnowflakeWorkerIdBits(),
+                config.getSnowflakeWorkerLeaseMillis(), refillScheduler);
+    }
+
+    /**
+     * @param sequenceRepository
+     * @param workerTag
+     * @param maxWorkers worker ID的个数，租到的是[0, maxWorkers)里的一个
+     * @param leaseMillis 租约时长
+     * @param refillScheduler 在它的线程里续租
+     */
+    public WorkerIdLease(ISequenceRepository sequenceRepository, String workerTag, int maxWorkers, long leaseMillis,
+                         RefillScheduler refillScheduler) {
+        if (maxWorkers <= 0 || leaseMillis < 3) {
+            throw new IllegalArgumentException("invalid worker lease, maxWorkers=" + maxWorkers + ", leaseMillis=" + leaseMillis);
+        }
+        this.sequenceRepository = sequenceRepository;
+        this.workerTag = workerTag;
+        this.maxWorkers = maxWorkers;
+        this.leaseMillis = leaseMillis;
+        this.workerId = acquire();
+        long period = leaseMillis / 3;
+        this.heartbeat = refillScheduler.timer().scheduleWithFixedDelay(this::renew, period, period, TimeUnit.MILLISECONDS);
+        log.info("leased workerId={} of {}, leaseMillis={}", workerId, workerTag, leaseMillis);
+    }
+
+    private int acquire() {
+        int start = ThreadLocalRandom.current().nextInt(maxWorkers);
+        for (int i = 0; i < maxWorkers; i++) {
+            int candidate = (start + i) % maxWorkers;
+            long requestedAt = System.currentTimeMillis();
+            Long leased = sequenceRepository.leaseWorkerId(workerTag, candidate, null, leaseMillis);
+            if (leased != null) {
+                token = leased;
+                validUntilMillis = requestedAt + leaseMillis * 2 / 3;
+                return candidate;
+            }
+        }
+        throw new IdGetFailException("all " + maxWorkers + " worker ids of " + workerTag + " are leased");
+    }
+
+    /**
+     * 续租一次，由定时任务调用
+     */
+    void renew() {
+        if (validUntilMillis == 0L) {
+            return;
+        }
+        long requestedAt = System.currentTimeMillis();
+        try {
+            Long renewed = sequenceRepository.leaseWorkerId(workerTag, workerId, token, leaseMillis);
+            if (renewed == null) {
+                validUntilMillis = 0L;
+                log.error("workerId={} of {} has been taken over by another node, stop generating ids", workerId, workerTag);
+                return;
+            }
+            token = renewed;
+            validUntilMillis = requestedAt + leaseMillis * 2 / 3;
+        } catch (Exception e) {
+            log.warn("renew workerId={} of {} fail, it is valid for {}ms more", workerId, workerTag,
+                    validUntilMillis - requestedAt, e);
+        }
+    }
+
+    /**
+     * 租约不再有效时抛IdGetFailException
+     */
+    public void checkValid() {
+        if (System.currentTimeMillis() >= validUntilMillis) {
+            throw new IdGetFailException("lease of workerId=" + workerId + " of " + workerTag + " is not valid");
+        }
+    }
+
+    @Override
+    public void close() {
+        heartbeat.cancel(false);
+    }
+}
@@ -0,0 +1,26 @@
+package cn.snow.idgetter.doublecache.dao;
+
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+/**
+ * TSeqConfDao.reserveSeqNum的参数，执行完之后maxValue就是预留之后的CURRENT_VALUE
+ * 批量预留时也用来承载每个bizTag的步长和查询结果
+ */
+@Getter
+@Setter
+@NoArgsConstructor
+public class SeqReservation {
+
+    private String seqName;
+
+    private Long incrSize;
+
+    private Long maxValue;
+
+    public SeqReservation(String seqName, Long incrSize) {
+        this.seqName = seqName;
+        this.incrSize = incrSize;
+    }
+}
@@ -1,9 +1,14 @@
 package cn.snow.idgetter.doublecache.dao;
 
+import java.util.Collection;
+import java.util.List;
+
+import org.apache.ibatis.annotations.Insert;
 import org.apache.ibatis.annotations.Mapper;
 import org.apache.ibatis.annotations.Options;
 import org.apache.ibatis.annotations.Param;
 import org.apache.ibatis.annotations.Select;
+import org.apache.ibatis.annotations.SelectKey;
 import org.apache.ibatis.annotations.Update;
 
 @Mapper
@@ -16,6 +21,55 @@ public interface TSeqConfDao {
             "          and CURRENT_VALUE = #{currVal, jdbcType=DECIMAL}")
     int updateSeqNum(@Param("seqName") String seqName, @Param("incrSize") Long incrSize, @Param("currVal") Long currVal);
 
+    /**
+     * 一条update原子地把CURRENT_VALUE加上incrSize，新值通过LAST_INSERT_ID带回来，
+     * SelectKey和update在同一个连接上执行，所以读到的就是这次update的结果
+     */
+    @Update("update T_SEQ_CONF\n" +
+            "        set CURRENT_VALUE = LAST_INSERT_ID(CURRENT_VALUE + #{incrSize, jdbcType=DECIMAL}),\n" +
+            "            edate         = now()\n" +
+            "        where NAME = #{seqName, jdbcType=VARCHAR}\n" +
+            "          and status = 'a'")
+    @SelectKey(statement = "select LAST_INSERT_ID()", keyProperty = "maxValue", before = false, resultType = Long.class)
+    int reserveSeqNum(SeqReservation reservation);
+
+    /**
+     * 分区的行不存在时插入，CURRENT_VALUE直接就是第一段的maxValue；已经存在(包括停用的)就什么都不做，返回0
+     * 靠NAME上的唯一索引保证并发插入时只有一个成功
+     */
+    @Insert("insert ignore into T_SEQ_CONF (NAME, CURRENT_VALUE, INCREMENT_SIZE)\n" +
+            "        values (#{seqName, jdbcType=VARCHAR}, #{incrSize, jdbcType=DECIMAL}, #{incrSize, jdbcType=DECIMAL})")
+    int insertSeqNum(@Param("seqName") String seqName, @Param("incrSize") Long incrSize);
+
+    /**
+     * 批量预留，一条update给多个bizTag各加上自己的步长，需要在selectSeqNumsForUpdate锁住这些行的事务里执行
+     */
+    @Update({"<script>",
+            "update T_SEQ_CONF",
+            "        set CURRENT_VALUE = CURRENT_VALUE + case NAME",
+            "            <foreach collection='reservations' item='r'>when #{r.seqName, jdbcType=VARCHAR} then #{r.incrSize, jdbcType=DECIMAL} </foreach>",
+            "            end,",
+            "            edate         = now()",
+            "        where NAME in <foreach collection='reservations' item='r' open='(' separator=',' close=')'>#{r.seqName, jdbcType=VARCHAR}</foreach>",
+            "          and status = 'a'",
+            "</script>"})
+    int reserveSeqNums(@Param("reservations") List<SeqReservation> reservations);
+
+    /**
+     * 批量预留前在同一个事务里按NAME的顺序锁住这些行并读出当前值，提交之前别的节点改不了这些行，
+     * 当前值加上各自的步长就是reserveSeqNums之后的新值
+     */
+    @Select({"<script>",
+            "select NAME as seqName, CURRENT_VALUE as maxValue",
+            "        from T_SEQ_CONF",
+            "        where NAME in <foreach collection='seqNames' item='n' open='(' separator=',' close=')'>#{n, jdbcType=VARCHAR}</foreach>",
+            "          and status = 'a'",
+            "        order by NAME",
+            "        for update",
+            "</script>"})
+    @Options(flushCache = Options.FlushCachePolicy.TRUE, useCache = false)
+    List<SeqReservation> selectSeqNumsForUpdate(@Param("seqNames") Collection<String> seqNames);
+
     @Select("select CURRENT_VALUE\n" +
             "        from T_SEQ_CONF\n" +
             "        where NAME = #{seqName, jdbcType=VARCHAR}\n" +
@@ -23,4 +77,15 @@ public interface TSeqConfDao {
             "          and status = 'a'")
     @Options(flushCache = Options.FlushCachePolicy.TRUE, useCache = false)
     Long selectSeqNum(@Param("seqName") String seqName, @Param("currentMilliSecond") Long currentMilliSecond);
+
+    @Select("select NAME\n" +
+            "        from T_SEQ_CONF\n" +
+            "        where status = 'a'")
+    List<String> selectActiveSeqNames();
+
+    @Select("select INCREMENT_SIZE\n" +
+            "        from T_SEQ_CONF\n" +
+            "        where NAME = #{seqName, jdbcType=VARCHAR}\n" +
+            "          and status = 'a'")
+    Long selectIncrementSize(@Param("seqName") String seqName);
 }
\ No newline at end of file
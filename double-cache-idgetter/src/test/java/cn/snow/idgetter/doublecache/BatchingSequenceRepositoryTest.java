@@ -0,0 +1,157 @@
+package cn.snow.idgetter.doublecache;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+class BatchingSequenceRepositoryTest {
+
+    Map<String, Long> mockDbTable = new ConcurrentHashMap<>();
+
+    AtomicInteger bulkCalls = new AtomicInteger();
+
+    ISequenceRepository mockRepository = new ISequenceRepository() {
+        @Override
+        public Long getCurrentSequence(String bizTag) {
+            return mockDbTable.getOrDefault(bizTag, 0L);
+        }
+
+        @Override
+        public boolean increaseSequence(String bizTag, long incrSize, Long currentSequence) {
+            throw new UnsupportedOperationException("only bulk reservation is expected");
+        }
+
+        @Override
+        public synchronized Map<String, Long> reserveSequences(Map<String, Long> incrSizeByBizTag) {
+            bulkCalls.incrementAndGet();
+            Map<String, Long> result = new ConcurrentHashMap<>();
+            incrSizeByBizTag.forEach((bizTag, incrSize) -> result.put(bizTag, mockDbTable.merge(bizTag, incrSize, Long::sum)));
+            return result;
+        }
+    };
+
+    @Test
+    void testManyIdGettersShareOneBulkReservation() throws Exception {
+        int tagCount = 50;
+        ExecutorService starters = Executors.newFixedThreadPool(tagCount);
+        try (BatchingSequenceRepository repository = new BatchingSequenceRepository(mockRepository, 50L)) {
+            List<Future<IdGetter>> idGetters = new ArrayList<>();
+            for (int i = 0; i < tagCount; i++) {
+                String bizTag = "batchTag" + i;
+                idGetters.add(starters.submit(() -> new IdGetter(bizTag, 100L, repository)));
+            }
+            for (Future<IdGetter> idGetter : idGetters) {
+                Assertions.assertEquals(1L, idGetter.get().getId().longValue());
+            }
+        }
+        starters.shutdown();
+        Assertions.assertTrue(bulkCalls.get() < tagCount, "bulk calls=" + bulkCalls.get());
+    }
+
+    @Test
+    void testSameBizTagInOneWindowGetsDisjointRanges() throws Exception {
+        ExecutorService callers = Executors.newFixedThreadPool(4);
+        Set<Long> maxValues = new HashSet<>();
+        try (BatchingSequenceRepository repository = new BatchingSequenceRepository(mockRepository, 50L)) {
+            List<Future<Long>> reservations = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                reservations.add(callers.submit(() -> repository.reserveSequence("sameTag", 10L)));
+            }
+            for (Future<Long> reservation : reservations) {
+                maxValues.add(reservation.get());
+            }
+        }
+        callers.shutdown();
+        Assertions.assertEquals(new HashSet<>(Arrays.asList(10L, 20L, 30L, 40L)), maxValues);
+    }
+
+    @Test
+    void testRefillsAreCollectedWithoutParkingRefillThreads() throws Exception {
+        int tagCount = 30;
+        ExecutorService starters = Executors.newFixedThreadPool(tagCount);
+        RefillScheduler scheduler = new RefillScheduler(1, false);
+        try (BatchingSequenceRepository repository = new BatchingSequenceRepository(mockRepository, 50L)) {
+            List<Future<IdGetter>> creating = new ArrayList<>();
+            for (int i = 0; i < tagCount; i++) {
+                String bizTag = "refillTag" + i;
+                creating.add(starters.submit(() -> new IdGetter(bizTag, repository, scheduler, new IdGetterConfig().setIncrSize(100L))));
+            }
+            List<IdGetter> idGetters = new ArrayList<>();
+            for (Future<IdGetter> idGetter : creating) {
+                idGetters.add(idGetter.get());
+            }
+            int callsBeforeRefill = bulkCalls.get();
+
+            // 只有一个加载线程，30个bizTag的备用缓冲区还是在同一个窗口里合并预留
+            List<CompletableFuture<Boolean>> refills = new ArrayList<>();
+            for (IdGetter idGetter : idGetters) {
+                refills.add(idGetter.preload());
+            }
+            for (CompletableFuture<Boolean> refill : refills) {
+                Assertions.assertTrue(refill.get(5, TimeUnit.SECONDS));
+            }
+            Assertions.assertTrue(bulkCalls.get() - callsBeforeRefill <= 2, "bulk calls=" + (bulkCalls.get() - callsBeforeRefill));
+            for (IdGetter idGetter : idGetters) {
+                Assertions.assertEquals(1L, idGetter.getId().longValue());
+            }
+        } finally {
+            scheduler.close();
+            starters.shutdown();
+        }
+    }
+
+    @Test
+    void testShortSegmentsFromDelegateAreSplitAcrossWindows() throws Exception {
+        AtomicLong remote = new AtomicLong();
+        AtomicInteger segmentCalls = new AtomicInteger();
+        // 像远程的ID服务一样每次最多给10个，不支持reserveSequence
+        ISequenceRepository segmentRepository = new ISequenceRepository() {
+            @Override
+            public Long reserveSequence(String bizTag, long incrSize) {
+                throw new UnsupportedOperationException("only segments are expected");
+            }
+
+            @Override
+            public Map<String, IdSegment> reserveSegments(Map<String, Long> incrSizeByBizTag) {
+                segmentCalls.incrementAndGet();
+                Map<String, IdSegment> result = new ConcurrentHashMap<>();
+                incrSizeByBizTag.forEach((bizTag, incrSize) -> {
+                    long step = Math.min(incrSize, 10L);
+                    result.put(bizTag, new IdSegment(remote.addAndGet(step), step));
+                });
+                return result;
+            }
+        };
+        ExecutorService callers = Executors.newFixedThreadPool(2);
+        Set<Long> maxIds = new HashSet<>();
+        try (BatchingSequenceRepository repository = new BatchingSequenceRepository(segmentRepository, 50L)) {
+            List<Future<IdSegment>> reservations = new ArrayList<>();
+            for (int i = 0; i < 2; i++) {
+                reservations.add(callers.submit(() -> repository.reserveSegment("shortTag", 10L)));
+            }
+            for (Future<IdSegment> reservation : reservations) {
+                IdSegment segment = reservation.get();
+                Assertions.assertEquals(10L, segment.getStep());
+                maxIds.add(segment.getMaxId());
+            }
+        }
+        callers.shutdown();
+        // 没分到的请求排到下一个窗口
+        Assertions.assertEquals(new HashSet<>(Arrays.asList(10L, 20L)), maxIds);
+        Assertions.assertEquals(2, segmentCalls.get());
+    }
+}
@@ -0,0 +1,122 @@
+package cn.snow.idgetter.doublecache;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+class CircuitBreakingSequenceRepositoryTest {
+
+    AtomicInteger reserveCalls = new AtomicInteger();
+
+    volatile boolean down;
+
+    InMemorySequenceRepository mockRepository = new InMemorySequenceRepository() {
+        @Override
+        public Long reserveSequence(String bizTag, long incrSize) {
+            reserveCalls.incrementAndGet();
+            if (down) {
+                throw new IllegalStateException("database is down");
+            }
+            return super.reserveSequence(bizTag, incrSize);
+        }
+    };
+
+    @Test
+    void testOpenFailFastAndRecover() throws Exception {
+        CircuitBreakingSequenceRepository repository = new CircuitBreakingSequenceRepository(mockRepository, 2, 1000L, 100L);
+        Assertions.assertEquals(10L, repository.reserveSequence("breakerTag", 10L).longValue());
+
+        down = true;
+        Assertions.assertThrows(IllegalStateException.class, () -> repository.reserveSequence("breakerTag", 10L));
+        Assertions.assertTrue(repository.isAvailable());
+        Assertions.assertThrows(IllegalStateException.class, () -> repository.reserveSequence("breakerTag", 10L));
+        Assertions.assertEquals(CircuitBreakingSequenceRepository.State.OPEN, repository.getState());
+        Assertions.assertFalse(repository.isAvailable());
+
+        // 熔断期间不再访问仓库
+        int calls = reserveCalls.get();
+        Assertions.assertThrows(IdGetFailException.class, () -> repository.reserveSequence("breakerTag", 10L));
+        Assertions.assertEquals(calls, reserveCalls.get());
+
+        // 试探失败继续熔断
+        Thread.sleep(150L);
+        Assertions.assertTrue(repository.isAvailable());
+        Assertions.assertThrows(IllegalStateException.class, () -> repository.reserveSequence("breakerTag", 10L));
+        Assertions.assertEquals(CircuitBreakingSequenceRepository.State.OPEN, repository.getState());
+
+        down = false;
+        Thread.sleep(150L);
+        Assertions.assertEquals(20L, repository.reserveSequence("breakerTag", 10L).longValue());
+        Assertions.assertEquals(CircuitBreakingSequenceRepository.State.CLOSED, repository.getState());
+    }
+
+    @Test
+    void testFallbackToTimeBasedWhileRepositoryDown() throws Exception {
+        ISequenceRepository repository = new CircuitBreakingSequenceRepository(mockRepository, 2, 1000L, 300L);
+        IdGetterConfig config = new IdGetterConfig().setIncrSize(10L).setFallbackToTimeBased(true);
+        IdGetter idGetter = new IdGetter("fallbackTag", repository, (RefillScheduler) null, config);
+        for (long i = 1; i <= 15; i++) {
+            Assertions.assertEquals(i, idGetter.nextId());
+        }
+
+        down = true;
+        long start = System.nanoTime();
+        long expected = 16L;
+        long first;
+        // 已经装好的段继续用完，之后改用备用生成器
+        while ((first = idGetter.nextId()) < 1L << 62) {
+            Assertions.assertEquals(expected++, first);
+        }
+        Assertions.assertTrue((System.nanoTime() - start) / 1_000_000L < 5000L);
+        Assertions.assertTrue(expected > 20L);
+
+        long last = first;
+        for (int i = 0; i < 1000; i++) {
+            long id = idGetter.nextId();
+            Assertions.assertTrue(id > last);
+            last = id;
+        }
+        long[] ids = idGetter.getIds(5);
+        Assertions.assertTrue(ids[0] > last);
+        Assertions.assertEquals(1006L, idGetter.getMetrics().getFallbackIds());
+
+        down = false;
+        long deadline = System.currentTimeMillis() + 10000L;
+        long id;
+        do {
+            // 熔断器过了openMillis才放试探的调用过去，在那之前取到的还是备用生成器的ID
+            Thread.sleep(1L);
+            id = idGetter.nextId();
+        } while (id >= 1L << 62 && System.currentTimeMillis() < deadline);
+        // 恢复后接着从仓库加载新的段
+        Assertions.assertTrue(id >= expected && id < 1L << 62, "id=" + id);
+    }
+
+    @Test
+    void testFactorySharesOneWorkerIdAndFallback() {
+        IdGetterFactory factory = new IdGetterFactory(mockRepository, new IdGetterConfig().setIncrSize(10L)
+                .setFallbackToTimeBased(true).setCircuitBreakerFailureThreshold(2).setCircuitBreakerOpenMillis(60000L))
+                .configure("snowflakeTag", new IdGetterConfig().setStrategy(IdStrategy.SNOWFLAKE));
+        Assertions.assertEquals(1L, factory.getId("orderTag").longValue());
+        Assertions.assertEquals(1L, factory.getId("invoiceTag").longValue());
+        factory.getId("snowflakeTag");
+        // 备用生成器和时间型的bizTag都用同一个worker ID
+        Assertions.assertEquals(1L, IntStream.range(0, 1024)
+                .filter(workerId -> mockRepository.get("snowflake_worker_" + workerId) != null).count());
+
+        down = true;
+        long order;
+        while ((order = factory.getId("orderTag")) < 1L << 62) {
+            Assertions.assertTrue(order < 100L);
+        }
+        long invoice;
+        while ((invoice = factory.getId("invoiceTag")) < 1L << 62) {
+            Assertions.assertTrue(invoice < 100L);
+        }
+        // 两个bizTag的备用ID出自同一个生成器
+        Assertions.assertTrue(invoice > order);
+        Assertions.assertTrue(factory.getId("orderTag") > invoice);
+    }
+}
@@ -1,8 +1,28 @@
 package cn.snow.idgetter.doublecache;
 
+import java.lang.management.ManagementFactory;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 
 class IdGetterFactoryTest {
@@ -66,4 +86,333 @@ class IdGetterFactoryTest {
     void testIdGetterByMySqlSaveMaxIdGroupByDate(){
 
     }
-}
\ No newline at end of file
+
+    @Test
+    void testIdGetterConcurrentUnique() throws InterruptedException {
+        ISequenceRepository repository = new ISequenceRepository() {
+            @Override
+            public Long getCurrentSequence(String bizTag) {
+                return mockDbTable.getOrDefault(bizTag, 0L);
+            }
+
+            @Override
+            public synchronized boolean increaseSequence(String bizTag, long incrSize, Long currentSequence) {
+                if (mockDbTable.getOrDefault(bizTag, 0L).longValue() == currentSequence) {
+                    mockDbTable.put(bizTag, incrSize + currentSequence);
+                    return true;
+                }
+                return false;
+            }
+        };
+        ExecutorService loader = Executors.newFixedThreadPool(2);
+        IdGetter syncGetter = new IdGetter("tableName3", 100L, repository);
+        IdGetter asyncGetter = new IdGetter("tableName4", 100L, repository, loader);
+        IdGetter ringGetter = new IdGetter("tableName7", repository, loader, new IdGetterConfig().setIncrSize(100L).setSegmentCount(4));
+        for (IdGetter idGetter : new IdGetter[]{syncGetter, asyncGetter, ringGetter}) {
+            Set<Long> ids = ConcurrentHashMap.newKeySet();
+            int threads = 8;
+            int perThread = 2000;
+            CountDownLatch done = new CountDownLatch(threads);
+            ExecutorService callers = Executors.newFixedThreadPool(threads);
+            for (int t = 0; t < threads; t++) {
+                callers.execute(() -> {
+                    for (int i = 0; i < perThread; i++) {
+                        long id = idGetter.getId();
+                        Assertions.assertTrue(ids.add(id), "duplicate id " + id);
+                    }
+                    done.countDown();
+                });
+            }
+            Assertions.assertTrue(done.await(60, TimeUnit.SECONDS));
+            Assertions.assertEquals(threads * perThread, ids.size());
+            callers.shutdown();
+        }
+        loader.shutdown();
+    }
+
+    @Test
+    void testGetIdsSpanSegment() {
+        IdGetter idGetter = new IdGetter("tableName5", 10L, new ISequenceRepository() {
+            @Override
+            public Long getCurrentSequence(String bizTag) {
+                return mockDbTable.getOrDefault(bizTag, 0L);
+            }
+
+            @Override
+            public boolean increaseSequence(String bizTag, long incrSize, Long currentSequence) {
+                mockDbTable.put(bizTag, incrSize + currentSequence);
+                return true;
+            }
+        });
+        long[] ids = idGetter.getIds(25);
+        for (int i = 0; i < ids.length; i++) {
+            Assertions.assertEquals(i + 1, ids[i]);
+        }
+        Assertions.assertEquals(26L, idGetter.getId().longValue());
+        Assertions.assertEquals(2L, idGetter.getSwitchCount());
+        Assertions.assertEquals(0L, idGetter.getSwitchWaitCount());
+    }
+
+    @Test
+    void testAdaptiveStepGrowsWhenSegmentUsedUpFast() {
+        Map<Long, Long> steps = new ConcurrentHashMap<>();
+        IdGetterConfig config = new IdGetterConfig().setIncrSize(10L).setAdaptiveStep(true)
+                .setMinStep(10L).setMaxStep(80L).setStepTargetMillis(60_000L);
+        IdGetter idGetter = new IdGetter("tableName6", new ISequenceRepository() {
+            @Override
+            public Long getCurrentSequence(String bizTag) {
+                return mockDbTable.getOrDefault(bizTag, 0L);
+            }
+
+            @Override
+            public boolean increaseSequence(String bizTag, long incrSize, Long currentSequence) {
+                steps.put(currentSequence, incrSize);
+                mockDbTable.put(bizTag, incrSize + currentSequence);
+                return true;
+            }
+
+            @Override
+            public Long getIncrementSize(String bizTag) {
+                return 20L;
+            }
+        }, (RefillScheduler) null, config);
+        idGetter.getIds(300);
+        // 第二段在第一段用完之前加载，还不知道一段能用多久，保持步长；之后按最近用完的段的耗时翻倍
+        Assertions.assertEquals(20L, steps.get(0L).longValue());
+        Assertions.assertEquals(20L, steps.get(20L).longValue());
+        Assertions.assertEquals(40L, steps.get(40L).longValue());
+        Assertions.assertEquals(40L, steps.get(80L).longValue());
+        Assertions.assertEquals(80L, steps.get(120L).longValue());
+        Assertions.assertEquals(80L, steps.get(200L).longValue());
+    }
+
+    @Test
+    void testReserveSequenceSingleRoundTrip() {
+        IdGetter idGetter = new IdGetter("tableName8", 10L, new ISequenceRepository() {
+            @Override
+            public Long getCurrentSequence(String bizTag) {
+                throw new UnsupportedOperationException("reserveSequence should be used");
+            }
+
+            @Override
+            public boolean increaseSequence(String bizTag, long incrSize, Long currentSequence) {
+                throw new UnsupportedOperationException("reserveSequence should be used");
+            }
+
+            @Override
+            public Long reserveSequence(String bizTag, long incrSize) {
+                return mockDbTable.merge(bizTag, incrSize, Long::sum);
+            }
+        });
+        long[] ids = idGetter.getIds(30);
+        Assertions.assertEquals(1L, ids[0]);
+        Assertions.assertEquals(30L, ids[29]);
+        Assertions.assertEquals(40L, mockDbTable.get("tableName8").longValue());
+    }
+
+    @Test
+    void testGetIdAsyncCompletesWhenRefillLands() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger reserveCalls = new AtomicInteger();
+        IdGetterConfig config = new IdGetterConfig().setIncrSize(10L).setAdaptivePrefetch(false);
+        IdGetter idGetter = new IdGetter("tableName9", new InMemorySequenceRepository() {
+            @Override
+            public Long reserveSequence(String bizTag, long incrSize) {
+                if (reserveCalls.incrementAndGet() > 1) {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return super.reserveSequence(bizTag, incrSize);
+            }
+        }, (RefillScheduler) null, config);
+
+        for (long i = 1; i <= 10; i++) {
+            CompletableFuture<Long> id = idGetter.getIdAsync();
+            Assertions.assertTrue(id.isDone());
+            Assertions.assertEquals(i, id.get().longValue());
+        }
+        // 备用缓冲区还卡在仓库里，调用线程拿到的是没有完成的future
+        CompletableFuture<Long> waiting = idGetter.getIdAsync();
+        CompletableFuture<long[]> batch = idGetter.getIdsAsync(15);
+        Assertions.assertFalse(waiting.isDone());
+        Assertions.assertFalse(batch.isDone());
+
+        release.countDown();
+        Set<Long> ids = new HashSet<>();
+        ids.add(waiting.get(5, TimeUnit.SECONDS));
+        for (long id : batch.get(5, TimeUnit.SECONDS)) {
+            ids.add(id);
+        }
+        Assertions.assertEquals(16, ids.size());
+        Assertions.assertTrue(ids.stream().allMatch(id -> id > 10 && id <= 30));
+        Assertions.assertTrue(idGetter.getSwitchWaitCount() >= 1);
+    }
+
+    @Test
+    void testMetricsExportedOverJmx() throws Exception {
+        IdGetterFactory factory = new IdGetterFactory(new InMemorySequenceRepository(),
+                new IdGetterConfig().setIncrSize(10L).setAdaptivePrefetch(false));
+        factory.addMetricsExporter(new JmxMetricsExporter());
+        Assertions.assertNull(factory.getMetrics("tableName10"));
+
+        factory.getIds("tableName10", 25);
+        IdGetterMetrics metrics = factory.getMetrics("tableName10");
+        Assertions.assertEquals(25L, metrics.getIdsServed());
+        Assertions.assertEquals(2L, metrics.getSwitchCount());
+        Assertions.assertEquals(50D, metrics.getCurrentSegmentFillPercent(), 0.001D);
+        Assertions.assertTrue(metrics.getRefillCount() >= 3);
+        Assertions.assertEquals(metrics.getRefillCount(), Arrays.stream(metrics.getRefillLatencyBuckets()).sum());
+        Assertions.assertEquals(0L, metrics.getCasFailures());
+        // 取快照不影响速度的计算，JMX逐个读属性时每次读到的都是同一个窗口里的速度
+        Assertions.assertTrue(metrics.getIdsPerSecond() > 0D);
+        Assertions.assertTrue(factory.getMetrics("tableName10").getIdsPerSecond() > 0D);
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = JmxMetricsExporter.objectName("tableName10");
+        Assertions.assertEquals(25L, server.getAttribute(name, "IdsServed"));
+        Assertions.assertEquals(2L, server.getAttribute(name, "SwitchCount"));
+        Assertions.assertTrue((Double) server.getAttribute(name, "IdsPerSecond") > 0D);
+    }
+
+    @Test
+    void testThreadLocalRangeReclaimedAfterThreadDies() throws Exception {
+        IdGetterConfig config = new IdGetterConfig().setIncrSize(1000L).setThreadLocalRangeSize(64)
+                .setAdaptivePrefetch(false);
+        IdGetter idGetter = new IdGetter("tableName11", new InMemorySequenceRepository(), (RefillScheduler) null, config);
+
+        Set<Long> ids = ConcurrentHashMap.newKeySet();
+        Thread shortLived = new Thread(() -> ids.add(idGetter.nextId()));
+        shortLived.start();
+        shortLived.join();
+        Assertions.assertTrue(ids.contains(1L));
+
+        // 用到加载位置时会加载备用段，顺便把已经结束的线程剩下的(1,64]收回来
+        for (int i = 0; i < 1500; i++) {
+            Assertions.assertTrue(ids.add(idGetter.nextId()));
+        }
+        for (long id = 2; id <= 64; id++) {
+            Assertions.assertTrue(ids.contains(id), "id=" + id);
+        }
+    }
+
+    @Test
+    void testPartitionIdsRestartPerPartitionAndStayBounded() {
+        // 和SequenceRepositoryImplPartitionBy一样，没有这一行就当作从0开始插入
+        InMemorySequenceRepository repository = new InMemorySequenceRepository();
+        IdGetterFactory factory = new IdGetterFactory(repository, new IdGetterConfig().setIncrSize(10L).setPartitionCacheSize(3));
+
+        for (int merchant = 0; merchant < 5; merchant++) {
+            String partition = "m" + merchant + "#20261017";
+            Assertions.assertEquals(1L, factory.getPartitionId("invoice", partition));
+            Assertions.assertArrayEquals(new long[]{2L, 3L}, factory.getPartitionIds("invoice", partition, 2));
+            Assertions.assertTrue(factory.getPartitionCount() <= 3);
+        }
+        Assertions.assertNotNull(repository.get("invoice#m0#20261017"));
+        // m0已经被淘汰，重新加载的是新的段
+        Assertions.assertTrue(factory.getPartitionId("invoice", "m0#20261017") > 10L);
+        Assertions.assertEquals(4L, factory.getPartitionId("invoice", "m4#20261017"));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> factory.getPartitionId("in#voice", "m0"));
+    }
+
+    @Test
+    void testRegistryIsPerFactoryWithoutGlobalLock() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        InMemorySequenceRepository otherRepository = new InMemorySequenceRepository();
+        otherRepository.set("tableName12", 1000L);
+        ISequenceRepository repository = new InMemorySequenceRepository() {
+            @Override
+            public Long reserveSequence(String bizTag, long incrSize) {
+                if ("slowTag".equals(bizTag)) {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return super.reserveSequence(bizTag, incrSize);
+            }
+        };
+        IdGetterFactory factory = new IdGetterFactory(repository, new IdGetterConfig().setIncrSize(10L).setIdGetterCacheSize(2));
+        IdGetterFactory otherFactory = new IdGetterFactory(otherRepository, 10L);
+
+        ExecutorService caller = Executors.newSingleThreadExecutor();
+        try {
+            Future<Long> slow = caller.submit(() -> factory.getId("slowTag"));
+            // slowTag还卡在仓库里，别的bizTag照样可以创建
+            Assertions.assertEquals(1L, factory.getIdAsLong("tableName12"));
+            Assertions.assertEquals(1001L, otherFactory.getIdAsLong("tableName12"));
+            Assertions.assertFalse(slow.isDone());
+            release.countDown();
+            Assertions.assertEquals(1L, slow.get(5, TimeUnit.SECONDS).longValue());
+        } finally {
+            caller.shutdownNow();
+        }
+
+        IdGetterHandle handle = factory.getHandle("tableName13");
+        Assertions.assertEquals(1L, handle.nextId());
+        for (int i = 0; i < 5; i++) {
+            factory.getId("evictTag" + i);
+        }
+        // 拿过句柄的bizTag不会被淘汰，句柄和工厂用的是同一个IdGetter
+        Assertions.assertEquals(2L, factory.getIdAsLong("tableName13"));
+        Assertions.assertEquals(3L, handle.nextId());
+        Assertions.assertNull(factory.getMetrics("tableName12"));
+    }
+
+    @Test
+    void testWarmUpFillsEveryBufferInParallel() throws Exception {
+        InMemorySequenceRepository repository = new InMemorySequenceRepository() {
+            @Override
+            public List<String> listActiveBizTags() {
+                return Arrays.asList("warmTag1", "warmTag2", "warmTag3", "snowflake_worker", "invoice#m1");
+            }
+        };
+        IdGetterFactory factory = new IdGetterFactory(repository, new IdGetterConfig().setIncrSize(10L).setRefillMaxAttempts(1));
+
+        factory.warmUp(2).get(5, TimeUnit.SECONDS);
+        for (String bizTag : Arrays.asList("warmTag1", "warmTag2", "warmTag3")) {
+            // 当前段和备用缓冲区都已经装好
+            Assertions.assertEquals(20L, repository.get(bizTag).longValue());
+            Assertions.assertTrue(factory.getMetrics(bizTag).isStandbyReady());
+        }
+        Assertions.assertNull(repository.get("snowflake_worker"));
+        Assertions.assertNull(repository.get("invoice#m1"));
+
+        // 创建失败的bizTag不影响其余的预热
+        factory.configure("brokenTag", new IdGetterConfig().setSegmentCount(1));
+        CompletableFuture<Void> partial = factory.warmUp(Arrays.asList("brokenTag", "warmTag4"), 4);
+        Assertions.assertThrows(ExecutionException.class, () -> partial.get(5, TimeUnit.SECONDS));
+        Assertions.assertEquals(20L, repository.get("warmTag4").longValue());
+    }
+
+    @Test
+    void testFormattedIdsAreFixedLengthWithCheckDigit() {
+        IdGetterFactory factory = new IdGetterFactory(new InMemorySequenceRepository(), new IdGetterConfig().setIncrSize(100L));
+        factory.configure("order", new IdGetterConfig().setIncrSize(100L)
+                .setIdFormat(new IdFormat("ORD", "yyyyMMdd", 9, false, ZoneOffset.UTC)));
+        factory.configure("invoice", new IdGetterConfig().setIncrSize(100L)
+                .setIdFormat(new IdFormat("INV", null, 5, true)));
+
+        String today = LocalDate.now(ZoneOffset.UTC).format(DateTimeFormatter.BASIC_ISO_DATE);
+        Assertions.assertEquals("ORD" + today + "000000001", factory.getFormattedId("order"));
+
+        char[] buffer = new char[3 * 20 + 1];
+        buffer[0] = '[';
+        Assertions.assertEquals(1 + 3 * 20, factory.formatIds("order", 3, buffer, 1));
+        Assertions.assertEquals("[ORD" + today + "000000002ORD" + today + "000000003ORD" + today + "000000004",
+                new String(buffer));
+
+        Assertions.assertEquals("INV000018", factory.getFormattedId("invoice"));
+        char[] invoice = new char[9];
+        Assertions.assertEquals(9, factory.formatId("invoice", invoice, 0));
+        Assertions.assertEquals("INV000026", new String(invoice));
+
+        // Luhn算法的标准例子
+        Assertions.assertEquals("79927398713", new IdFormat("", null, 10, true).format(7992739871L));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> factory.getFormattedId("noFormatTag"));
+        Assertions.assertThrows(IdGetFatalException.class, () -> new IdFormat("X", null, 1, false).format(10L));
+    }
+}
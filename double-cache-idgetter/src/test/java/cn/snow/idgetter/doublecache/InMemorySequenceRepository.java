@@ -0,0 +1,64 @@
+package cn.snow.idgetter.doublecache;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 测试用的内存版id仓库，每个bizTag一个计数器，没有这一行时当作从0开始
+ * getCurrentSequence、increaseSequence和reserveSequence都是真正的原子操作，
+ * 需要模拟慢调用或者故障的测试覆盖reserveSequence，处理完再调super.reserveSequence
+ *
+ * @author dev
+ */
+public class InMemorySequenceRepository implements ISequenceRepository {
+
+    private final ConcurrentHashMap<String, AtomicLong> table = new ConcurrentHashMap<>();
+
+    private final AtomicInteger reserveCalls = new AtomicInteger();
+
+    @Override
+    public Long getCurrentSequence(String bizTag) {
+        AtomicLong sequence = table.get(bizTag);
+        return sequence == null ? 0L : sequence.get();
+    }
+
+    @Override
+    public boolean increaseSequence(String bizTag, long incrSize, Long currentSequence) {
+        return currentSequence != null && sequenceOf(bizTag).compareAndSet(currentSequence, currentSequence + incrSize);
+    }
+
+    @Override
+    public Long reserveSequence(String bizTag, long incrSize) {
+        reserveCalls.incrementAndGet();
+        return sequenceOf(bizTag).addAndGet(incrSize);
+    }
+
+    /**
+     * 这个bizTag当前的值
+     *
+     * @param bizTag
+     * @return 没有这一行返回null
+     */
+    public Long get(String bizTag) {
+        AtomicLong sequence = table.get(bizTag);
+        return sequence == null ? null : sequence.get();
+    }
+
+    public void set(String bizTag, long value) {
+        sequenceOf(bizTag).set(value);
+    }
+
+    /**
+     * reserveSequence被调用的次数
+     *
+     * @return
+     */
+    public int getReserveCalls() {
+        return reserveCalls.get();
+    }
+
+    private AtomicLong sequenceOf(String bizTag) {
+        return table.computeIfAbsent(bizTag, k -> new AtomicLong());
+    }
+}
@@ -0,0 +1,66 @@
+package cn.snow.idgetter.doublecache;
+
+import java.io.File;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class RangeJournalTest {
+
+    InMemorySequenceRepository mockRepository = new InMemorySequenceRepository();
+
+    @Test
+    void testRestartResumesFromJournalWithoutRepository(@TempDir Path dir) {
+        File file = dir.resolve("ranges.journal").toFile();
+        IdGetterConfig config = new IdGetterConfig().setIncrSize(100L).setSegmentCount(2).setJournalChunkSize(10L);
+
+        try (RangeJournal journal = new RangeJournal(file, 16)) {
+            IdGetter idGetter = new IdGetter("journalTag", mockRepository, (RefillScheduler) null, config.setRangeJournal(journal));
+            for (long i = 1; i <= 25; i++) {
+                Assertions.assertEquals(i, idGetter.nextId());
+            }
+        }
+        int callsBeforeRestart = mockRepository.getReserveCalls();
+
+        try (RangeJournal journal = new RangeJournal(file, 16)) {
+            IdGetter idGetter = new IdGetter("journalTag", mockRepository, (RefillScheduler) null, config.setRangeJournal(journal));
+            long first = idGetter.nextId();
+            // 发到25时日志推进到了33，重启后从34开始，不会和重启前重复，也没有访问仓库
+            Assertions.assertEquals(34L, first);
+            Assertions.assertEquals(callsBeforeRestart, mockRepository.getReserveCalls());
+            long last = first;
+            for (int i = 0; i < 200; i++) {
+                long id = idGetter.nextId();
+                Assertions.assertTrue(id > last);
+                last = id;
+            }
+        }
+    }
+
+    @Test
+    void testSlotIsHeldByOneIdGetter(@TempDir Path dir) {
+        File file = dir.resolve("ranges.journal").toFile();
+        try (RangeJournal journal = new RangeJournal(file, 16)) {
+            RangeJournal.Slot slot = journal.slot("exclusiveTag");
+            slot.record(0L, 1000L, 100L);
+
+            // 还没释放就被新的持有者接手，旧的不能再写，新的不从日志恢复，因为旧的可能还在发(100, 1000]之前记录过的ID
+            RangeJournal.Slot takenOver = journal.slot("exclusiveTag");
+            Assertions.assertThrows(IdGetFailException.class, () -> slot.record(0L, 1000L, 200L));
+            Assertions.assertNull(takenOver.restore());
+
+            // 正常释放之后，新的持有者从记录的位置接着用
+            takenOver.release();
+            Assertions.assertArrayEquals(new long[]{100L, 1000L}, journal.slot("exclusiveTag").restore());
+
+            // 工厂淘汰IdGetter时释放槽位，同一个bizTag重新创建时从日志推进到的11之后接着发
+            IdGetterFactory factory = new IdGetterFactory(mockRepository, new IdGetterConfig().setIncrSize(100L)
+                    .setJournalChunkSize(10L).setRangeJournal(journal).setIdGetterCacheSize(1));
+            Assertions.assertEquals(1L, factory.getId("factoryTag").longValue());
+            Assertions.assertEquals(1L, factory.getId("otherTag").longValue());
+            Assertions.assertEquals(12L, factory.getId("factoryTag").longValue());
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package cn.snow.idgetter.doublecache;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+class RefillSchedulerTest {
+
+    @Test
+    void testSameKeyRunsOnlyOnce() throws Exception {
+        try (RefillScheduler scheduler = new RefillScheduler(2, false)) {
+            AtomicInteger calls = new AtomicInteger();
+            CountDownLatch release = new CountDownLatch(1);
+            Object key = new Object();
+            CompletableFuture<Boolean> first = scheduler.submit(key, () -> {
+                calls.incrementAndGet();
+                release.await();
+                return true;
+            });
+            CompletableFuture<Boolean> second = scheduler.submit(key, () -> {
+                calls.incrementAndGet();
+                return true;
+            });
+            Assertions.assertSame(first, second);
+            release.countDown();
+            Assertions.assertTrue(first.get(5, TimeUnit.SECONDS));
+            Assertions.assertEquals(1, calls.get());
+
+            // 上一个任务结束后同一个key可以再次提交
+            Assertions.assertTrue(scheduler.submit(key, () -> calls.incrementAndGet() > 0).get(5, TimeUnit.SECONDS));
+            Assertions.assertEquals(2, calls.get());
+        }
+    }
+
+    @Test
+    void testRetryWithBackoffUntilSuccessOrLimit() throws Exception {
+        try (RefillScheduler scheduler = new RefillScheduler(1, false)) {
+            AtomicInteger calls = new AtomicInteger();
+            Boolean result = scheduler.submitWithRetry("retry", () -> {
+                if (calls.incrementAndGet() < 3) {
+                    throw new IdGetFailException("db down");
+                }
+                return true;
+            }, 5).get(5, TimeUnit.SECONDS);
+            Assertions.assertTrue(result);
+            Assertions.assertEquals(3, calls.get());
+
+            AtomicInteger failures = new AtomicInteger();
+            CompletableFuture<Boolean> giveUp = scheduler.submitWithRetry("giveUp", () -> {
+                failures.incrementAndGet();
+                throw new IdGetFailException("db down");
+            }, 2);
+            ExecutionException e = Assertions.assertThrows(ExecutionException.class, () -> giveUp.get(5, TimeUnit.SECONDS));
+            Assertions.assertTrue(e.getCause() instanceof IdGetFailException);
+            Assertions.assertEquals(2, failures.get());
+        }
+    }
+
+    @Test
+    void testBackoffIsBoundedWithJitter() {
+        try (RefillScheduler scheduler = new RefillScheduler(1, false)) {
+            for (int attempt = 1; attempt < 40; attempt++) {
+                long delay = scheduler.backoffMillis(attempt);
+                long cap = Math.min(5000L, 100L << Math.min(attempt - 1, 16));
+                Assertions.assertTrue(delay >= cap / 2 && delay <= cap, "attempt=" + attempt + " delay=" + delay);
+            }
+        }
+    }
+
+    @Test
+    void testClosedSchedulerNeverRunsOnCaller() {
+        RefillScheduler scheduler = new RefillScheduler(1, false);
+        scheduler.close();
+        Thread caller = Thread.currentThread();
+        CompletableFuture<Boolean> rejected = scheduler.submit("closed", () -> Thread.currentThread() == caller);
+        Assertions.assertTrue(rejected.isCompletedExceptionally());
+    }
+
+    @Test
+    void testCallerExecutorBorrowsTheCurrentSharedTimer() throws Exception {
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        RefillScheduler scheduler = new RefillScheduler(pool);
+        // 借用的timer每次都取当前的共享调度器，共享调度器重建之后重试照样能排上
+        RefillScheduler.shutdownShared();
+        AtomicInteger calls = new AtomicInteger();
+        Boolean result = scheduler.submitWithRetry("borrowed", () -> {
+            if (calls.incrementAndGet() < 2) {
+                throw new IdGetFailException("db down");
+            }
+            return true;
+        }, 3).get(5, TimeUnit.SECONDS);
+        Assertions.assertTrue(result);
+        Assertions.assertEquals(2, calls.get());
+
+        // 调用方的线程池和共享的timer都不归它关闭
+        scheduler.close();
+        Assertions.assertFalse(pool.isShutdown());
+        Assertions.assertFalse(RefillScheduler.shared().timer().isShutdown());
+        pool.shutdown();
+    }
+
+    @Test
+    void testVirtualThreadOptionRunsTasks() throws Exception {
+        // JDK 21以下退回平台线程，JDK 21以上任务在虚拟线程里执行，两种情况都能正常调度
+        try (RefillScheduler scheduler = new RefillScheduler(1, true)) {
+            Assertions.assertTrue(scheduler.submit("virtual", () -> true).get(5, TimeUnit.SECONDS));
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package cn.snow.idgetter.doublecache;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+class SequenceRepositoryImplBySequenceTest {
+
+    private static JdbcDataSource dataSource(String name, String mode, String... ddl) throws SQLException {
+        JdbcDataSource dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:" + name + ";MODE=" + mode + ";DB_CLOSE_DELAY=-1");
+        try (Connection connection = dataSource.getConnection(); Statement statement = connection.createStatement()) {
+            for (String sql : ddl) {
+                statement.execute(sql);
+            }
+        }
+        return dataSource;
+    }
+
+    @Test
+    void testOneBlockPerValueInCompatibilityModes() throws SQLException {
+        String[][] modes = {
+                {"MariaDB", "STANDARD"},
+                {"PostgreSQL", "POSTGRESQL"},
+                {"Oracle", "ORACLE"},
+        };
+        for (String[] mode : modes) {
+            JdbcDataSource dataSource = dataSource("seq" + mode[0], mode[0],
+                    "CREATE SEQUENCE seq_order START WITH 1 INCREMENT BY 100",
+                    // H2没有Oracle的数据字典，用视图模拟
+                    "CREATE VIEW USER_SEQUENCES AS SELECT SEQUENCE_NAME, INCREMENT AS INCREMENT_BY FROM INFORMATION_SCHEMA.SEQUENCES");
+            ISequenceRepository repository = new SequenceRepositoryImplBySequence(dataSource,
+                    SequenceRepositoryImplBySequence.Dialect.valueOf(mode[1]), "seq_");
+            IdGetter idGetter = new IdGetter("order", 100L, repository);
+            for (long i = 1; i <= 250; i++) {
+                Assertions.assertEquals(i, idGetter.nextId(), mode[0]);
+            }
+            Assertions.assertThrows(IdGetFatalException.class, () -> repository.reserveSequence("order", 50L), mode[0]);
+        }
+    }
+
+    @Test
+    void testLegacyIncrementOneAndMultiSequenceFetch() throws SQLException {
+        JdbcDataSource dataSource = dataSource("seqBatch", "Regular",
+                "CREATE SEQUENCE legacy START WITH 1 INCREMENT BY 1",
+                "CREATE SEQUENCE tag_a START WITH 1 INCREMENT BY 10",
+                "CREATE SEQUENCE tag_b START WITH 1 INCREMENT BY 20");
+        SequenceRepositoryImplBySequence repository = new SequenceRepositoryImplBySequence(dataSource,
+                SequenceRepositoryImplBySequence.Dialect.STANDARD);
+
+        // INCREMENT BY 1的sequence，第v次取到的是第v段
+        Assertions.assertEquals(30L, repository.reserveSequence("legacy", 30L).longValue());
+        Assertions.assertEquals(60L, repository.reserveSequence("legacy", 30L).longValue());
+
+        Map<String, Long> incrSizes = new HashMap<>();
+        incrSizes.put("tag_a", 10L);
+        incrSizes.put("tag_b", 20L);
+        Map<String, Long> first = repository.reserveSequences(incrSizes);
+        Assertions.assertEquals(10L, first.get("tag_a").longValue());
+        Assertions.assertEquals(20L, first.get("tag_b").longValue());
+        Map<String, Long> second = repository.reserveSequences(incrSizes);
+        Assertions.assertEquals(20L, second.get("tag_a").longValue());
+        Assertions.assertEquals(40L, second.get("tag_b").longValue());
+
+        Assertions.assertThrows(IllegalArgumentException.class, () -> repository.reserveSequence("x; DROP TABLE t", 10L));
+    }
+
+    @Test
+    void testSameBizTagIsNotMergedByBatching() throws Exception {
+        JdbcDataSource dataSource = dataSource("seqSameTag", "Regular",
+                "CREATE SEQUENCE same_tag START WITH 1 INCREMENT BY 10");
+        ExecutorService callers = Executors.newFixedThreadPool(3);
+        Set<Long> maxValues = new HashSet<>();
+        try (BatchingSequenceRepository repository = new BatchingSequenceRepository(
+                new SequenceRepositoryImplBySequence(dataSource, SequenceRepositoryImplBySequence.Dialect.STANDARD), 50L)) {
+            List<Future<Long>> reservations = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+                reservations.add(callers.submit(() -> repository.reserveSequence("same_tag", 10L)));
+            }
+            for (Future<Long> reservation : reservations) {
+                maxValues.add(reservation.get());
+            }
+        }
+        callers.shutdown();
+        // 同一个窗口里的三个请求各取一次nextval
+        Assertions.assertEquals(new HashSet<>(Arrays.asList(10L, 20L, 30L)), maxValues);
+    }
+}
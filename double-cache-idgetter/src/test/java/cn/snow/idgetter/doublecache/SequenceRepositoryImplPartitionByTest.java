@@ -0,0 +1,96 @@
+package cn.snow.idgetter.doublecache;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import org.apache.ibatis.mapping.Environment;
+import org.apache.ibatis.session.Configuration;
+import org.apache.ibatis.session.SqlSession;
+import org.apache.ibatis.session.SqlSessionFactoryBuilder;
+import org.apache.ibatis.transaction.jdbc.JdbcTransactionFactory;
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import cn.snow.idgetter.doublecache.dao.TSeqConfDao;
+
+class SequenceRepositoryImplPartitionByTest {
+
+    private static SqlSession session(String name, String... ddl) throws SQLException {
+        JdbcDataSource dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:" + name + ";MODE=MySQL;DB_CLOSE_DELAY=-1");
+        try (Connection connection = dataSource.getConnection(); Statement statement = connection.createStatement()) {
+            // 和sql/mysql_init.sql的t_seq_conf一致，去掉了H2不认识的注释和排序规则
+            statement.execute("CREATE TABLE t_seq_conf (" +
+                    "id BIGINT NOT NULL AUTO_INCREMENT PRIMARY KEY, " +
+                    "name VARCHAR(50) NOT NULL, " +
+                    "current_value BIGINT NOT NULL DEFAULT 1, " +
+                    "increment_size BIGINT NOT NULL DEFAULT 1, " +
+                    "status CHAR(1) NOT NULL DEFAULT 'a', " +
+                    "cdate DATETIME NOT NULL DEFAULT CURRENT_TIMESTAMP, " +
+                    "edate DATETIME NOT NULL DEFAULT CURRENT_TIMESTAMP, " +
+                    "UNIQUE KEY uk_seq_conf_name (name))");
+            for (String sql : ddl) {
+                statement.execute(sql);
+            }
+        }
+        Configuration configuration = new Configuration(new Environment(name, new JdbcTransactionFactory(), dataSource));
+        configuration.addMapper(TSeqConfDao.class);
+        return new SqlSessionFactoryBuilder().build(configuration).openSession(true);
+    }
+
+    @Test
+    void testPartitionRowIsInsertedOnFirstUse() throws SQLException {
+        try (SqlSession session = session("partitionInsert")) {
+            SequenceRepositoryImplPartitionBy repository = new SequenceRepositoryImplPartitionBy(session.getMapper(TSeqConfDao.class));
+
+            Assertions.assertNull(repository.getCurrentSequence("invoice#m1#20261017"));
+            Assertions.assertEquals(10L, repository.reserveSequence("invoice#m1#20261017", 10L).longValue());
+            Assertions.assertEquals(20L, repository.reserveSequence("invoice#m1#20261017", 10L).longValue());
+            Assertions.assertEquals(20L, repository.getCurrentSequence("invoice#m1#20261017").longValue());
+            Assertions.assertEquals(10L, repository.getIncrementSize("invoice#m1#20261017").longValue());
+
+            // 另一个分区从1开始
+            IdGetter idGetter = new IdGetter("invoice#m2#20261017", 10L, repository);
+            for (long i = 1; i <= 25; i++) {
+                Assertions.assertEquals(i, idGetter.nextId());
+            }
+        }
+    }
+
+    @Test
+    void testDisabledPartitionIsNotReserved() throws SQLException {
+        try (SqlSession session = session("partitionDisabled",
+                "INSERT INTO t_seq_conf (name, current_value, increment_size, status) VALUES ('invoice#m1#20261016', 30, 10, 'd')")) {
+            TSeqConfDao seqConfDao = session.getMapper(TSeqConfDao.class);
+            SequenceRepositoryImplPartitionBy repository = new SequenceRepositoryImplPartitionBy(seqConfDao);
+
+            Assertions.assertNull(repository.reserveSequence("invoice#m1#20261016", 10L));
+            Assertions.assertNull(repository.getCurrentSequence("invoice#m1#20261016"));
+            // 停用的行没有被改动，也没有插入重复的行
+            try (Statement statement = session.getConnection().createStatement()) {
+                ResultSet resultSet = statement.executeQuery(
+                        "SELECT COUNT(*), MAX(current_value) FROM t_seq_conf WHERE name = 'invoice#m1#20261016'");
+                Assertions.assertTrue(resultSet.next());
+                Assertions.assertEquals(1L, resultSet.getLong(1));
+                Assertions.assertEquals(30L, resultSet.getLong(2));
+            }
+        }
+    }
+
+    @Test
+    void testIncreaseSequenceInsertsOnlyOnce() throws SQLException {
+        try (SqlSession session = session("partitionIncrease")) {
+            SequenceRepositoryImplPartitionBy repository = new SequenceRepositoryImplPartitionBy(session.getMapper(TSeqConfDao.class));
+
+            Assertions.assertTrue(repository.increaseSequence("invoice#m1#20261017", 10L, null));
+            // 别的节点已经插入了，insert ignore什么都不做
+            Assertions.assertFalse(repository.increaseSequence("invoice#m1#20261017", 10L, null));
+            Assertions.assertFalse(repository.increaseSequence("invoice#m1#20261017", 10L, 0L));
+            Assertions.assertTrue(repository.increaseSequence("invoice#m1#20261017", 10L, 10L));
+            Assertions.assertEquals(20L, repository.getCurrentSequence("invoice#m1#20261017").longValue());
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package cn.snow.idgetter.doublecache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class SharedSegmentIdGetterTest {
+
+    private static final int IDS_PER_PROCESS = 20000;
+
+    /**
+     * 计数器放在文件里，用文件锁保证多个进程预留时不重复
+     */
+    static class FileCounterRepository implements ISequenceRepository {
+        private final File counter;
+
+        FileCounterRepository(File counter) {
+            this.counter = counter;
+        }
+
+        @Override
+        public synchronized Long getCurrentSequence(String bizTag) {
+            try (RandomAccessFile file = new RandomAccessFile(counter, "rw")) {
+                FileLock lock = file.getChannel().lock();
+                try {
+                    return file.length() >= 8 ? file.readLong() : 0L;
+                } finally {
+                    lock.release();
+                }
+            } catch (IOException e) {
+                throw new IdGetFailException("counter file fail", e);
+            }
+        }
+
+        @Override
+        public synchronized boolean increaseSequence(String bizTag, long incrSize, Long currentSequence) {
+            return update(currentSequence, incrSize) != null;
+        }
+
+        @Override
+        public synchronized Long reserveSequence(String bizTag, long incrSize) {
+            return update(null, incrSize);
+        }
+
+        /**
+         * 持有文件锁把计数器加上incrSize
+         *
+         * @param expected 不为null时只有计数器等于它才更新
+         * @param incrSize
+         * @return 更新之后的值，没有更新返回null
+         */
+        private Long update(Long expected, long incrSize) {
+            try (RandomAccessFile file = new RandomAccessFile(counter, "rw")) {
+                FileLock lock = file.getChannel().lock();
+                try {
+                    long current = file.length() >= 8 ? file.readLong() : 0L;
+                    if (expected != null && expected != current) {
+                        return null;
+                    }
+                    file.seek(0);
+                    file.writeLong(current + incrSize);
+                    return current + incrSize;
+                } finally {
+                    lock.release();
+                }
+            } catch (IOException e) {
+                throw new IdGetFailException("counter file fail", e);
+            }
+        }
+
+        long current() throws IOException {
+            try (RandomAccessFile file = new RandomAccessFile(counter, "r")) {
+                return file.readLong();
+            }
+        }
+    }
+
+    /**
+     * 子进程：打开共享文件，准备好之后等父进程的信号，再取IDS_PER_PROCESS个ID写到文件里
+     *
+     * @param args 共享文件、计数器文件、工作目录、子进程编号
+     */
+    public static void main(String[] args) throws Exception {
+        File dir = new File(args[2]);
+        try (SharedSegmentFile sharedFile = new SharedSegmentFile(new File(args[0]));
+             RefillScheduler scheduler = new RefillScheduler(1, false)) {
+            IdGenerator generator = new SharedSegmentIdGetter("sharedTag", new FileCounterRepository(new File(args[1])), scheduler,
+                    new IdGetterConfig().setIncrSize(100L).setSharedSegmentClaimSize(10).setSharedSegmentFile(sharedFile));
+            Files.createFile(new File(dir, "ready-" + args[3]).toPath());
+            while (!new File(dir, "go").exists()) {
+                Thread.sleep(1L);
+            }
+            List<String> lines = new ArrayList<>(IDS_PER_PROCESS);
+            for (long id : drawIds(generator)) {
+                lines.add(Long.toString(id));
+            }
+            Files.write(new File(dir, "ids-" + args[3]).toPath(), lines, StandardCharsets.UTF_8);
+        }
+    }
+
+    private static long[] drawIds(IdGenerator generator) {
+        long[] ids = new long[IDS_PER_PROCESS];
+        int filled = 0;
+        while (filled < IDS_PER_PROCESS) {
+            if (filled % 3 == 0 && filled + 7 <= IDS_PER_PROCESS) {
+                long[] batch = generator.getIds(7);
+                System.arraycopy(batch, 0, ids, filled, batch.length);
+                filled += batch.length;
+            } else {
+                ids[filled++] = generator.nextId();
+            }
+        }
+        return ids;
+    }
+
+    @Test
+    void testProcessesShareSegmentsWithoutDuplicates(@TempDir Path dir) throws Exception {
+        File shared = dir.resolve("segments").toFile();
+        File counter = dir.resolve("counter").toFile();
+        FileCounterRepository repository = new FileCounterRepository(counter);
+        try (SharedSegmentFile sharedFile = new SharedSegmentFile(shared);
+             RefillScheduler scheduler = new RefillScheduler(1, false)) {
+            IdGenerator generator = new SharedSegmentIdGetter("sharedTag", repository, scheduler,
+                    new IdGetterConfig().setIncrSize(100L).setSharedSegmentClaimSize(10).setSharedSegmentFile(sharedFile));
+
+            String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+            List<Process> children = new ArrayList<>();
+            for (int i = 0; i < 2; i++) {
+                children.add(new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                        SharedSegmentIdGetterTest.class.getName(), shared.getPath(), counter.getPath(), dir.toString(), String.valueOf(i))
+                        .redirectErrorStream(true)
+                        .redirectOutput(dir.resolve("child-" + i + ".log").toFile())
+                        .start());
+            }
+            long deadline = System.currentTimeMillis() + 30000L;
+            while (!(dir.resolve("ready-0").toFile().exists() && dir.resolve("ready-1").toFile().exists())) {
+                Assertions.assertTrue(System.currentTimeMillis() < deadline, "children not ready");
+                Thread.sleep(10L);
+            }
+            Files.createFile(dir.resolve("go"));
+
+            Set<Long> ids = new HashSet<>();
+            for (long id : drawIds(generator)) {
+                Assertions.assertTrue(ids.add(id), "duplicate id " + id);
+            }
+            for (int i = 0; i < children.size(); i++) {
+                Assertions.assertTrue(children.get(i).waitFor(30, TimeUnit.SECONDS));
+                Assertions.assertEquals(0, children.get(i).exitValue(),
+                        new String(Files.readAllBytes(dir.resolve("child-" + i + ".log")), StandardCharsets.UTF_8));
+                for (String line : Files.readAllLines(dir.resolve("ids-" + i), StandardCharsets.UTF_8)) {
+                    Assertions.assertTrue(ids.add(Long.parseLong(line)), "duplicate id " + line);
+                }
+            }
+            Assertions.assertEquals(3 * IDS_PER_PROCESS, ids.size());
+            // 三个进程共用号段，最多剩下当前段和备用段没领完，加上每个进程领到手里没发完的一块
+            Assertions.assertTrue(repository.current() - 3 * IDS_PER_PROCESS <= 2 * 100L + 3 * 10L, "counter=" + repository.current());
+        }
+    }
+}
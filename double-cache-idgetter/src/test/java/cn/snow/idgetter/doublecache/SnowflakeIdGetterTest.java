@@ -0,0 +1,154 @@
+package cn.snow.idgetter.doublecache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+class SnowflakeIdGetterTest {
+
+    InMemorySequenceRepository mockRepository = new InMemorySequenceRepository();
+
+    @Test
+    void testFactoryChoosesStrategyPerBizTag() throws Exception {
+        IdGetterFactory factory = new IdGetterFactory(mockRepository, 10L)
+                .configure("snowflakeTag", new IdGetterConfig().setStrategy(IdStrategy.SNOWFLAKE));
+        Assertions.assertEquals(1L, factory.getId("segmentTag").longValue());
+        Assertions.assertNull(factory.getMetrics("snowflakeTag"));
+
+        long workerId = ((SnowflakeIdGetter) factory.getIdGenerator("snowflakeTag")).getWorkerId();
+        Assertions.assertTrue(mockRepository.get("snowflake_worker_" + workerId) > System.currentTimeMillis());
+        int threads = 4;
+        ExecutorService callers = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<long[]>> results = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                results.add(callers.submit(() -> {
+                    long[] ids = new long[20000];
+                    for (int i = 0; i < ids.length; i++) {
+                        ids[i] = factory.getIdAsLong("snowflakeTag");
+                    }
+                    return ids;
+                }));
+            }
+            Set<Long> unique = ConcurrentHashMap.newKeySet();
+            for (Future<long[]> result : results) {
+                long[] ids = result.get();
+                for (int i = 0; i < ids.length; i++) {
+                    Assertions.assertTrue(unique.add(ids[i]));
+                    if (i > 0) {
+                        Assertions.assertTrue(ids[i] > ids[i - 1]);
+                    }
+                    Assertions.assertEquals(workerId, (ids[i] >>> 12) & 1023L);
+                }
+            }
+        } finally {
+            callers.shutdownNow();
+        }
+    }
+
+    @Test
+    void testClockRollback() {
+        AtomicLong clock = new AtomicLong(1577836800000L + 1000L);
+        IdGetterConfig config = new IdGetterConfig().setSnowflakeWorkerIdBits(4).setSnowflakeSequenceBits(2)
+                .setSnowflakeMaxBackwardMillis(5L);
+        // 除了6之外的worker ID都被别的节点占着
+        for (int i = 0; i < 16; i++) {
+            if (i != 6) {
+                mockRepository.set("snowflake_worker_" + i, System.currentTimeMillis() + 60000L);
+            }
+        }
+        SnowflakeIdGetter idGetter = new SnowflakeIdGetter("rollbackTag", mockRepository, config) {
+            @Override
+            protected long currentTimeMillis() {
+                return clock.get();
+            }
+        };
+        Assertions.assertEquals(6L, idGetter.getWorkerId());
+        Assertions.assertEquals(1000L << 6 | 6L << 2, idGetter.nextId());
+
+        // 回拨3毫秒还在容忍范围内，继续在1000毫秒上递增，序号用完进位到1001
+        clock.addAndGet(-3L);
+        long last = idGetter.nextId();
+        for (int i = 0; i < 6; i++) {
+            long id = idGetter.nextId();
+            Assertions.assertTrue(id > last);
+            last = id;
+        }
+        Assertions.assertEquals(1001L, last >>> 6);
+
+        clock.addAndGet(-10L);
+        Assertions.assertThrows(IdGetFailException.class, idGetter::nextId);
+        clock.addAndGet(20L);
+        Assertions.assertTrue(idGetter.nextId() > last);
+    }
+
+    @Test
+    void testWorkerIdLease() throws Exception {
+        IdGetterConfig config = new IdGetterConfig().setSnowflakeWorkerIdBits(1).setSnowflakeWorkerLeaseMillis(1500L);
+        try (RefillScheduler scheduler = new RefillScheduler(1, false);
+             WorkerIdLease first = new WorkerIdLease(mockRepository, config, scheduler);
+             WorkerIdLease second = new WorkerIdLease(mockRepository, config, scheduler)) {
+            Assertions.assertNotEquals(first.getWorkerId(), second.getWorkerId());
+            // 两个worker ID都租出去了
+            Assertions.assertThrows(IdGetFailException.class, () -> new WorkerIdLease(mockRepository, config, scheduler));
+
+            // 一直在续租，过了租约时长仍然有效
+            Thread.sleep(2000L);
+            first.checkValid();
+            second.checkValid();
+
+            // 别的节点接手了second的worker ID，续租失败后马上停止取号
+            String row = "snowflake_worker_" + second.getWorkerId();
+            mockRepository.set(row, mockRepository.get(row) + 1L);
+            second.renew();
+            Assertions.assertThrows(IdGetFailException.class, second::checkValid);
+            first.checkValid();
+        }
+    }
+
+    @Test
+    void testCloseStopsRenewingWorkerIdLeases() throws Exception {
+        IdGetterConfig factoryConfig = new IdGetterConfig().setIncrSize(10L).setFallbackToTimeBased(true).setRefillBatchWindowMillis(5L)
+                .setSnowflakeWorkerIdBits(1).setSnowflakeWorkerLeaseMillis(300L);
+        IdGetterConfig standaloneConfig = new IdGetterConfig().setIncrSize(10L).setFallbackToTimeBased(true)
+                .setSnowflakeWorkerTag("standalone_worker").setSnowflakeWorkerIdBits(1).setSnowflakeWorkerLeaseMillis(300L);
+        try (RefillScheduler scheduler = new RefillScheduler(1, false)) {
+            IdGetterFactory factory = new IdGetterFactory(mockRepository, factoryConfig, scheduler);
+            IdGetter standalone = new IdGetter("standaloneTag", mockRepository, scheduler, standaloneConfig);
+            Assertions.assertEquals(1L, factory.getIdAsLong("segmentTag"));
+            Assertions.assertEquals(1L, standalone.nextId());
+
+            long factoryLease = leasedUntil("snowflake_worker");
+            long standaloneLease = leasedUntil("standalone_worker");
+            Thread.sleep(250L);
+            Assertions.assertTrue(leasedUntil("snowflake_worker") > factoryLease);
+            Assertions.assertTrue(leasedUntil("standalone_worker") > standaloneLease);
+
+            factory.close();
+            standalone.close();
+            factoryLease = leasedUntil("snowflake_worker");
+            standaloneLease = leasedUntil("standalone_worker");
+            Thread.sleep(400L);
+            // 不再续租，租约自然过期后别的节点才能接手
+            Assertions.assertEquals(factoryLease, leasedUntil("snowflake_worker"));
+            Assertions.assertEquals(standaloneLease, leasedUntil("standalone_worker"));
+        }
+    }
+
+    private long leasedUntil(String workerTag) {
+        long expireAt = 0L;
+        for (int workerId = 0; workerId < 2; workerId++) {
+            Long row = mockRepository.get(workerTag + "_" + workerId);
+            expireAt = Math.max(expireAt, row == null ? 0L : row);
+        }
+        return expireAt;
+    }
+}
@@ -0,0 +1,97 @@
+package cn.snow.idgetter.benchmark;
+
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import cn.snow.idgetter.doublecache.IdFormat;
+import cn.snow.idgetter.doublecache.IdGetterConfig;
+import cn.snow.idgetter.doublecache.IdGetterFactory;
+
+/**
+ * 格式化编号的压测，对比调用方自己用String.format拼ORD20261017000012345，
+ * 和IdGetterFactory按IdFormat直接写字符串、写进复用的char[]、批量写进char[]
+ * <p>
+ * 运行：java -jar idgetter-benchmark/target/benchmarks.jar FormattedIdBenchmark -prof gc
+ * 加上-prof gc可以看到每次调用分配的字节数
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class FormattedIdBenchmark {
+
+    private static final String BIZ_TAG = "benchmark_order";
+
+    private static final int BATCH_SIZE = 100;
+
+    private IdGetterFactory factory;
+
+    private int length;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        factory = new IdGetterFactory(new InMemorySequenceRepository(0L), 5000L);
+        IdFormat format = new IdFormat("ORD", "yyyyMMdd", 9, false);
+        factory.configure(BIZ_TAG, new IdGetterConfig().setIncrSize(5000L).setIdFormat(format));
+        length = format.getLength();
+        factory.getId(BIZ_TAG);
+    }
+
+    /**
+     * 每个线程复用自己的缓冲区
+     */
+    @State(Scope.Thread)
+    public static class Buffer {
+        private char[] chars;
+
+        @Setup(Level.Trial)
+        public void setUp(FormattedIdBenchmark benchmark) {
+            chars = new char[benchmark.length * BATCH_SIZE];
+        }
+    }
+
+    @Benchmark
+    public String naiveFormat() {
+        return String.format("ORD%s%09d", LocalDate.now().format(DateTimeFormatter.BASIC_ISO_DATE), factory.getId(BIZ_TAG));
+    }
+
+    @Benchmark
+    public String getFormattedId() {
+        return factory.getFormattedId(BIZ_TAG);
+    }
+
+    @Benchmark
+    public char[] formatIdIntoBuffer(Buffer buffer) {
+        factory.formatId(BIZ_TAG, buffer.chars, 0);
+        return buffer.chars;
+    }
+
+    /**
+     * 一次写BATCH_SIZE个，吞吐量要乘以BATCH_SIZE才是每微秒的编号数
+     *
+     * @param buffer
+     * @return
+     */
+    @Benchmark
+    public char[] formatIdsIntoBuffer(Buffer buffer) {
+        factory.formatIds(BIZ_TAG, BATCH_SIZE, buffer.chars, 0);
+        return buffer.chars;
+    }
+}
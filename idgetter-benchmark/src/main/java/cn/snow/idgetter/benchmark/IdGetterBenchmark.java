@@ -0,0 +1,91 @@
+package cn.snow.idgetter.benchmark;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import cn.snow.idgetter.doublecache.IdGetter;
+
+/**
+ * 单个IdGetter的取号压测，分别覆盖同步/异步加载两种构造方式、不同的incrSize和仓库延迟
+ * <p>
+ * 运行：mvn -pl idgetter-benchmark -am package && java -jar idgetter-benchmark/target/benchmarks.jar IdGetterBenchmark
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class IdGetterBenchmark {
+
+    @Param({"sync", "async"})
+    public String mode;
+
+    @Param({"100", "5000", "100000"})
+    public long incrSize;
+
+    @Param({"0", "1000"})
+    public long repositoryLatencyMicros;
+
+    private ExecutorService loader;
+
+    private IdGetter idGetter;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        InMemorySequenceRepository repository = new InMemorySequenceRepository(repositoryLatencyMicros);
+        if ("async".equals(mode)) {
+            loader = Executors.newFixedThreadPool(2);
+            idGetter = new IdGetter("benchmark", incrSize, repository, loader);
+        } else {
+            idGetter = new IdGetter("benchmark", incrSize, repository);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        if (loader != null) {
+            loader.shutdownNow();
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Long getId1Thread() {
+        return idGetter.getId();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Long getId4Threads() {
+        return idGetter.getId();
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public Long getIdMaxThreads() {
+        return idGetter.getId();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public long nextId4Threads() {
+        return idGetter.nextId();
+    }
+}
@@ -0,0 +1,106 @@
+package cn.snow.idgetter.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import cn.snow.idgetter.doublecache.IdGetterFactory;
+import cn.snow.idgetter.doublecache.IdGetterHandle;
+
+/**
+ * 通过IdGetterFactory取号的压测，对比所有线程争用一个bizTag和分散到多个bizTag的情况，
+ * 以及按bizTag查注册表和直接用IdGetterHandle取号的差别
+ * <p>
+ * 运行：java -jar idgetter-benchmark/target/benchmarks.jar IdGetterFactoryBenchmark
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class IdGetterFactoryBenchmark {
+
+    @Param({"1", "64"})
+    public int bizTagCount;
+
+    @Param({"5000"})
+    public long incrSize;
+
+    @Param({"0", "1000"})
+    public long repositoryLatencyMicros;
+
+    private IdGetterFactory factory;
+
+    private String[] bizTags;
+
+    private IdGetterHandle[] handles;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        factory = new IdGetterFactory(new InMemorySequenceRepository(repositoryLatencyMicros), incrSize);
+        bizTags = new String[bizTagCount];
+        handles = new IdGetterHandle[bizTagCount];
+        for (int i = 0; i < bizTagCount; i++) {
+            bizTags[i] = "benchmark_tag_" + i;
+            factory.getId(bizTags[i]);
+            handles[i] = factory.getHandle(bizTags[i]);
+        }
+    }
+
+    /**
+     * 每个线程自己轮询bizTag，避免在取tag这一步上产生额外的争用
+     */
+    @State(Scope.Thread)
+    public static class TagCursor {
+        private int next;
+
+        String nextTag(String[] bizTags) {
+            String tag = bizTags[next];
+            next = next + 1 == bizTags.length ? 0 : next + 1;
+            return tag;
+        }
+
+        IdGetterHandle nextHandle(IdGetterHandle[] handles) {
+            IdGetterHandle handle = handles[next];
+            next = next + 1 == handles.length ? 0 : next + 1;
+            return handle;
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Long getId1Thread(TagCursor cursor) {
+        return factory.getId(cursor.nextTag(bizTags));
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Long getId4Threads(TagCursor cursor) {
+        return factory.getId(cursor.nextTag(bizTags));
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public Long getIdMaxThreads(TagCursor cursor) {
+        return factory.getId(cursor.nextTag(bizTags));
+    }
+
+    @Benchmark
+    @Threads(4)
+    public long nextIdByHandle4Threads(TagCursor cursor) {
+        return cursor.nextHandle(handles).nextId();
+    }
+}
@@ -0,0 +1,50 @@
+package cn.snow.idgetter.benchmark;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import cn.snow.idgetter.doublecache.ISequenceRepository;
+
+/**
+ * 压测用的内存版id仓库，用latencyMicros模拟一次数据库往返的耗时
+ */
+public class InMemorySequenceRepository implements ISequenceRepository {
+
+    private final ConcurrentHashMap<String, AtomicLong> table = new ConcurrentHashMap<>();
+
+    private final long latencyNanos;
+
+    public InMemorySequenceRepository(long latencyMicros) {
+        this.latencyNanos = TimeUnit.MICROSECONDS.toNanos(latencyMicros);
+    }
+
+    @Override
+    public Long getCurrentSequence(String bizTag) {
+        roundTrip();
+        return sequenceOf(bizTag).get();
+    }
+
+    @Override
+    public boolean increaseSequence(String bizTag, long incrSize, Long currentSequence) {
+        roundTrip();
+        return sequenceOf(bizTag).compareAndSet(currentSequence, currentSequence + incrSize);
+    }
+
+    @Override
+    public Long reserveSequence(String bizTag, long incrSize) {
+        roundTrip();
+        return sequenceOf(bizTag).addAndGet(incrSize);
+    }
+
+    private AtomicLong sequenceOf(String bizTag) {
+        return table.computeIfAbsent(bizTag, k -> new AtomicLong());
+    }
+
+    private void roundTrip() {
+        if (latencyNanos > 0) {
+            LockSupport.parkNanos(latencyNanos);
+        }
+    }
+}
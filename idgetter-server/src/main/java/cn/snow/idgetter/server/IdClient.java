@@ -0,0 +1,229 @@
+package cn.snow.idgetter.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntFunction;
+
+import cn.snow.idgetter.doublecache.IdGetFailException;
+import cn.snow.idgetter.doublecache.IdGetterFactory;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * IdServer的客户端
+ * <p>
+ * 1. 保持固定几条长连接，请求轮流发到各条连接上，每条连接上可以同时有很多个请求在等响应，
+ *    响应按requestId对应，多个bizTag的加载请求共用连接，不用一个请求等一个往返
+ * 2. 每条连接一个读线程，收到响应就完成对应的future
+ * 3. 连接断了，上面所有在等的请求都以IdGetFailException结束，下一次请求时重新连接
+ * 4. 等响应不占线程，但是连接和写请求在调用线程里做：还没有连接时当场连接（最多等CONNECT_TIMEOUT_MILLIS），
+ *    写请求持有这条连接的锁，服务端不读时会等到发送缓冲区有空位，所以应该在加载线程里调用，不要在选择器或者事件循环线程里调用
+ *
+ * @author dev
+ */
+@Slf4j
+public class IdClient implements Closeable {
+
+    /**
+     * 响应帧的最大长度，最坏情况是服务端一次能给的ID一个一个都不连续
+     */
+    private static final int MAX_RESPONSE_FRAME = 4 + 1 + 4 + IdServer.MAX_COALESCED_COUNT * 12;
+    private static final int CONNECT_TIMEOUT_MILLIS = 3000;
+
+    private final InetSocketAddress serverAddress;
+    private final Channel[] channels;
+    private final AtomicInteger nextChannel = new AtomicInteger();
+    private final AtomicInteger nextRequestId = new AtomicInteger();
+    private final IdGetterFactory.SnowIdGetterThreadFactory readerThreadFactory =
+            new IdGetterFactory.SnowIdGetterThreadFactory("snow-id-client-reader", true);
+    private volatile boolean closed;
+
+    public IdClient(InetSocketAddress serverAddress) {
+        this(serverAddress, 2);
+    }
+
+    /**
+     * @param serverAddress
+     * @param connections 长连接的条数
+     */
+    public IdClient(InetSocketAddress serverAddress, int connections) {
+        if (connections <= 0) {
+            throw new IllegalArgumentException("connections must be positive, connections=" + connections);
+        }
+        this.serverAddress = serverAddress;
+        this.channels = new Channel[connections];
+        for (int i = 0; i < connections; i++) {
+            channels[i] = new Channel();
+        }
+    }
+
+    /**
+     * 向服务端要count个ID，不等响应，连接和写请求在调用线程里做
+     *
+     * @param bizTag
+     * @param count
+     * @return 服务端返回错误或者连接断开时以IdGetFailException结束
+     */
+    public CompletableFuture<IdProtocol.Response> request(String bizTag, int count) {
+        return send(bizTag, requestId -> IdProtocol.encodeRequest(requestId, bizTag, count));
+    }
+
+    /**
+     * 通过服务端的仓库租用或者续租worker ID，不等响应，参数和结果见ISequenceRepository.leaseWorkerId
+     *
+     * @param workerTag
+     * @param workerId
+     * @param token
+     * @param leaseMillis
+     * @return 没有租到时结果为null
+     */
+    public CompletableFuture<Long> leaseWorkerId(String workerTag, int workerId, Long token, long leaseMillis) {
+        CompletableFuture<IdProtocol.Response> sent =
+                send(workerTag, requestId -> IdProtocol.encodeLeaseRequest(requestId, workerTag, workerId, token, leaseMillis));
+        return cancelling(sent, sent.thenApply(IdProtocol.Response::getToken));
+    }
+
+    private CompletableFuture<IdProtocol.Response> send(String bizTag, IntFunction<ByteBuffer> encoder) {
+        if (closed) {
+            throw new IdGetFailException("id client closed");
+        }
+        int requestId = nextRequestId.incrementAndGet();
+        Channel channel = channels[Math.floorMod(nextChannel.getAndIncrement(), channels.length)];
+        CompletableFuture<IdProtocol.Response> sent = channel.send(requestId, encoder.apply(requestId));
+        return cancelling(sent, sent.thenApply(response -> {
+            if (!response.isSuccess()) {
+                throw new IdGetFailException("id server fail, bizTag=" + bizTag + ", " + response.getError());
+            }
+            return response;
+        }));
+    }
+
+    /**
+     * 取消derived时也取消source，调用方等超时取消返回的future，连接上在等的请求跟着清掉
+     *
+     * @param source
+     * @param derived
+     * @return derived
+     */
+    private static <T> CompletableFuture<T> cancelling(CompletableFuture<?> source, CompletableFuture<T> derived) {
+        derived.whenComplete((result, e) -> source.cancel(false));
+        return derived;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        for (Channel channel : channels) {
+            channel.close(new IdGetFailException("id client closed"));
+        }
+    }
+
+    /**
+     * 一条长连接，写加锁，读在自己的线程里
+     */
+    private final class Channel {
+        private final ConcurrentHashMap<Integer, CompletableFuture<IdProtocol.Response>> inFlight = new ConcurrentHashMap<>();
+        private SocketChannel socket;
+
+        /**
+         * 调用方等超时之后取消future，这里跟着把它从inFlight里去掉，响应再来时直接丢掉
+         */
+        CompletableFuture<IdProtocol.Response> send(int requestId, ByteBuffer request) {
+            CompletableFuture<IdProtocol.Response> future = new CompletableFuture<>();
+            inFlight.put(requestId, future);
+            future.whenComplete((response, e) -> inFlight.remove(requestId, future));
+            try {
+                synchronized (this) {
+                    SocketChannel current = connect();
+                    while (request.hasRemaining()) {
+                        current.write(request);
+                    }
+                }
+            } catch (IOException e) {
+                close(new IdGetFailException("send to id server " + serverAddress + " fail", e));
+            }
+            return future;
+        }
+
+        private SocketChannel connect() throws IOException {
+            if (socket != null && socket.isOpen()) {
+                return socket;
+            }
+            SocketChannel opened = SocketChannel.open();
+            try {
+                opened.socket().connect(serverAddress, CONNECT_TIMEOUT_MILLIS);
+            } catch (IOException e) {
+                opened.close();
+                throw e;
+            }
+            opened.socket().setTcpNoDelay(true);
+            socket = opened;
+            Thread reader = readerThreadFactory.newThread(() -> readLoop(opened));
+            reader.start();
+            log.info("connected to id server {}", serverAddress);
+            return opened;
+        }
+
+        private void readLoop(SocketChannel opened) {
+            ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+            try {
+                while (true) {
+                    if (opened.read(buffer) < 0) {
+                        throw new IOException("closed by id server");
+                    }
+                    buffer.flip();
+                    IdProtocol.Response response;
+                    while ((response = IdProtocol.decodeResponse(buffer, MAX_RESPONSE_FRAME)) != null) {
+                        CompletableFuture<IdProtocol.Response> future = inFlight.remove(response.getRequestId());
+                        if (future != null) {
+                            future.complete(response);
+                        }
+                    }
+                    buffer.compact();
+                    if (!buffer.hasRemaining()) {
+                        // 一个帧比缓冲区还大，decodeResponse已经检查过长度不超过上限
+                        ByteBuffer larger = ByteBuffer.allocate(Math.min(buffer.capacity() * 2, MAX_RESPONSE_FRAME + 4));
+                        buffer.flip();
+                        buffer = larger.put(buffer);
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                if (!closed) {
+                    log.warn("connection to id server {} lost, {}", serverAddress, e.toString());
+                }
+                synchronized (this) {
+                    if (socket == opened) {
+                        close(new IdGetFailException("connection to id server " + serverAddress + " lost", e));
+                    }
+                }
+            }
+        }
+
+        /**
+         * 关掉连接，在等的请求全部失败
+         *
+         * @param cause
+         */
+        synchronized void close(IdGetFailException cause) {
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    log.debug("close id client socket fail", e);
+                }
+                socket = null;
+            }
+            for (Integer requestId : inFlight.keySet()) {
+                CompletableFuture<IdProtocol.Response> future = inFlight.remove(requestId);
+                if (future != null) {
+                    future.completeExceptionally(cause);
+                }
+            }
+        }
+    }
+}
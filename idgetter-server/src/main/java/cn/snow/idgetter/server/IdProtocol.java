@@ -0,0 +1,301 @@
+package cn.snow.idgetter.server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import lombok.Getter;
+
+/**
+ * ID服务的二进制协议，所有帧都是4字节长度（不含自身）开头，大端
+ * <p>
+ * 取号请求：requestId(int) | OP_IDS(byte) | bizTag长度(short) | bizTag(UTF-8) | count(int)
+ * 租用worker ID请求：requestId(int) | OP_LEASE_WORKER_ID(byte) | workerTag长度(short) | workerTag(UTF-8)
+ *                    | workerId(int) | token(long，第一次租用是-1) | leaseMillis(long)
+ * 成功响应：requestId(int) | STATUS_OK(byte) | 区间个数(int) | 每个区间 start(long) length(int)
+ * 租用响应：requestId(int) | STATUS_LEASE(byte) | token(long，没有租到是-1)
+ * 失败响应：requestId(int) | STATUS_ERROR(byte) | 错误信息长度(short) | 错误信息(UTF-8)
+ * <p>
+ * 同一个连接上可以连续发多个请求不等响应，响应不保证按请求的顺序返回，用requestId对应
+ * count个ID可能分成几个连续区间返回，比如刚好跨了两个号段
+ *
+ * @author dev
+ */
+public final class IdProtocol {
+
+    public static final byte STATUS_OK = 0;
+
+    public static final byte STATUS_ERROR = 1;
+
+    public static final byte STATUS_LEASE = 2;
+
+    public static final byte OP_IDS = 0;
+
+    public static final byte OP_LEASE_WORKER_ID = 1;
+
+    /**
+     * 租约凭证为空时在帧里写的值，真正的凭证是过期时间，不会是负数
+     */
+    private static final long NO_TOKEN = -1L;
+
+    /**
+     * bizTag编码后的最大字节数
+     */
+    public static final int MAX_BIZ_TAG_BYTES = 512;
+
+    /**
+     * 请求帧的最大长度，不含长度字段
+     */
+    public static final int MAX_REQUEST_FRAME = 4 + 1 + 2 + MAX_BIZ_TAG_BYTES + 4 + 8 + 8;
+
+    private static final int MAX_MESSAGE_BYTES = 1024;
+
+    private IdProtocol() {
+    }
+
+    /**
+     * 一个请求，取号请求只有count，租用请求只有workerId、token和leaseMillis
+     */
+    @Getter
+    public static final class Request {
+        private final int requestId;
+        private final byte op;
+        private final String bizTag;
+        private final int count;
+        private final int workerId;
+        private final Long token;
+        private final long leaseMillis;
+
+        public Request(int requestId, String bizTag, int count) {
+            this(requestId, OP_IDS, bizTag, count, 0, null, 0L);
+        }
+
+        public Request(int requestId, String workerTag, int workerId, Long token, long leaseMillis) {
+            this(requestId, OP_LEASE_WORKER_ID, workerTag, 0, workerId, token, leaseMillis);
+        }
+
+        private Request(int requestId, byte op, String bizTag, int count, int workerId, Long token, long leaseMillis) {
+            this.requestId = requestId;
+            this.op = op;
+            this.bizTag = bizTag;
+            this.count = count;
+            this.workerId = workerId;
+            this.token = token;
+            this.leaseMillis = leaseMillis;
+        }
+    }
+
+    /**
+     * 一个响应，成功时error为null，第i个区间是[starts[i], starts[i] + lengths[i])
+     * 租用响应没有区间，token是租到的凭证，没有租到时为null
+     */
+    @Getter
+    public static final class Response {
+        private final int requestId;
+        private final long[] starts;
+        private final int[] lengths;
+        private final Long token;
+        private final String error;
+
+        Response(int requestId, long[] starts, int[] lengths, Long token, String error) {
+            this.requestId = requestId;
+            this.starts = starts;
+            this.lengths = lengths;
+            this.token = token;
+            this.error = error;
+        }
+
+        public boolean isSuccess() {
+            return error == null;
+        }
+
+        /**
+         * 所有区间展开成ID
+         *
+         * @return
+         */
+        public long[] toIds() {
+            int total = 0;
+            for (int length : lengths) {
+                total += length;
+            }
+            long[] ids = new long[total];
+            int filled = 0;
+            for (int i = 0; i < starts.length; i++) {
+                for (int j = 0; j < lengths[i]; j++) {
+                    ids[filled++] = starts[i] + j;
+                }
+            }
+            return ids;
+        }
+    }
+
+    public static ByteBuffer encodeRequest(int requestId, String bizTag, int count) {
+        byte[] tag = bizTag.getBytes(StandardCharsets.UTF_8);
+        if (tag.length > MAX_BIZ_TAG_BYTES) {
+            throw new IllegalArgumentException("bizTag too long, bizTag=" + bizTag);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(4 + 4 + 1 + 2 + tag.length + 4);
+        buffer.putInt(buffer.capacity() - 4).putInt(requestId).put(OP_IDS).putShort((short) tag.length).put(tag).putInt(count);
+        buffer.flip();
+        return buffer;
+    }
+
+    public static ByteBuffer encodeLeaseRequest(int requestId, String workerTag, int workerId, Long token, long leaseMillis) {
+        byte[] tag = workerTag.getBytes(StandardCharsets.UTF_8);
+        if (tag.length > MAX_BIZ_TAG_BYTES) {
+            throw new IllegalArgumentException("workerTag too long, workerTag=" + workerTag);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(4 + 4 + 1 + 2 + tag.length + 4 + 8 + 8);
+        buffer.putInt(buffer.capacity() - 4).putInt(requestId).put(OP_LEASE_WORKER_ID).putShort((short) tag.length).put(tag)
+                .putInt(workerId).putLong(token == null ? NO_TOKEN : token).putLong(leaseMillis);
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * 从buffer里解析一个请求帧，不完整时buffer的位置不变
+     *
+     * @param buffer 读模式
+     * @return 帧还没收完时返回null
+     * @throws IllegalStateException 帧格式错误，连接应该关掉
+     */
+    public static Request decodeRequest(ByteBuffer buffer) {
+        if (buffer.remaining() < 4) {
+            return null;
+        }
+        int frameLength = buffer.getInt(buffer.position());
+        if (frameLength < 4 + 1 + 2 + 4 || frameLength > MAX_REQUEST_FRAME) {
+            throw new IllegalStateException("invalid request frame length " + frameLength);
+        }
+        if (buffer.remaining() < 4 + frameLength) {
+            return null;
+        }
+        buffer.getInt();
+        int requestId = buffer.getInt();
+        byte op = buffer.get();
+        int bodyLength;
+        if (op == OP_IDS) {
+            bodyLength = 4;
+        } else if (op == OP_LEASE_WORKER_ID) {
+            bodyLength = 4 + 8 + 8;
+        } else {
+            throw new IllegalStateException("invalid request op " + op);
+        }
+        int tagLength = buffer.getShort() & 0xFFFF;
+        if (tagLength != frameLength - 4 - 1 - 2 - bodyLength) {
+            throw new IllegalStateException("invalid bizTag length " + tagLength + ", frame length " + frameLength);
+        }
+        byte[] tag = new byte[tagLength];
+        buffer.get(tag);
+        String bizTag = new String(tag, StandardCharsets.UTF_8);
+        if (op == OP_IDS) {
+            return new Request(requestId, bizTag, buffer.getInt());
+        }
+        int workerId = buffer.getInt();
+        long token = buffer.getLong();
+        return new Request(requestId, bizTag, workerId, token == NO_TOKEN ? null : token, buffer.getLong());
+    }
+
+    /**
+     * 把ids编码成成功响应，连续的ID合并成一个区间
+     *
+     * @param requestId
+     * @param ids
+     * @param from      从ids的哪个位置开始
+     * @param count     多少个
+     * @return 写模式翻转过的buffer
+     */
+    public static ByteBuffer encodeRanges(int requestId, long[] ids, int from, int count) {
+        int end = from + count;
+        int ranges = 0;
+        for (int i = from; i < end; i++) {
+            if (i == from || ids[i] != ids[i - 1] + 1) {
+                ranges++;
+            }
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(4 + 4 + 1 + 4 + ranges * 12);
+        buffer.putInt(buffer.capacity() - 4).putInt(requestId).put(STATUS_OK).putInt(ranges);
+        int start = from;
+        for (int i = from + 1; i <= end; i++) {
+            if (i == end || ids[i] != ids[i - 1] + 1) {
+                buffer.putLong(ids[start]).putInt(i - start);
+                start = i;
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    public static ByteBuffer encodeLease(int requestId, Long token) {
+        ByteBuffer buffer = ByteBuffer.allocate(4 + 4 + 1 + 8);
+        buffer.putInt(buffer.capacity() - 4).putInt(requestId).put(STATUS_LEASE).putLong(token == null ? NO_TOKEN : token);
+        buffer.flip();
+        return buffer;
+    }
+
+    public static ByteBuffer encodeError(int requestId, String message) {
+        byte[] bytes = String.valueOf(message).getBytes(StandardCharsets.UTF_8);
+        int length = Math.min(bytes.length, MAX_MESSAGE_BYTES);
+        ByteBuffer buffer = ByteBuffer.allocate(4 + 4 + 1 + 2 + length);
+        buffer.putInt(buffer.capacity() - 4).putInt(requestId).put(STATUS_ERROR).putShort((short) length).put(bytes, 0, length);
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * 从buffer里解析一个响应帧，不完整时buffer的位置不变
+     *
+     * @param buffer 读模式
+     * @param maxFrameLength 响应帧的最大长度，不含长度字段
+     * @return 帧还没收完时返回null
+     * @throws IllegalStateException 帧格式错误，连接应该关掉
+     */
+    public static Response decodeResponse(ByteBuffer buffer, int maxFrameLength) {
+        if (buffer.remaining() < 4) {
+            return null;
+        }
+        int frameLength = buffer.getInt(buffer.position());
+        if (frameLength < 4 + 1 || frameLength > maxFrameLength) {
+            throw new IllegalStateException("invalid response frame length " + frameLength);
+        }
+        if (buffer.remaining() < 4 + frameLength) {
+            return null;
+        }
+        int frameEnd = buffer.position() + 4 + frameLength;
+        buffer.getInt();
+        int requestId = buffer.getInt();
+        byte status = buffer.get();
+        Response response;
+        if (status == STATUS_OK) {
+            int ranges = buffer.getInt();
+            if (ranges < 0 || 4 + 1 + 4 + ranges * 12L != frameLength) {
+                throw new IllegalStateException("invalid range count " + ranges + ", frame length " + frameLength);
+            }
+            long[] starts = new long[ranges];
+            int[] lengths = new int[ranges];
+            for (int i = 0; i < ranges; i++) {
+                starts[i] = buffer.getLong();
+                lengths[i] = buffer.getInt();
+            }
+            response = new Response(requestId, starts, lengths, null, null);
+        } else if (status == STATUS_LEASE) {
+            if (4 + 1 + 8 != frameLength) {
+                throw new IllegalStateException("invalid lease frame length " + frameLength);
+            }
+            long token = buffer.getLong();
+            response = new Response(requestId, new long[0], new int[0], token == NO_TOKEN ? null : token, null);
+        } else if (status == STATUS_ERROR) {
+            int length = buffer.getShort() & 0xFFFF;
+            if (4 + 1 + 2 + length != frameLength) {
+                throw new IllegalStateException("invalid error length " + length + ", frame length " + frameLength);
+            }
+            byte[] message = new byte[length];
+            buffer.get(message);
+            response = new Response(requestId, new long[0], new int[0], null, new String(message, StandardCharsets.UTF_8));
+        } else {
+            throw new IllegalStateException("invalid response status " + status);
+        }
+        buffer.position(frameEnd);
+        return response;
+    }
+}
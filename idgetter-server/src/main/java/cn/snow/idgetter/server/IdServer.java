@@ -0,0 +1,388 @@
+package cn.snow.idgetter.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import cn.snow.idgetter.doublecache.IdGetterFactory;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 把IdGetterFactory包装成TCP服务，给不能内嵌IdGetterFactory的进程用，协议见IdProtocol
+ * <p>
+ * 1. 一个选择器线程负责所有连接的读写，不为每个连接开线程
+ * 2. 一轮select读到的请求按bizTag合并，同一个bizTag只调用一次getIdsAsync，再按请求切开返回，
+ *    很多客户端同时取号时服务端这边就是一次从双缓冲区里取一批
+ * 3. 取号不在选择器线程上等待，缓冲区要加载时由加载线程完成后写回，响应可能不按请求顺序返回
+ * 4. 数据库只有服务端的双缓冲区在访问，客户端不需要连数据库；客户端的worker ID也由服务端通过自己的仓库租用，
+ *    只接受工厂配置过的snowflakeWorkerTag，见IdGetterFactory.leaseWorkerIdAsync
+ * 5. 一个连接积压的响应超过MAX_QUEUED_BYTES时暂停读这个连接，客户端不收响应也不会把服务端的内存撑满
+ *
+ * @author dev
+ */
+@Slf4j
+public class IdServer implements Closeable {
+
+    /**
+     * 一次合并最多取多少个ID，超过就分几次取
+     */
+    static final int MAX_COALESCED_COUNT = 1 << 20;
+    /**
+     * 一个连接最多积压多少字节的响应，超过后不再读它的请求，发出去一部分再接着读
+     */
+    static final long MAX_QUEUED_BYTES = 4L << 20;
+
+    private final IdGetterFactory idGetterFactory;
+    private final InetSocketAddress bindAddress;
+    private final int maxCountPerRequest;
+
+    private final Queue<Connection> flushQueue = new ConcurrentLinkedQueue<>();
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder allocations = new LongAdder();
+
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private Thread selectorThread;
+    private volatile boolean running;
+
+    /**
+     * 监听所有网卡，port为0时随机选一个端口，用getPort()查看
+     *
+     * @param idGetterFactory
+     * @param port
+     */
+    public IdServer(IdGetterFactory idGetterFactory, int port) {
+        this(idGetterFactory, new InetSocketAddress(port), 100000);
+    }
+
+    /**
+     * @param idGetterFactory
+     * @param bindAddress
+     * @param maxCountPerRequest 一个请求最多取多少个ID
+     */
+    public IdServer(IdGetterFactory idGetterFactory, InetSocketAddress bindAddress, int maxCountPerRequest) {
+        if (maxCountPerRequest <= 0 || maxCountPerRequest > MAX_COALESCED_COUNT) {
+            throw new IllegalArgumentException("maxCountPerRequest must be in (0, " + MAX_COALESCED_COUNT + "], maxCountPerRequest=" + maxCountPerRequest);
+        }
+        this.idGetterFactory = idGetterFactory;
+        this.bindAddress = bindAddress;
+        this.maxCountPerRequest = maxCountPerRequest;
+    }
+
+    public synchronized IdServer start() throws IOException {
+        if (running) {
+            return this;
+        }
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        try {
+            serverChannel.bind(bindAddress);
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            serverChannel.close();
+            selector.close();
+            throw e;
+        }
+        running = true;
+        selectorThread = new IdGetterFactory.SnowIdGetterThreadFactory("snow-id-server", true).newThread(this::selectLoop);
+        selectorThread.start();
+        log.info("id server listening on {}", serverChannel.getLocalAddress());
+        return this;
+    }
+
+    /**
+     * 实际监听的端口
+     *
+     * @return
+     */
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    /**
+     * 收到的请求总数
+     *
+     * @return
+     */
+    public long getRequestCount() {
+        return requests.sum();
+    }
+
+    /**
+     * 合并后实际调用getIdsAsync的次数
+     *
+     * @return
+     */
+    public long getAllocationCount() {
+        return allocations.sum();
+    }
+
+    @Override
+    public void close() throws IOException {
+        Thread thread;
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            running = false;
+            thread = selectorThread;
+            selector.wakeup();
+        }
+        try {
+            thread.join(5000L);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void selectLoop() {
+        try {
+            while (running) {
+                selector.select();
+                Map<String, List<Pending>> pendingByBizTag = new LinkedHashMap<>();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    try {
+                        if (key.isAcceptable()) {
+                            accept();
+                        } else {
+                            Connection connection = (Connection) key.attachment();
+                            if (key.isWritable()) {
+                                connection.flush();
+                            }
+                            if (key.isValid() && key.isReadable()) {
+                                connection.read(pendingByBizTag);
+                            }
+                        }
+                    } catch (IOException | RuntimeException e) {
+                        log.debug("id server connection closed, {}", e.toString());
+                        closeQuietly(key);
+                    }
+                }
+                for (Map.Entry<String, List<Pending>> entry : pendingByBizTag.entrySet()) {
+                    allocate(entry.getKey(), entry.getValue());
+                }
+                Connection connection;
+                while ((connection = flushQueue.poll()) != null) {
+                    try {
+                        connection.flush();
+                    } catch (IOException | RuntimeException e) {
+                        log.debug("id server connection closed, {}", e.toString());
+                        closeQuietly(connection.key);
+                    }
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            log.error("id server selector fail", e);
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                closeQuietly(key);
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                log.warn("close id server selector fail", e);
+            }
+            log.info("id server stopped");
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+        key.attach(new Connection(channel, key));
+    }
+
+    /**
+     * 同一个bizTag的请求合并成一次取号，取到之后按请求的顺序切开
+     *
+     * @param bizTag
+     * @param pendings
+     */
+    private void allocate(String bizTag, List<Pending> pendings) {
+        int from = 0;
+        while (from < pendings.size()) {
+            int to = from;
+            int total = 0;
+            while (to < pendings.size() && total + pendings.get(to).count <= MAX_COALESCED_COUNT) {
+                total += pendings.get(to++).count;
+            }
+            List<Pending> batch = pendings.subList(from, to);
+            allocations.increment();
+            CompletableFuture<long[]> future;
+            try {
+                future = idGetterFactory.getIdsAsync(bizTag, total);
+            } catch (RuntimeException e) {
+                future = new CompletableFuture<>();
+                future.completeExceptionally(e);
+            }
+            future.whenComplete((ids, e) -> {
+                int offset = 0;
+                for (Pending pending : batch) {
+                    if (e != null) {
+                        pending.connection.send(IdProtocol.encodeError(pending.requestId, rootCause(e).toString()));
+                    } else {
+                        pending.connection.send(IdProtocol.encodeRanges(pending.requestId, ids, offset, pending.count));
+                        offset += pending.count;
+                    }
+                }
+            });
+            from = to;
+        }
+    }
+
+    private static Throwable rootCause(Throwable e) {
+        while (e.getCause() != null && e.getCause() != e) {
+            e = e.getCause();
+        }
+        return e;
+    }
+
+    private static void closeQuietly(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            log.debug("close id server channel fail", e);
+        }
+    }
+
+    /**
+     * 一个已经解析、还没取号的请求
+     */
+    private static final class Pending {
+        private final Connection connection;
+        private final int requestId;
+        private final int count;
+
+        Pending(Connection connection, int requestId, int count) {
+            this.connection = connection;
+            this.requestId = requestId;
+            this.count = count;
+        }
+    }
+
+    /**
+     * 一个客户端连接，读写都只在选择器线程上，send可以在任意线程调用
+     */
+    private final class Connection {
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(8192);
+        private final Queue<ByteBuffer> writeQueue = new ConcurrentLinkedQueue<>();
+        /**
+         * writeQueue里还没发出去的字节数
+         */
+        private final AtomicLong queuedBytes = new AtomicLong();
+
+        Connection(SocketChannel channel, SelectionKey key) {
+            this.channel = channel;
+            this.key = key;
+        }
+
+        void read(Map<String, List<Pending>> pendingByBizTag) throws IOException {
+            if (channel.read(readBuffer) < 0) {
+                throw new IOException("closed by client");
+            }
+            readBuffer.flip();
+            try {
+                IdProtocol.Request request;
+                while ((request = IdProtocol.decodeRequest(readBuffer)) != null) {
+                    requests.increment();
+                    if (request.getOp() == IdProtocol.OP_LEASE_WORKER_ID) {
+                        leaseWorkerId(request);
+                        continue;
+                    }
+                    if (request.getCount() <= 0 || request.getCount() > maxCountPerRequest) {
+                        send(IdProtocol.encodeError(request.getRequestId(),
+                                "count must be in (0, " + maxCountPerRequest + "], count=" + request.getCount()));
+                        continue;
+                    }
+                    pendingByBizTag.computeIfAbsent(request.getBizTag(), bizTag -> new ArrayList<>())
+                            .add(new Pending(this, request.getRequestId(), request.getCount()));
+                }
+            } finally {
+                readBuffer.compact();
+            }
+            if (queuedBytes.get() >= MAX_QUEUED_BYTES) {
+                // 已经读进来的请求照常处理，积压的响应发出去之前不再读新的
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            }
+        }
+
+        /**
+         * 租用要访问数据库，不在选择器线程上等
+         *
+         * @param request
+         */
+        private void leaseWorkerId(IdProtocol.Request request) {
+            CompletableFuture<Long> future;
+            try {
+                future = idGetterFactory.leaseWorkerIdAsync(request.getBizTag(), request.getWorkerId(), request.getToken(),
+                        request.getLeaseMillis());
+            } catch (RuntimeException e) {
+                future = new CompletableFuture<>();
+                future.completeExceptionally(e);
+            }
+            future.whenComplete((token, e) -> send(e != null
+                    ? IdProtocol.encodeError(request.getRequestId(), rootCause(e).toString())
+                    : IdProtocol.encodeLease(request.getRequestId(), token)));
+        }
+
+        void send(ByteBuffer response) {
+            if (!channel.isOpen()) {
+                return;
+            }
+            queuedBytes.addAndGet(response.remaining());
+            writeQueue.add(response);
+            flushQueue.add(this);
+            if (Thread.currentThread() != selectorThread) {
+                selector.wakeup();
+            }
+        }
+
+        void flush() throws IOException {
+            ByteBuffer head;
+            while ((head = writeQueue.peek()) != null) {
+                queuedBytes.addAndGet(-channel.write(head));
+                if (head.hasRemaining()) {
+                    // 发送缓冲区满了，等可写的时候再继续
+                    key.interestOps(readInterest() | SelectionKey.OP_WRITE);
+                    return;
+                }
+                writeQueue.poll();
+            }
+            if (key.isValid()) {
+                key.interestOps(readInterest());
+            }
+        }
+
+        private int readInterest() {
+            return queuedBytes.get() < MAX_QUEUED_BYTES ? SelectionKey.OP_READ : 0;
+        }
+    }
+}
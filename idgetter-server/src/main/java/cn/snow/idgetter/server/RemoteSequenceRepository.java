@@ -0,0 +1,187 @@
+package cn.snow.idgetter.server;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import cn.snow.idgetter.doublecache.ISequenceRepository;
+import cn.snow.idgetter.doublecache.IdGetFailException;
+import cn.snow.idgetter.doublecache.IdSegment;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 从IdServer预留号段的仓库，客户端这边照常用IdGetterFactory，只是不再访问数据库
+ * <p>
+ * 1. 客户端的IdGetter还是双缓冲，备用缓冲区在当前段用到一半时异步加载，网络往返藏在备用缓冲区后面
+ * 2. 所有bizTag的加载请求共用IdClient的几条长连接，并发的加载请求在连接上是流水线的
+ * 3. 服务端给的ID不一定是一整段连续的，一个区间就是一个段，多出来的区间留给这个bizTag下次加载
+ * 4. 主要用reserveSegment，不要再包BatchingSequenceRepository，合并已经在服务端做了；
+ *    reserveSequence要求连续的一段，只用服务端给的区间里够长的那个
+ * 5. 时间型ID的worker ID由服务端通过它自己的仓库租用；预留都是原子的，不需要getCurrentSequence和increaseSequence
+ * 6. 每个bizTag最多留MAX_LEFTOVERS个多出来的区间，再多的直接丢掉，只是浪费一些ID
+ * 7. 加载线程会等网络响应，和IdServer在同一个进程里时两边的IdGetterFactory要用不同的RefillScheduler
+ *
+ * @author dev
+ */
+@Slf4j
+public class RemoteSequenceRepository implements ISequenceRepository, AutoCloseable {
+
+    /**
+     * reserveSequence最多请求几次，每次服务端给的区间都不够长时放弃
+     */
+    private static final int MAX_CONTIGUOUS_ATTEMPTS = 3;
+    /**
+     * 每个bizTag最多留几个多出来的区间
+     */
+    static final int MAX_LEFTOVERS = 16;
+
+    private final IdClient idClient;
+    private final long timeoutMillis;
+    /**
+     * bizTag -> 上次加载多出来的区间
+     */
+    private final ConcurrentHashMap<String, Queue<IdSegment>> leftovers = new ConcurrentHashMap<>();
+
+    public RemoteSequenceRepository(IdClient idClient) {
+        this(idClient, 3000L);
+    }
+
+    /**
+     * @param idClient
+     * @param timeoutMillis 一次加载最多等多久
+     */
+    public RemoteSequenceRepository(IdClient idClient, long timeoutMillis) {
+        this.idClient = idClient;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * 先从上次多出来的区间里找一个不短于incrSize的，没有再向服务端要
+     * 服务端给的ID可能分成几个区间，取第一个不短于incrSize的区间的前incrSize个，其余的留到下次
+     * 一个够长的区间都没有时重新请求，几次都没有就抛IdGetFailException
+     *
+     * @param bizTag
+     * @param incrSize
+     * @return
+     */
+    @Override
+    public Long reserveSequence(String bizTag, long incrSize) {
+        if (incrSize <= 0 || incrSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("incrSize must be in (0, " + Integer.MAX_VALUE + "], incrSize=" + incrSize);
+        }
+        Queue<IdSegment> queue = leftovers.computeIfAbsent(bizTag, key -> new ConcurrentLinkedQueue<>());
+        for (IdSegment leftover : queue) {
+            if (leftover.getStep() >= incrSize && queue.remove(leftover)) {
+                if (leftover.getStep() > incrSize) {
+                    keep(queue, new IdSegment(leftover.getMaxId(), leftover.getStep() - incrSize));
+                }
+                return leftover.getMinId() + incrSize;
+            }
+        }
+        for (int attempt = 0; attempt < MAX_CONTIGUOUS_ATTEMPTS; attempt++) {
+            IdProtocol.Response response = await(idClient.request(bizTag, (int) incrSize), bizTag);
+            long[] starts = response.getStarts();
+            int[] lengths = response.getLengths();
+            Long maxValue = null;
+            for (int i = 0; i < starts.length; i++) {
+                if (maxValue == null && lengths[i] >= incrSize) {
+                    maxValue = starts[i] + incrSize - 1;
+                    if (lengths[i] > incrSize) {
+                        keep(queue, new IdSegment(starts[i] + lengths[i] - 1, lengths[i] - incrSize));
+                    }
+                } else {
+                    keep(queue, new IdSegment(starts[i] + lengths[i] - 1, lengths[i]));
+                }
+            }
+            if (maxValue != null) {
+                return maxValue;
+            }
+        }
+        throw new IdGetFailException("id server returned no contiguous range of " + incrSize + " ids. bizTag=" + bizTag);
+    }
+
+    @Override
+    public IdSegment reserveSegment(String bizTag, long incrSize) {
+        Queue<IdSegment> queue = leftovers.computeIfAbsent(bizTag, key -> new ConcurrentLinkedQueue<>());
+        IdSegment leftover = queue.poll();
+        if (leftover != null) {
+            return leftover;
+        }
+        IdProtocol.Response response = await(idClient.request(bizTag, (int) Math.min(incrSize, Integer.MAX_VALUE)), bizTag);
+        long[] starts = response.getStarts();
+        int[] lengths = response.getLengths();
+        if (starts.length == 0) {
+            return null;
+        }
+        for (int i = 1; i < starts.length; i++) {
+            keep(queue, new IdSegment(starts[i] + lengths[i] - 1, lengths[i]));
+        }
+        return new IdSegment(starts[0] + lengths[0] - 1, lengths[0]);
+    }
+
+    /**
+     * 逐个bizTag走reserveSegment，保留多个区间和多出来的区间的处理
+     *
+     * @param incrSizeByBizTag
+     * @return
+     */
+    @Override
+    public Map<String, IdSegment> reserveSegments(Map<String, Long> incrSizeByBizTag) {
+        Map<String, IdSegment> result = new HashMap<>(incrSizeByBizTag.size() * 2);
+        for (Map.Entry<String, Long> entry : incrSizeByBizTag.entrySet()) {
+            IdSegment segment = reserveSegment(entry.getKey(), entry.getValue());
+            if (segment != null) {
+                result.put(entry.getKey(), segment);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public Long leaseWorkerId(String workerTag, int workerId, Long token, long leaseMillis) {
+        return await(idClient.leaseWorkerId(workerTag, workerId, token, leaseMillis), workerTag);
+    }
+
+    /**
+     * 留下多出来的区间，已经留满了就丢掉
+     *
+     * @param queue
+     * @param leftover
+     */
+    private static void keep(Queue<IdSegment> queue, IdSegment leftover) {
+        if (queue.size() >= MAX_LEFTOVERS) {
+            log.warn("too many leftover ranges from id server, range=({},{}] dropped", leftover.getMinId(), leftover.getMaxId());
+            return;
+        }
+        queue.add(leftover);
+    }
+
+    /**
+     * 超时或者被中断时取消future，IdClient随之不再等这个响应
+     */
+    private <T> T await(CompletableFuture<T> future, String bizTag) {
+        try {
+            return future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            future.cancel(false);
+            Thread.currentThread().interrupt();
+            throw new IdGetFailException("wait id server interrupted. bizTag=" + bizTag, e);
+        } catch (TimeoutException e) {
+            future.cancel(false);
+            throw new IdGetFailException("request id server timeout. bizTag=" + bizTag, e);
+        } catch (ExecutionException e) {
+            throw new IdGetFailException("request id server fail. bizTag=" + bizTag, e);
+        }
+    }
+
+    @Override
+    public void close() {
+        idClient.close();
+    }
+}
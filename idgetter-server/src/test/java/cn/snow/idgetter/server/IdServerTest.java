@@ -0,0 +1,120 @@
+package cn.snow.idgetter.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import cn.snow.idgetter.doublecache.IdGetterConfig;
+import cn.snow.idgetter.doublecache.IdGetterFactory;
+import cn.snow.idgetter.doublecache.InMemorySequenceRepository;
+
+class IdServerTest {
+
+    InMemorySequenceRepository mockRepository = new InMemorySequenceRepository();
+
+    IdServer server;
+
+    @AfterEach
+    void tearDown() throws IOException {
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    @Test
+    void testPipelinedRequestsAreCoalescedPerBizTag() throws Exception {
+        IdGetterFactory factory = new IdGetterFactory(mockRepository, new IdGetterConfig().setIncrSize(100L));
+        server = new IdServer(factory, new InetSocketAddress("127.0.0.1", 0), 1000).start();
+
+        try (SocketChannel client1 = connect(); SocketChannel client2 = connect()) {
+            // 两个客户端各自连续发200个请求，不等响应
+            ByteBuffer requests1 = ByteBuffer.allocate(200 * 64);
+            ByteBuffer requests2 = ByteBuffer.allocate(200 * 64);
+            for (int i = 0; i < 200; i++) {
+                requests1.put(IdProtocol.encodeRequest(i, i % 2 == 0 ? "serverTag1" : "serverTag2", 7));
+                requests2.put(IdProtocol.encodeRequest(i, "serverTag1", 3));
+            }
+            write(client1, requests1);
+            write(client2, requests2);
+
+            Set<Long> ids = new HashSet<>();
+            Map<Integer, IdProtocol.Response> responses1 = read(client1, 200);
+            Map<Integer, IdProtocol.Response> responses2 = read(client2, 200);
+            for (int i = 0; i < 200; i++) {
+                long[] ids1 = responses1.get(i).toIds();
+                long[] ids2 = responses2.get(i).toIds();
+                Assertions.assertEquals(7, ids1.length);
+                Assertions.assertEquals(3, ids2.length);
+                for (long id : ids1) {
+                    Assertions.assertTrue(ids.add(id * 2 + (i % 2)), "duplicate id " + id);
+                }
+                for (long id : ids2) {
+                    Assertions.assertTrue(ids.add(id * 2), "duplicate id " + id);
+                }
+            }
+        }
+        Assertions.assertEquals(400L, server.getRequestCount());
+        Assertions.assertTrue(server.getAllocationCount() < server.getRequestCount(),
+                "allocations=" + server.getAllocationCount());
+        // 2000个ID只访问了几十次仓库
+        Assertions.assertTrue(mockRepository.getReserveCalls() <= 2000 / 100 + 4, "reserveCalls=" + mockRepository.getReserveCalls());
+    }
+
+    @Test
+    void testInvalidRequestGetsErrorAndConnectionStaysOpen() throws Exception {
+        IdGetterFactory factory = new IdGetterFactory(mockRepository, new IdGetterConfig().setIncrSize(100L));
+        server = new IdServer(factory, new InetSocketAddress("127.0.0.1", 0), 1000).start();
+
+        try (SocketChannel client = connect()) {
+            write(client, IdProtocol.encodeRequest(1, "serverTag3", 1001));
+            IdProtocol.Response error = read(client, 1).get(1);
+            Assertions.assertFalse(error.isSuccess());
+
+            write(client, IdProtocol.encodeRequest(2, "serverTag3", 5));
+            IdProtocol.Response response = read(client, 1).get(2);
+            Assertions.assertTrue(response.isSuccess());
+            Assertions.assertEquals(1, response.getStarts().length);
+            Assertions.assertEquals(1L, response.getStarts()[0]);
+            Assertions.assertEquals(5, response.getLengths()[0]);
+        }
+    }
+
+    private SocketChannel connect() throws IOException {
+        return SocketChannel.open(new InetSocketAddress("127.0.0.1", server.getPort()));
+    }
+
+    private static void write(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        if (buffer.position() > 0) {
+            buffer.flip();
+        }
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static Map<Integer, IdProtocol.Response> read(SocketChannel channel, int count) throws IOException {
+        Map<Integer, IdProtocol.Response> responses = new HashMap<>();
+        ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+        while (responses.size() < count) {
+            if (channel.read(buffer) < 0) {
+                throw new IOException("closed by server");
+            }
+            buffer.flip();
+            IdProtocol.Response response;
+            while ((response = IdProtocol.decodeResponse(buffer, 1 << 16)) != null) {
+                responses.put(response.getRequestId(), response);
+            }
+            buffer.compact();
+        }
+        return responses;
+    }
+}
@@ -0,0 +1,109 @@
+package cn.snow.idgetter.server;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import cn.snow.idgetter.doublecache.IdGetFailException;
+import cn.snow.idgetter.doublecache.IdGetterConfig;
+import cn.snow.idgetter.doublecache.IdGetterFactory;
+import cn.snow.idgetter.doublecache.IdStrategy;
+import cn.snow.idgetter.doublecache.InMemorySequenceRepository;
+import cn.snow.idgetter.doublecache.RefillScheduler;
+
+class RemoteSequenceRepositoryTest {
+
+    /**
+     * 每次预留都空出一段，服务端的号段不连续，客户端一次加载会跨两个号段
+     */
+    InMemorySequenceRepository gappedRepository = new InMemorySequenceRepository() {
+        @Override
+        public Long reserveSequence(String bizTag, long incrSize) {
+            return super.reserveSequence(bizTag, incrSize * 2);
+        }
+    };
+
+    @Test
+    void testClientFactoryDrawsUniqueIdsFromServer() throws Exception {
+        // 服务端和客户端在同一个进程里，服务端用自己的加载线程，不和客户端等网络的加载线程抢
+        RefillScheduler serverScheduler = new RefillScheduler(2, false);
+        IdGetterFactory serverFactory = new IdGetterFactory(gappedRepository, new IdGetterConfig().setIncrSize(30L), serverScheduler);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try (IdServer server = new IdServer(serverFactory, new InetSocketAddress("127.0.0.1", 0), 1000).start();
+             RemoteSequenceRepository repository = new RemoteSequenceRepository(
+                     new IdClient(new InetSocketAddress("127.0.0.1", server.getPort()), 2))) {
+            IdGetterFactory clientFactory = new IdGetterFactory(repository, new IdGetterConfig().setIncrSize(50L));
+
+            Map<String, Set<Long>> idsByBizTag = new ConcurrentHashMap<>();
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                String bizTag = "remoteTag" + (t % 4);
+                Set<Long> ids = idsByBizTag.computeIfAbsent(bizTag, key -> ConcurrentHashMap.newKeySet());
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < 500; i++) {
+                        long id = clientFactory.getIdAsLong(bizTag);
+                        Assertions.assertTrue(ids.add(id), "duplicate id " + id);
+                        // 只会发出服务端预留到的号段里的ID
+                        Assertions.assertEquals(1L, (id - 1) / 30 % 2, "id=" + id);
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get(30, TimeUnit.SECONDS);
+            }
+            for (Set<Long> ids : idsByBizTag.values()) {
+                Assertions.assertEquals(1000, ids.size());
+            }
+        } finally {
+            executor.shutdownNow();
+            serverScheduler.close();
+        }
+    }
+
+    @Test
+    void testReserveSequenceAndLeaseWorkerIdThroughServer() throws Exception {
+        RefillScheduler serverScheduler = new RefillScheduler(2, false);
+        IdGetterFactory serverFactory = new IdGetterFactory(gappedRepository, new IdGetterConfig().setIncrSize(30L), serverScheduler);
+        try (IdServer server = new IdServer(serverFactory, new InetSocketAddress("127.0.0.1", 0), 1000).start();
+             RemoteSequenceRepository repository = new RemoteSequenceRepository(
+                     new IdClient(new InetSocketAddress("127.0.0.1", server.getPort()), 1))) {
+            // 服务端的号段是(30, 60]、(90, 120]…，跨段拿不到连续的20个时重新请求
+            long last = 0L;
+            for (int i = 0; i < 5; i++) {
+                long maxValue = repository.reserveSequence("contiguousTag", 20L);
+                Assertions.assertEquals((maxValue - 20) / 30, (maxValue - 1) / 30, "maxValue=" + maxValue);
+                Assertions.assertEquals(1L, (maxValue - 1) / 30 % 2, "maxValue=" + maxValue);
+                Assertions.assertTrue(maxValue - 20 >= last);
+                last = maxValue;
+            }
+
+            // 客户端的时间型bizTag通过服务端的仓库租用worker ID
+            IdGetterFactory clientFactory = new IdGetterFactory(repository, new IdGetterConfig())
+                    .configure("remoteSnowflake", new IdGetterConfig().setStrategy(IdStrategy.SNOWFLAKE));
+            Assertions.assertTrue(clientFactory.getIdAsLong("remoteSnowflake") > 0L);
+            long leased = IntStream.range(0, 1024)
+                    .filter(workerId -> gappedRepository.get("snowflake_worker_" + workerId) != null).count();
+            Assertions.assertEquals(1L, leased);
+            int workerId = IntStream.range(0, 1024)
+                    .filter(id -> gappedRepository.get("snowflake_worker_" + id) != null).findFirst().getAsInt();
+            Assertions.assertNull(repository.leaseWorkerId("snowflake_worker", workerId, null, 60000L));
+            // 服务端只替客户端租自己配置的workerTag，不会改到别的行
+            gappedRepository.set("orderTag_0", 0L);
+            Assertions.assertThrows(IdGetFailException.class, () -> repository.leaseWorkerId("orderTag", 0, null, 60000L));
+            Assertions.assertEquals(0L, gappedRepository.get("orderTag_0").longValue());
+        } finally {
+            serverScheduler.close();
+        }
+    }
+}